@@ -0,0 +1,133 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyNameCoder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts object files in the binary capture format of pankti-instrument
+ * (see BinaryRecordFile there) back to the XStream XML of the XML capture
+ * format, one record per line, so that they are parsed like XML files.
+ */
+public class BinaryRecordReader {
+    public static final String BINARY_FILE_EXTENSION = ".bin";
+    private static final int START_NODE = 1;
+    private static final int ATTRIBUTE = 2;
+    private static final int LITERAL_ATTRIBUTE = 3;
+    private static final int VALUE = 4;
+    private static final int END_NODE = 5;
+    private static final int DEFINE = 6;
+    private static final int FLAG_RESET_DICTIONARY = 1;
+
+    private final List<String> dictionary = new ArrayList<>();
+    private byte[] frame = new byte[8 * 1024];
+    private int position;
+
+    public static boolean isBinaryFile(File file) {
+        return file.getName().endsWith(BINARY_FILE_EXTENSION) || file.getName().endsWith(BINARY_FILE_EXTENSION + ".gz");
+    }
+
+    public String toXML(File binaryFile) throws IOException {
+        StringWriter xml = new StringWriter();
+        dictionary.clear();
+        try (InputStream in = ObjectXMLParser.openObjectFile(binaryFile)) {
+            int frameLength;
+            while ((frameLength = readFrameLength(in)) != -1) {
+                if (frameLength > frame.length) {
+                    frame = new byte[frameLength];
+                }
+                if (in.readNBytes(frame, 0, frameLength) < frameLength) {
+                    throw new EOFException("Truncated record in " + binaryFile);
+                }
+                position = 0;
+                xml.write(readRecord(frameLength));
+                xml.write("\n");
+            }
+        }
+        return xml.toString();
+    }
+
+    // -1 at the end of the file
+    private static int readFrameLength(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated record length");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private String readRecord(int frameLength) throws IOException {
+        if ((frame[position++] & FLAG_RESET_DICTIONARY) != 0) {
+            dictionary.clear();
+        }
+        StringWriter record = new StringWriter();
+        PrettyPrintWriter writer = new PrettyPrintWriter(record, new XmlFriendlyNameCoder());
+        while (position < frameLength) {
+            int token = readVarint();
+            switch (token) {
+                case DEFINE:
+                    dictionary.add(readString());
+                    break;
+                case START_NODE:
+                    writer.startNode(lookUp(readVarint()));
+                    break;
+                case ATTRIBUTE:
+                    writer.addAttribute(lookUp(readVarint()), lookUp(readVarint()));
+                    break;
+                case LITERAL_ATTRIBUTE:
+                    writer.addAttribute(lookUp(readVarint()), readString());
+                    break;
+                case VALUE:
+                    writer.setValue(readString());
+                    break;
+                case END_NODE:
+                    writer.endNode();
+                    break;
+                default:
+                    throw new IOException("Unknown token in binary record: " + token);
+            }
+        }
+        writer.flush();
+        // Character references are escaped as text, as pankti-instrument does for XML records
+        return record.toString().replace("&#x", "&amp;#x");
+    }
+
+    private String lookUp(int id) throws IOException {
+        if (id >= dictionary.size()) {
+            throw new IOException("Undefined id in binary record: " + id);
+        }
+        return dictionary.get(id);
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = frame[position++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private String readString() {
+        int length = readVarint();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) readVarint();
+        }
+        return new String(chars);
+    }
+}
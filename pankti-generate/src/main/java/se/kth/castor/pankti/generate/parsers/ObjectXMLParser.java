@@ -18,6 +18,7 @@ import java.io.*;
 import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 public class ObjectXMLParser {
     Set<SerializedObject> serializedObjects = new HashSet<>();
@@ -26,9 +27,24 @@ public class ObjectXMLParser {
     private static final String paramObjectsFilePostfix = "-params.xml";
     private static final String returnedObjectFilePostfix = "-returned.xml";
     private static final String receivingPostObjectFilePostfix = "-receiving-post.xml";
+    private static final String compressedObjectFileExtension = ".gz";
+    // Objects deduplicated by pankti-instrument are stored once, with a hash, and referenced by it afterwards
+    private static final String objectHashAttribute = "hash";
+    private static final String objectReferenceNode = "object-ref";
+    // Marks the branches of an object graph that pankti-instrument did not capture, as they exceeded its bounds
+    private static final String truncatedObjectMarker = "pankti-truncated=\"";
 
-    public InputStream addRootElementToXMLFile(File inputFile) throws FileNotFoundException {
-        FileInputStream fis = new FileInputStream(inputFile);
+    // Object files compressed by pankti-instrument are a series of GZIP members, read as one stream
+    public static InputStream openObjectFile(File inputFile) throws IOException {
+        InputStream fis = new BufferedInputStream(new FileInputStream(inputFile));
+        return inputFile.getName().endsWith(compressedObjectFileExtension) ? new GZIPInputStream(fis) : fis;
+    }
+
+    public InputStream addRootElementToXMLFile(File inputFile) throws IOException {
+        // Records in the binary capture format are converted back to XML
+        InputStream fis = BinaryRecordReader.isBinaryFile(inputFile)
+                ? new ByteArrayInputStream(new BinaryRecordReader().toXML(inputFile).getBytes())
+                : openObjectFile(inputFile);
         List<InputStream> streams =
                 Arrays.asList(
                         new ByteArrayInputStream("<root>".getBytes()),
@@ -37,8 +53,20 @@ public class ObjectXMLParser {
         return new SequenceInputStream(Collections.enumeration(streams));
     }
 
+    // Falls back to the compressed file, or to the file in the binary capture format, if there is no XML file
     public File findXMLFileByObjectType(String basePath, String type) {
-        return new File(basePath + type);
+        File xmlFile = new File(basePath + type);
+        if (!xmlFile.exists() && type.endsWith(".xml")) {
+            String binaryType = type.replaceAll("\\.xml$", BinaryRecordReader.BINARY_FILE_EXTENSION);
+            for (String candidateType : List.of(type + compressedObjectFileExtension, binaryType,
+                    binaryType + compressedObjectFileExtension)) {
+                File candidateFile = new File(basePath + candidateType);
+                if (candidateFile.exists()) {
+                    return candidateFile;
+                }
+            }
+        }
+        return xmlFile;
     }
 
     public String cleanUpRawObjectXML(String rawXMLForObject) {
@@ -48,8 +76,13 @@ public class ObjectXMLParser {
         return rawXMLForObject;
     }
 
+    // An object with truncated branches cannot be recreated as it was captured
+    public boolean isTruncated(String rawXMLForObject) {
+        return rawXMLForObject.contains(truncatedObjectMarker);
+    }
+
     private void removeAddedAttributes(Node thisNode) {
-        List<String> attributesToRemove = List.of("uuid", "parent-uuid", "timestamp");
+        List<String> attributesToRemove = List.of("uuid", "parent-uuid", "timestamp", objectHashAttribute);
         for (String attributeToRemove : attributesToRemove) {
             if (thisNode.getAttributes().getNamedItem(attributeToRemove) != null)
                 thisNode.getAttributes().removeNamedItem(attributeToRemove);
@@ -71,6 +104,7 @@ public class ObjectXMLParser {
         Node rootNode = doc.getDocumentElement();
         rootNode.normalize();
         NodeList childNodes = rootNode.getChildNodes();
+        Map<String, String> storedObjects = new HashMap<>();
 
         for (int i = 0; i < childNodes.getLength(); i++) {
             Node thisNode = childNodes.item(i);
@@ -80,7 +114,12 @@ public class ObjectXMLParser {
             if (!thisNode.hasAttributes() & !thisNode.toString().equals("[#text: \n]")) {
                 element.setUuid(null);
             }
+            String objectHash = null;
             if (thisNode.hasAttributes() & !thisNode.toString().equals("[#text: \n]")) {
+                Node hashAttribute = thisNode.getAttributes().getNamedItem(objectHashAttribute);
+                if (hashAttribute != null) {
+                    objectHash = hashAttribute.getNodeValue();
+                }
                 for (int j = 0; j < thisNode.getAttributes().getLength(); j++) {
                     if (thisNode.getAttributes().item(j).getNodeName().contains("uuid")) {
                         element.setUuid(thisNode.getAttributes().item(j).getNodeValue()
@@ -93,11 +132,24 @@ public class ObjectXMLParser {
                 }
                 removeAddedAttributes(thisNode);
             }
+            // A reference reuses the stored object, which is not serialized again
+            if (objectReferenceNode.equals(thisNode.getNodeName())) {
+                String storedObject = storedObjects.get(objectHash);
+                if (storedObject == null) {
+                    System.out.println("NO STORED OBJECT WITH HASH " + objectHash + " IN " + inputFile + " - SKIPPING");
+                }
+                element.setRawXML(storedObject == null ? "" : storedObject);
+                objectProfileElements.add(element);
+                continue;
+            }
             String rawXMLForObject = ser.writeToString(thisNode);
             String cleanedUpXML = cleanUpRawObjectXML(rawXMLForObject);
             if (!cleanedUpXML.equals("")) {
                 element.setRawXML(cleanedUpXML);
                 objectProfileElements.add(element);
+                if (objectHash != null) {
+                    storedObjects.put(objectHash, cleanedUpXML);
+                }
             }
 
         }
@@ -172,12 +224,14 @@ public class ObjectXMLParser {
                     List<String> nestedReturnedObjects = new ArrayList<>();
                     List<Instant> nestedTimestamps = new ArrayList<>();
                     List<String> nestedInvocationFQNs = new ArrayList<>();
-                    String filePathNestedParams = directory + nestedInvocationObjectFilePrefix + declaringType + "." + methodName +
-                            nestedInvocationPostfix + paramObjectsFilePostfix;
-                    String filePathNestedReturned = directory + nestedInvocationObjectFilePrefix + declaringType + "." + methodName +
-                            nestedInvocationPostfix + returnedObjectFilePostfix;
+                    String nestedBasePath = directory + nestedInvocationObjectFilePrefix + declaringType + "." + methodName +
+                            nestedInvocationPostfix;
+                    File nestedParamsFile = findXMLFileByObjectType(nestedBasePath, paramObjectsFilePostfix);
+                    File nestedReturnedFile = findXMLFileByObjectType(nestedBasePath, returnedObjectFilePostfix);
+                    String filePathNestedParams = nestedParamsFile.getPath();
+                    String filePathNestedReturned = nestedReturnedFile.getPath();
                     try {
-                        List<ObjectProfileElement> nestedParamElements = parseXMLInFile(new File(filePathNestedParams));
+                        List<ObjectProfileElement> nestedParamElements = parseXMLInFile(nestedParamsFile);
                         for (ObjectProfileElement nestedParamElement : nestedParamElements) {
                             if (parentUUIDs.contains(nestedParamElement.getUuid())) {
                                 nestedParamObjects.add(nestedParamElement.getRawXML());
@@ -185,7 +239,7 @@ public class ObjectXMLParser {
                                 nestedInvocationFQNs.add(declaringType + "." + mockedMethodWithParams);
                             }
                         }
-                        List<ObjectProfileElement> nestedReturnedElements = parseXMLInFile(new File(filePathNestedReturned));
+                        List<ObjectProfileElement> nestedReturnedElements = parseXMLInFile(nestedReturnedFile);
                         for (ObjectProfileElement nestedReturnedElement : nestedReturnedElements) {
                             if (parentUUIDs.contains(nestedReturnedElement.getUuid())) {
                                 nestedUuids.add(nestedReturnedElement.getUuid());
@@ -215,9 +269,15 @@ public class ObjectXMLParser {
             }
 
             int serializedObjectCount = 0;
+            int truncatedObjectCount = 0;
             for (int i = 0; i < receivingObjects.size(); i++) {
                 if (!receivingObjects.get(i).isEmpty() && !returnedOrReceivingPostObjects.get(i).isEmpty()) {
                     String params = hasParams ? paramObjects.get(i) : "";
+                    if (isTruncated(receivingObjects.get(i)) || isTruncated(returnedOrReceivingPostObjects.get(i))
+                            || isTruncated(params)) {
+                        truncatedObjectCount++;
+                        continue;
+                    }
                     // Create object profiles from all serialized objects
                     int finalI = i;
                     SerializedObject serializedObject = new SerializedObject(
@@ -239,6 +299,9 @@ public class ObjectXMLParser {
                 }
             }
             System.out.println("Number of pairs/triples of object values: " + serializedObjectCount);
+            if (truncatedObjectCount > 0) {
+                System.out.println("Skipped pairs/triples with truncated objects: " + truncatedObjectCount);
+            }
         } catch (FileNotFoundException e) {
             System.out.println("NO OBJECT FILES FOUND FOR " + basePath + " PARAMS" + postfix + " - SKIPPING");
         } catch (Exception e) {
@@ -0,0 +1,99 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * These tests verify that records in the binary capture format
+ * are converted back to the XML of the XML capture format
+ */
+public class BinaryRecordReaderTest {
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) {
+        writeVarint(out, string.length());
+        string.chars().forEach(c -> writeVarint(out, c));
+    }
+
+    private static void writeFrame(ByteArrayOutputStream file, ByteArrayOutputStream frame) {
+        writeVarint(file, frame.size());
+        file.writeBytes(frame.toByteArray());
+    }
+
+    // Two int-array records with a uuid, as written by BinaryRecordFile in pankti-instrument
+    private static File createBinaryFile() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        first.write(1);
+        writeVarint(first, 6);
+        writeString(first, "int-array");
+        writeVarint(first, 1);
+        writeVarint(first, 0);
+        writeVarint(first, 6);
+        writeString(first, "uuid");
+        writeVarint(first, 3);
+        writeVarint(first, 1);
+        writeString(first, "0a-1b");
+        writeVarint(first, 6);
+        writeString(first, "int");
+        writeVarint(first, 1);
+        writeVarint(first, 2);
+        writeVarint(first, 4);
+        writeString(first, "1");
+        writeVarint(first, 5);
+        writeVarint(first, 5);
+        writeFrame(file, first);
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        second.write(0);
+        writeVarint(second, 1);
+        writeVarint(second, 0);
+        writeVarint(second, 3);
+        writeVarint(second, 1);
+        writeString(second, "2c-3d");
+        writeVarint(second, 1);
+        writeVarint(second, 2);
+        writeVarint(second, 4);
+        writeString(second, "\u0001");
+        writeVarint(second, 5);
+        writeVarint(second, 5);
+        writeFrame(file, second);
+
+        File binaryFile = File.createTempFile("pankti-params", BinaryRecordReader.BINARY_FILE_EXTENSION);
+        binaryFile.deleteOnExit();
+        Files.write(binaryFile.toPath(), file.toByteArray());
+        return binaryFile;
+    }
+
+    @Test
+    public void testBinaryRecordsAreConvertedToXML() throws Exception {
+        String xml = new BinaryRecordReader().toXML(createBinaryFile());
+        assertEquals("<int-array uuid=\"0a-1b\">\n  <int>1</int>\n</int-array>\n" +
+                "<int-array uuid=\"2c-3d\">\n  <int>&amp;#x1;</int>\n</int-array>\n", xml);
+    }
+
+    @Test
+    public void testBinaryFileIsParsedLikeXMLFile() throws Exception {
+        List<ObjectProfileElement> elements = new ObjectXMLParser().parseXMLInFile(createBinaryFile());
+        assertEquals(2, elements.size());
+        assertEquals("0a1b", elements.get(0).getUuid());
+        assertEquals("<int-array><int>1</int></int-array>",
+                elements.get(0).getRawXML().replaceAll("\\s", ""));
+        assertEquals("<int-array><int>&#x1;</int></int-array>",
+                elements.get(1).getRawXML().replaceAll("\\s", ""));
+    }
+}
@@ -4,9 +4,14 @@ import org.junit.jupiter.api.Test;
 import se.kth.castor.pankti.generate.data.ObjectProfileElement;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * These tests verify that (nested) objects profiles are correctly
@@ -33,4 +38,53 @@ public class ObjectXMLParserTest {
         assertEquals("<object-array><int>32</int></object-array>",
                 xmlNestedParams.get(0).getRawXML().replaceAll("\\s", ""));
     }
+
+    @Test
+    public void testObjectExtractionFromCompressedXMLFile() throws Exception {
+        byte[] xml = Files.readAllBytes(new File("src/test/resources/param-objects.xml").toPath());
+        File compressedFile = File.createTempFile("param-objects", ".xml.gz");
+        compressedFile.deleteOnExit();
+        // Two GZIP members, as written by pankti-instrument when its buffer is flushed
+        int half = xml.length / 2;
+        try (OutputStream out = new FileOutputStream(compressedFile)) {
+            try (GZIPOutputStream firstMember = new GZIPOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                }
+            }) {
+                firstMember.write(xml, 0, half);
+            }
+            try (GZIPOutputStream secondMember = new GZIPOutputStream(out)) {
+                secondMember.write(xml, half, xml.length - half);
+            }
+        }
+        List<ObjectProfileElement> xmlParams = objectXMLParser.parseXMLInFile(compressedFile);
+        assertEquals(11, xmlParams.size());
+    }
+
+    @Test
+    public void testReferencedObjectIsResolvedToStoredObject() throws Exception {
+        File objectXMLFile = File.createTempFile("param-objects", ".xml");
+        objectXMLFile.deleteOnExit();
+        Files.writeString(objectXMLFile.toPath(),
+                "<object-array uuid=\"1\" hash=\"00000000000000ab\">\n  <int>32</int>\n</object-array>\n" +
+                        "<object-ref hash=\"00000000000000ab\" uuid=\"2\"/>\n" +
+                        "<object-ref hash=\"00000000000000cd\" uuid=\"3\"/>\n");
+        List<ObjectProfileElement> xmlParams = objectXMLParser.parseXMLInFile(objectXMLFile);
+        assertEquals(3, xmlParams.size());
+        assertEquals("<object-array><int>32</int></object-array>",
+                xmlParams.get(0).getRawXML().replaceAll("\\s", ""));
+        assertEquals(xmlParams.get(0).getRawXML(), xmlParams.get(1).getRawXML());
+        assertEquals("2", xmlParams.get(1).getUuid());
+        // An object that is not stored leaves an empty profile, so that files stay aligned
+        assertEquals("", xmlParams.get(2).getRawXML());
+    }
+
+    @Test
+    public void testTruncatedObjectIsRecognized() {
+        assertTrue(objectXMLParser.isTruncated(
+                "<object-array><java.util.HashMap pankti-truncated=\"depth\"/></object-array>"));
+        assertFalse(objectXMLParser.isTruncated("<object-array><int>32</int></object-array>"));
+    }
 }
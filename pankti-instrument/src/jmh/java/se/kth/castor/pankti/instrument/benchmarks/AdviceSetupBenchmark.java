@@ -0,0 +1,78 @@
+package se.kth.castor.pankti.instrument.benchmarks;
+
+import com.thoughtworks.xstream.XStream;
+import org.openjdk.jmh.annotations.*;
+import se.kth.castor.pankti.instrument.converters.*;
+import se.kth.castor.pankti.instrument.plugins.AdviceTemplate;
+import se.kth.castor.pankti.instrument.plugins.Type;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-invocation cost of setting up an aspect on every
+ * call of onBefore, as the aspects used to, with setting it up once
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdviceSetupBenchmark {
+    private static final String methodFQN = "se.kth.castor.pankti.benchmarks.Target.method_int";
+    private XStream xStream;
+    private volatile boolean isSetUp;
+    private File[] allObjectFiles;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        xStream = new XStream();
+        isSetUp = false;
+    }
+
+    private File[] setUpFiles() {
+        Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
+        return new File[]{
+                new File(fileNameMap.get(Type.RECEIVING_PRE)),
+                new File(fileNameMap.get(Type.RECEIVING_POST)),
+                new File(fileNameMap.get(Type.RETURNED)),
+                new File(fileNameMap.get(Type.PARAMS))};
+    }
+
+    private long checkFileSizes(File[] objectFiles) {
+        long size = 0L;
+        for (File file : objectFiles) {
+            if (file.exists()) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    @Benchmark
+    public long setUpOnEveryCall() {
+        xStream.registerConverter(new ClassLoaderConverter());
+        xStream.registerConverter(new FileCleanableConverter());
+        xStream.registerConverter(new InflaterConverter());
+        xStream.registerConverter(new CleanerImplConverter());
+        xStream.registerConverter(new ThreadConverter());
+        xStream.registerConverter(new ThreadGroupConverter());
+        return checkFileSizes(setUpFiles());
+    }
+
+    @Benchmark
+    public int setUpOnce() {
+        if (!isSetUp) {
+            synchronized (this) {
+                if (!isSetUp) {
+                    allObjectFiles = setUpFiles();
+                    checkFileSizes(allObjectFiles);
+                    isSetUp = true;
+                }
+            }
+        }
+        return allObjectFiles.length;
+    }
+}
@@ -0,0 +1,72 @@
+package se.kth.castor.pankti.instrument.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import se.kth.castor.pankti.instrument.capture.FileLayoutSink;
+import se.kth.castor.pankti.instrument.capture.MappedLogSink;
+import se.kth.castor.pankti.instrument.capture.ProfileSink;
+import se.kth.castor.pankti.instrument.capture.SegmentedLogSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of appending a record to the file layout, to the
+ * segmented log, and to the memory-mapped log, from several threads that
+ * each append to a profile of their own, as aspects on different methods do
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ProfileSinkBenchmark {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final byte[] record = ("<object-array><int>42</int><string>profile</string>"
+            + "<boolean>true</boolean></object-array>\n").getBytes();
+
+    @Param({"files", "segmented-log", "mapped-log"})
+    public String sinkType;
+
+    private ProfileSink sink;
+    private File directory;
+
+    @State(Scope.Thread)
+    public static class Profile {
+        String path;
+
+        @Setup(Level.Trial)
+        public void setUp(ProfileSinkBenchmark benchmark) {
+            path = benchmark.directory.getPath() + File.separator
+                    + "Target.method" + Thread.currentThread().getId() + "-params.xml";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("pankti-sink-benchmark").toFile();
+        switch (sinkType) {
+            case "segmented-log":
+                sink = new SegmentedLogSink(directory, SEGMENT_SIZE);
+                break;
+            case "mapped-log":
+                sink = new MappedLogSink(directory, SEGMENT_SIZE);
+                break;
+            default:
+                sink = new FileLayoutSink();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    @Benchmark
+    public void append(Profile profile) throws IOException {
+        sink.append(profile.path, record, 0, record.length);
+    }
+}
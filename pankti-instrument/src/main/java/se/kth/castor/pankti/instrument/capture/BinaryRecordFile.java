@@ -0,0 +1,218 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.io.AbstractWriter;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Appends records in the compact binary format to an object file.
+ * <p>
+ * A record is a frame: its length (a varint), a flags byte, and the
+ * tokens of the XStream writer calls, each a varint token code followed
+ * by its operands. Node names, attribute names, and the attribute values
+ * written by XStream (class, reference, ...) are interned: the first
+ * occurrence in a file is defined with a DEFINE token, which assigns it
+ * the next id, and later occurrences only write the id. Root attributes
+ * (uuid, parent-uuid, timestamp) differ for every record, so they are
+ * written as literals. Strings are written as their length followed by
+ * one varint per char, so any text, including lone surrogates, survives.
+ * <p>
+ * The dictionary of a file lives as long as the JVM. The first record a
+ * JVM appends to a file has the RESET flag, so that a reader starts a new
+ * dictionary when a file holds records from several runs. Definitions
+ * made by a record that fails are discarded with it.
+ */
+public final class BinaryRecordFile {
+    static final int START_NODE = 1;
+    static final int ATTRIBUTE = 2;
+    static final int LITERAL_ATTRIBUTE = 3;
+    static final int VALUE = 4;
+    static final int END_NODE = 5;
+    static final int DEFINE = 6;
+    static final int FLAG_RESET_DICTIONARY = 1;
+    // Room for the varint length of a frame, which is filled in once the frame is written
+    private static final int MAX_LENGTH_SIZE = 5;
+    private static final Map<String, BinaryRecordFile> files = new ConcurrentHashMap<>();
+
+    private final String filePath;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final FrameBuffer frame = new FrameBuffer();
+    private boolean resetWritten = false;
+
+    private BinaryRecordFile(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public static BinaryRecordFile forFile(String filePath) {
+        return files.computeIfAbsent(filePath, BinaryRecordFile::new);
+    }
+
+    // Returns the size of the frame in bytes
+    public long append(Consumer<HierarchicalStreamWriter> marshaller, String... rootAttributes) throws IOException {
+        return append(marshaller, null, rootAttributes);
+    }
+
+    // Returns -1, without appending the frame, if the object with the content hash is already stored
+    synchronized long append(Consumer<HierarchicalStreamWriter> marshaller, ObjectStore.ContentHash contentHash,
+                             String... rootAttributes) throws IOException {
+        int committedDefinitions = dictionary.size();
+        boolean resetDictionary = !resetWritten;
+        try {
+            frame.reset();
+            for (int i = 0; i < MAX_LENGTH_SIZE; i++) {
+                frame.write(0);
+            }
+            frame.write(resetDictionary ? FLAG_RESET_DICTIONARY : 0);
+            RecordWriter recordWriter = new RecordWriter(rootAttributes);
+            marshaller.accept(recordWriter);
+            if (contentHash != null) {
+                if (contentHash.isStored()) {
+                    dictionary.values().removeIf(id -> id >= committedDefinitions);
+                    return -1;
+                }
+                frame.patch(recordWriter.hashOffset, contentHash.toHex());
+            }
+            int start = frame.completeLength();
+            ProfileStorage.getSink().append(filePath, frame.array(), start, frame.size() - start);
+            resetWritten = true;
+            return frame.size() - start;
+        } catch (RuntimeException | IOException e) {
+            dictionary.values().removeIf(id -> id >= committedDefinitions);
+            throw e;
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String string) {
+        writeVarint(out, string.length());
+        for (int i = 0; i < string.length(); i++) {
+            writeVarint(out, string.charAt(i));
+        }
+    }
+
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(8 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        // The characters of a hexadecimal hash take one byte each
+        void patch(int offset, String hash) {
+            for (int i = 0; i < hash.length(); i++) {
+                buf[offset + i] = (byte) hash.charAt(i);
+            }
+        }
+
+        // Writes the length of the frame right before its flags byte, and returns where the frame starts
+        int completeLength() {
+            int length = count - MAX_LENGTH_SIZE;
+            int lengthSize = 1;
+            for (int value = length; (value & ~0x7f) != 0; value >>>= 7) {
+                lengthSize++;
+            }
+            int position = MAX_LENGTH_SIZE - lengthSize;
+            int value = length;
+            for (int i = position; i < MAX_LENGTH_SIZE; i++) {
+                buf[i] = (byte) (i < MAX_LENGTH_SIZE - 1 ? (value & 0x7f) | 0x80 : value);
+                value >>>= 7;
+            }
+            return position;
+        }
+    }
+
+    // XStream wraps the writer in writers that pass the class of each node, which AbstractWriter drops
+    private final class RecordWriter extends AbstractWriter {
+        private final String[] rootAttributes;
+        private int openNodes = 0;
+        private boolean rootAttributesWritten = false;
+        // Where the characters of the hash placeholder start in the frame
+        private int hashOffset = -1;
+
+        RecordWriter(String[] rootAttributes) {
+            this.rootAttributes = rootAttributes;
+        }
+
+        private int intern(String string) {
+            Integer id = dictionary.get(string);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(string, id);
+                writeVarint(frame, DEFINE);
+                writeString(frame, string);
+            }
+            return id;
+        }
+
+        // As in ObjectXMLWriter, root attributes follow the attributes added by XStream
+        private void writeRootAttributes() {
+            if (openNodes == 1 && !rootAttributesWritten) {
+                rootAttributesWritten = true;
+                for (int i = 0; i + 1 < rootAttributes.length; i += 2) {
+                    int nameId = intern(rootAttributes[i]);
+                    writeVarint(frame, LITERAL_ATTRIBUTE);
+                    writeVarint(frame, nameId);
+                    if (rootAttributes[i + 1] == ObjectStore.HASH_PLACEHOLDER) {
+                        hashOffset = frame.size() + 1;
+                    }
+                    writeString(frame, rootAttributes[i + 1]);
+                }
+            }
+        }
+
+        @Override
+        public void startNode(String name) {
+            writeRootAttributes();
+            openNodes++;
+            int nameId = intern(name);
+            writeVarint(frame, START_NODE);
+            writeVarint(frame, nameId);
+        }
+
+        @Override
+        public void addAttribute(String name, String value) {
+            int nameId = intern(name);
+            int valueId = intern(value);
+            writeVarint(frame, ATTRIBUTE);
+            writeVarint(frame, nameId);
+            writeVarint(frame, valueId);
+        }
+
+        @Override
+        public void setValue(String text) {
+            writeRootAttributes();
+            writeVarint(frame, VALUE);
+            writeString(frame, text);
+        }
+
+        @Override
+        public void endNode() {
+            writeRootAttributes();
+            openNodes--;
+            writeVarint(frame, END_NODE);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.SingleValueConverterWrapper;
+import com.thoughtworks.xstream.converters.collections.ArrayConverter;
+import com.thoughtworks.xstream.converters.collections.CollectionConverter;
+import com.thoughtworks.xstream.converters.collections.MapConverter;
+import com.thoughtworks.xstream.core.ReferenceByXPathMarshaller;
+import com.thoughtworks.xstream.core.ReferenceByXPathMarshallingStrategy;
+import com.thoughtworks.xstream.core.TreeMarshaller;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.WriterWrapper;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * Marshals object graphs within bounds, so that capturing an object that
+ * reaches, e.g., a large cache takes bounded time and space. A branch is
+ * truncated, its node written empty with a pankti-truncated attribute
+ * that gives the reason, when:
+ * <ul>
+ *     <li>denied: its class, a superclass, or an interface is in captureDeniedClasses
+ *     (a class name, or a package name followed by .*)</li>
+ *     <li>size: the record already holds captureMaxRecordKB of names and values</li>
+ *     <li>depth: it is an object nested captureMaxDepth levels deep (single values are kept)</li>
+ * </ul>
+ * Collections, maps, and arrays with more than captureMaxElements
+ * elements keep their first elements, and are marked as truncated with
+ * the reason elements. pankti-generate skips profiles with truncated
+ * branches. Unmarshalling is unchanged.
+ */
+public final class BoundedGraphMarshallingStrategy extends ReferenceByXPathMarshallingStrategy {
+    static final String TRUNCATED_ATTRIBUTE = "pankti-truncated";
+    private static final long KILOBYTE = 1024;
+
+    private final int maxDepth;
+    private final int maxElements;
+    private final long maxRecordChars;
+    private final ClassValue<Boolean> deniedClasses;
+
+    // Limits of 0 are unbounded
+    public BoundedGraphMarshallingStrategy(int maxDepth, int maxElements, long maxRecordChars,
+                                           List<String> deniedClassNames) {
+        super(RELATIVE);
+        this.maxDepth = maxDepth;
+        this.maxElements = maxElements;
+        this.maxRecordChars = maxRecordChars;
+        Set<String> deniedNames = new HashSet<>(deniedClassNames);
+        this.deniedClasses = new ClassValue<>() {
+            @Override
+            protected Boolean computeValue(Class<?> type) {
+                return isDenied(type, deniedNames);
+            }
+        };
+    }
+
+    // The strategy for the configured limits, or null if object graphs are unbounded
+    public static BoundedGraphMarshallingStrategy getConfigured() {
+        int maxDepth = (int) CaptureConfig.getLong("captureMaxDepth", 0);
+        int maxElements = (int) CaptureConfig.getLong("captureMaxElements", 0);
+        long maxRecordChars = CaptureConfig.getLong("captureMaxRecordKB", 0) * KILOBYTE;
+        List<String> deniedClassNames = CaptureConfig.getList("captureDeniedClasses");
+        if (maxDepth <= 0 && maxElements <= 0 && maxRecordChars <= 0 && deniedClassNames.isEmpty()) {
+            return null;
+        }
+        return new BoundedGraphMarshallingStrategy(maxDepth, maxElements, maxRecordChars, deniedClassNames);
+    }
+
+    private static boolean isDenied(Class<?> type, Set<String> deniedNames) {
+        for (Class<?> superType = type; superType != null; superType = superType.getSuperclass()) {
+            if (matches(superType.getName(), deniedNames)) {
+                return true;
+            }
+            for (Class<?> implemented : superType.getInterfaces()) {
+                if (isDenied(implemented, deniedNames)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String className, Set<String> deniedNames) {
+        if (deniedNames.contains(className)) {
+            return true;
+        }
+        for (int dot = className.lastIndexOf('.'); dot > 0; dot = className.lastIndexOf('.', dot - 1)) {
+            if (deniedNames.contains(className.substring(0, dot) + ".*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected TreeMarshaller createMarshallingContext(HierarchicalStreamWriter writer,
+                                                      ConverterLookup converterLookup, Mapper mapper) {
+        return new BoundedMarshaller(new CountingWriter(writer), converterLookup, mapper);
+    }
+
+    /**
+     * Counts the characters of the names and values of a record. Once the
+     * record is truncated for its size, the nodes that follow are dropped,
+     * so that, e.g., the rest of a collection is not written, and only the
+     * nodes that are still open are ended.
+     */
+    private static final class CountingWriter extends WriterWrapper {
+        private long chars = 0;
+        private boolean full = false;
+        private int droppedNodes = 0;
+
+        CountingWriter(HierarchicalStreamWriter wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public void startNode(String name) {
+            if (full) {
+                droppedNodes++;
+                return;
+            }
+            chars += name.length();
+            super.startNode(name);
+        }
+
+        @Override
+        public void startNode(String name, Class clazz) {
+            if (full) {
+                droppedNodes++;
+                return;
+            }
+            chars += name.length();
+            super.startNode(name, clazz);
+        }
+
+        @Override
+        public void addAttribute(String name, String value) {
+            if (droppedNodes > 0) {
+                return;
+            }
+            chars += name.length() + value.length();
+            super.addAttribute(name, value);
+        }
+
+        @Override
+        public void setValue(String text) {
+            if (droppedNodes > 0) {
+                return;
+            }
+            chars += text.length();
+            super.setValue(text);
+        }
+
+        @Override
+        public void endNode() {
+            if (droppedNodes > 0) {
+                droppedNodes--;
+                return;
+            }
+            super.endNode();
+        }
+    }
+
+    private final class BoundedMarshaller extends ReferenceByXPathMarshaller {
+        private final CountingWriter countingWriter;
+        private int depth = 0;
+
+        BoundedMarshaller(CountingWriter countingWriter, ConverterLookup converterLookup, Mapper mapper) {
+            super(countingWriter, converterLookup, mapper, RELATIVE);
+            this.countingWriter = countingWriter;
+        }
+
+        // The node of the item is already started, so a truncated item only gets the attribute
+        @Override
+        public void convert(Object item, Converter converter) {
+            if (item == null) {
+                super.convert(item, converter);
+                return;
+            }
+            String truncation = truncationOf(item, converter);
+            if (truncation != null) {
+                writer.addAttribute(TRUNCATED_ATTRIBUTE, truncation);
+                if (truncation.equals("size")) {
+                    countingWriter.full = true;
+                }
+                return;
+            }
+            depth++;
+            try {
+                super.convert(withBoundedElements(item, converter), converter);
+            } finally {
+                depth--;
+            }
+        }
+
+        private String truncationOf(Object item, Converter converter) {
+            if (deniedClasses.get(item.getClass())) {
+                return "denied";
+            }
+            if (countingWriter.full || maxRecordChars > 0 && countingWriter.chars >= maxRecordChars) {
+                return "size";
+            }
+            if (maxDepth > 0 && depth >= maxDepth && !(converter instanceof SingleValueConverterWrapper)) {
+                return "depth";
+            }
+            return null;
+        }
+
+        /**
+         * The first elements of a collection, map, or array that is too
+         * large, for the converters that only iterate over their elements.
+         * The copy stands in for the item in XStream's references.
+         */
+        private Object withBoundedElements(Object item, Converter converter) {
+            if (maxElements <= 0) {
+                return item;
+            }
+            Class<?> converterType = converter.getClass();
+            if (converterType == CollectionConverter.class && ((Collection<?>) item).size() > maxElements) {
+                writer.addAttribute(TRUNCATED_ATTRIBUTE, "elements");
+                List<Object> elements = new ArrayList<>(maxElements);
+                Iterator<?> iterator = ((Collection<?>) item).iterator();
+                while (elements.size() < maxElements) {
+                    elements.add(iterator.next());
+                }
+                return elements;
+            }
+            if (converterType == MapConverter.class && ((Map<?, ?>) item).size() > maxElements) {
+                writer.addAttribute(TRUNCATED_ATTRIBUTE, "elements");
+                Map<Object, Object> entries = new LinkedHashMap<>();
+                Iterator<? extends Map.Entry<?, ?>> iterator = ((Map<?, ?>) item).entrySet().iterator();
+                while (entries.size() < maxElements) {
+                    Map.Entry<?, ?> entry = iterator.next();
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+                return entries;
+            }
+            if (converterType == ArrayConverter.class && Array.getLength(item) > maxElements) {
+                writer.addAttribute(TRUNCATED_ATTRIBUTE, "elements");
+                Object elements = Array.newInstance(item.getClass().getComponentType(), maxElements);
+                System.arraycopy(item, 0, elements, 0, maxElements);
+                return elements;
+            }
+            return item;
+        }
+    }
+}
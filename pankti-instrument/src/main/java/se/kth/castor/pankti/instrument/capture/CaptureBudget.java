@@ -0,0 +1,73 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the size of the object profiles of an aspect in memory, so
+ * that enforcing the size limits does not need to stat its files.
+ * Each object file of an aspect has its own limit, as when the files were
+ * checked one by one, and all aspects share a global limit, both read
+ * from the current CaptureControl snapshot, so that they can be raised or
+ * lowered while the application runs.
+ */
+public final class CaptureBudget {
+    // The per-method limit of the CaptureControl snapshot
+    private static final long CONTROLLED_LIMIT = -1;
+    private static final AtomicLong globalBytes = new AtomicLong();
+    private static volatile boolean captureDisabled = false;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<String, AtomicLong> fileBytes = new ConcurrentHashMap<>();
+    private final AtomicLong largestFileBytes = new AtomicLong();
+    private final long limitBytes;
+
+    CaptureBudget(long limitBytes) {
+        this.limitBytes = limitBytes;
+    }
+
+    // Starts from the size of the profiles left by earlier runs, read once from the profile sink
+    public static CaptureBudget forFiles(String... objectFilePaths) {
+        CaptureBudget budget = new CaptureBudget(CONTROLLED_LIMIT);
+        ProfileSink sink = ProfileStorage.getSink();
+        for (String objectFilePath : objectFilePaths) {
+            budget.record(objectFilePath, sink.size(objectFilePath));
+        }
+        return budget;
+    }
+
+    public void record(String objectFilePath, long writtenBytes) {
+        long writtenToFile = fileBytes.computeIfAbsent(objectFilePath, path -> new AtomicLong())
+                .addAndGet(writtenBytes);
+        largestFileBytes.accumulateAndGet(writtenToFile, Math::max);
+        bytes.addAndGet(writtenBytes);
+        globalBytes.addAndGet(writtenBytes);
+    }
+
+    // The bytes of all object files of the aspect
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public static long getGlobalBytes() {
+        return globalBytes.get();
+    }
+
+    // Stops all aspects from capturing objects, e.g., when the storage directory cannot be set up
+    public static void disableCapture() {
+        captureDisabled = true;
+    }
+
+    public boolean isWithinLimits() {
+        if (captureDisabled) {
+            return false;
+        }
+        CaptureControl.Snapshot snapshot = CaptureControl.snapshot();
+        long methodLimitBytes = limitBytes == CONTROLLED_LIMIT ? snapshot.getMethodLimitBytes() : limitBytes;
+        // A global limit of 0 means that only the per-method limits apply
+        long globalLimitBytes = snapshot.getGlobalLimitBytes();
+        return largestFileBytes.get() < methodLimitBytes
+                && (globalLimitBytes <= 0 || globalBytes.get() < globalLimitBytes);
+    }
+}
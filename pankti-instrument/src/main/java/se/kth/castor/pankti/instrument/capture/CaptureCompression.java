@@ -0,0 +1,35 @@
+package se.kth.castor.pankti.instrument.capture;
+
+/**
+ * Whether object files are compressed as they are written. GZIP object
+ * files have a .gz extension after that of the capture format, and are
+ * written by ObjectFileWriters as a series of GZIP members (see
+ * CompressedBlockOutputStream), which standard GZIP readers decompress
+ * as one stream. Profiles are only compressed in the file layout.
+ */
+public enum CaptureCompression {
+    NONE(""),
+    GZIP(".gz");
+
+    private static final CaptureCompression configured = ProfileStorage.isFileLayout()
+            ? CaptureConfig.getEnum("captureCompression", CaptureCompression.class, NONE)
+            : NONE;
+
+    private final String extension;
+
+    CaptureCompression(String extension) {
+        this.extension = extension;
+    }
+
+    public static CaptureCompression getConfigured() {
+        return configured;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    static boolean isCompressed(String filePath) {
+        return filePath.endsWith(GZIP.extension);
+    }
+}
@@ -0,0 +1,98 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.config.ConfigService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads capture settings, first from a system property named
+ * {@code pankti.<name>}, then from the plugin properties declared
+ * in META-INF/glowroot.plugin.json
+ */
+public final class CaptureConfig {
+    public static final String PLUGIN_ID = "pankti-rick-plugin";
+    private static final String SYSTEM_PROPERTY_PREFIX = "pankti.";
+    private static final ConfigService configService = lookUpConfigService();
+
+    private CaptureConfig() {
+    }
+
+    // The plugin service is unavailable outside the Glowroot agent, e.g., in unit tests
+    private static ConfigService lookUpConfigService() {
+        try {
+            return Agent.getConfigService(PLUGIN_ID);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (value == null && configService != null) {
+            value = configService.getStringProperty(name).value();
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (value != null && !value.isBlank()) {
+            return Long.parseLong(value.trim());
+        }
+        if (configService != null) {
+            Double pluginValue = configService.getDoubleProperty(name).value();
+            if (pluginValue != null) {
+                return pluginValue.longValue();
+            }
+        }
+        return defaultValue;
+    }
+
+    public static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (value != null && !value.isBlank()) {
+            return Double.parseDouble(value.trim());
+        }
+        if (configService != null) {
+            Double pluginValue = configService.getDoubleProperty(name).value();
+            if (pluginValue != null) {
+                return pluginValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (value != null && !value.isBlank()) {
+            return Boolean.parseBoolean(value.trim());
+        }
+        return configService == null ? defaultValue : configService.getBooleanProperty(name).value();
+    }
+
+    // Entries of a list property, or of a system property separated by ';'
+    public static List<String> getList(String name) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        List<String> entries = new ArrayList<>();
+        if (value != null) {
+            entries.addAll(Arrays.asList(value.split(";")));
+        } else if (configService != null) {
+            entries.addAll(configService.getListProperty(name).value());
+        }
+        entries.replaceAll(String::trim);
+        entries.removeIf(String::isEmpty);
+        return entries;
+    }
+
+    public static <E extends Enum<E>> E getEnum(String name, Class<E> enumType, E defaultValue) {
+        String value = getString(name, defaultValue.name());
+        try {
+            return Enum.valueOf(enumType, value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Capture settings that can be changed while the application runs, without
+ * regenerating aspects or restarting the JVM: whether capture is enabled,
+ * which methods are disabled, sampling policies, profile size limits, and
+ * the methods of the dispatcher aspects. They are read from the properties
+ * file given by controlFile, which is polled for changes along with the
+ * dispatchMethods file, and can be set over JMX with captureControlMBean.
+ * <p>
+ * Every change publishes a new immutable Snapshot, so that advice reads
+ * the settings with one volatile read, and never waits for a reload.
+ * Settings that neither the control file nor JMX set keep their plugin
+ * properties.
+ */
+public final class CaptureControl implements CaptureControlMBean {
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final CaptureControl instance = new CaptureControl(controlFilePath());
+    private static volatile Snapshot snapshot = Snapshot.create(new Properties(), null, true);
+
+    static {
+        instance.methodListModified = lastModified(methodListPath(snapshot));
+        if (instance.controlFile != null) {
+            instance.reload();
+        }
+        CaptureLifecycle.scheduleAtFixedRate(instance::reloadIfModified,
+                CaptureConfig.getLong("controlPollIntervalMillis", 1000));
+        if (CaptureConfig.getBoolean("captureControlMBean", false)) {
+            instance.registerMBean();
+        }
+    }
+
+    private final Path controlFile;
+    private final Properties jmxSettings = new Properties();
+    private long controlFileModified;
+    private long methodListModified;
+
+    CaptureControl(Path controlFile) {
+        this.controlFile = controlFile;
+    }
+
+    /**
+     * The settings of one version of the configuration. Methods are
+     * identified by their FQN, as in the generated aspects.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final boolean captureEnabled;
+        private final Set<String> disabledMethods;
+        private final String samplingPolicy;
+        private final Map<String, String> samplingPolicies;
+        private final long methodLimitBytes;
+        private final long globalLimitBytes;
+        private final String dispatchMethods;
+        private final MethodTable methodTable;
+
+        private Snapshot(long version, boolean captureEnabled, Set<String> disabledMethods, String samplingPolicy,
+                         Map<String, String> samplingPolicies, long methodLimitBytes, long globalLimitBytes,
+                         String dispatchMethods, MethodTable methodTable) {
+            this.version = version;
+            this.captureEnabled = captureEnabled;
+            this.disabledMethods = disabledMethods;
+            this.samplingPolicy = samplingPolicy;
+            this.samplingPolicies = samplingPolicies;
+            this.methodLimitBytes = methodLimitBytes;
+            this.globalLimitBytes = globalLimitBytes;
+            this.dispatchMethods = dispatchMethods;
+            this.methodTable = methodTable;
+        }
+
+        // The method table is only read again when its file changes
+        static Snapshot create(Properties settings, Snapshot previous, boolean reloadMethodTable) {
+            Map<String, String> samplingPolicies = new HashMap<>();
+            for (String entry : split(settings.getProperty("samplingPolicies", ""))) {
+                int separator = entry.lastIndexOf('=');
+                if (separator > 0) {
+                    samplingPolicies.put(entry.substring(0, separator).trim(), entry.substring(separator + 1).trim());
+                }
+            }
+            String samplingPolicy = settings.getProperty("samplingPolicy", "").trim();
+            String dispatchMethods = settings.getProperty("dispatchMethods",
+                    CaptureConfig.getString("dispatchMethods", "")).trim();
+            MethodTable methodTable = previous == null || reloadMethodTable
+                    || !previous.dispatchMethods.equals(dispatchMethods)
+                    ? MethodTable.loadOrEmpty(dispatchMethods)
+                    : previous.methodTable;
+            return new Snapshot(previous == null ? 0 : previous.version + 1,
+                    Boolean.parseBoolean(settings.getProperty("captureEnabled", "true").trim()),
+                    Set.copyOf(list(settings, "disabledMethods")),
+                    samplingPolicy.isEmpty() ? null : samplingPolicy,
+                    Map.copyOf(samplingPolicies),
+                    megabytes(settings, "methodProfileSizeLimitMB", 200),
+                    megabytes(settings, "globalProfileSizeLimitMB", 0),
+                    dispatchMethods,
+                    methodTable);
+        }
+
+        private static List<String> list(Properties settings, String name) {
+            String value = settings.getProperty(name);
+            return value == null ? CaptureConfig.getList(name) : split(value);
+        }
+
+        // Settings of the control file and JMX are separated by ';', as in system properties
+        private static List<String> split(String value) {
+            List<String> entries = new ArrayList<>();
+            for (String entry : value.split(";")) {
+                if (!entry.isBlank()) {
+                    entries.add(entry.trim());
+                }
+            }
+            return entries;
+        }
+
+        private static long megabytes(Properties settings, String name, long defaultValue) {
+            String value = settings.getProperty(name);
+            return (value == null ? CaptureConfig.getLong(name, defaultValue) : Long.parseLong(value.trim())) * MEGABYTE;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isEnabled(String methodFQN) {
+            return captureEnabled && !disabledMethods.contains(methodFQN);
+        }
+
+        // The sampling policy set for the method here, or null to keep the one of the plugin properties
+        public String getSamplingPolicy(String methodFQN) {
+            return samplingPolicies.getOrDefault(methodFQN, samplingPolicy);
+        }
+
+        public long getMethodLimitBytes() {
+            return methodLimitBytes;
+        }
+
+        public long getGlobalLimitBytes() {
+            return globalLimitBytes;
+        }
+
+        public MethodTable getMethodTable() {
+            return methodTable;
+        }
+    }
+
+    public static Snapshot snapshot() {
+        return snapshot;
+    }
+
+    static CaptureControl getInstance() {
+        return instance;
+    }
+
+    private static Path controlFilePath() {
+        String controlFile = CaptureConfig.getString("controlFile", "");
+        return controlFile.isEmpty() ? null : Paths.get(controlFile);
+    }
+
+    private static Path methodListPath(Snapshot snapshot) {
+        return snapshot.dispatchMethods.isEmpty() ? null : Paths.get(snapshot.dispatchMethods);
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return path == null ? 0L : Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("se.kth.castor.pankti:type=CaptureControl"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void reloadIfModified() {
+        if (lastModified(controlFile) != controlFileModified
+                || lastModified(methodListPath(snapshot)) != methodListModified) {
+            reload();
+        }
+    }
+
+    // Publishes the settings of the control file and JMX, or keeps the current ones if they cannot be read
+    @Override
+    public synchronized void reload() {
+        Properties settings = new Properties();
+        long fileModified = lastModified(controlFile);
+        try {
+            if (controlFile != null && Files.exists(controlFile)) {
+                try (Reader reader = Files.newBufferedReader(controlFile)) {
+                    settings.load(reader);
+                }
+            }
+            settings.putAll(jmxSettings);
+            Snapshot current = snapshot;
+            Snapshot updated = Snapshot.create(settings, current,
+                    lastModified(methodListPath(current)) != methodListModified);
+            methodListModified = lastModified(methodListPath(updated));
+            snapshot = updated;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+        controlFileModified = fileModified;
+    }
+
+    private synchronized void override(String name, String value) {
+        jmxSettings.setProperty(name, value);
+        reload();
+    }
+
+    @Override
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    @Override
+    public boolean isCaptureEnabled() {
+        return snapshot.captureEnabled;
+    }
+
+    @Override
+    public void setCaptureEnabled(boolean captureEnabled) {
+        override("captureEnabled", String.valueOf(captureEnabled));
+    }
+
+    @Override
+    public synchronized void disableMethod(String methodFQN) {
+        Set<String> disabledMethods = new TreeSet<>(snapshot.disabledMethods);
+        disabledMethods.add(methodFQN);
+        override("disabledMethods", String.join(";", disabledMethods));
+    }
+
+    @Override
+    public synchronized void enableMethod(String methodFQN) {
+        Set<String> disabledMethods = new TreeSet<>(snapshot.disabledMethods);
+        disabledMethods.remove(methodFQN);
+        override("disabledMethods", String.join(";", disabledMethods));
+    }
+
+    // An empty methodFQN sets the sampling policy of all methods
+    @Override
+    public synchronized void setSamplingPolicy(String methodFQN, String spec) {
+        SamplingPolicies.parse(spec, Object::toString);
+        if (methodFQN.isEmpty()) {
+            override("samplingPolicy", spec);
+            return;
+        }
+        Map<String, String> samplingPolicies = new TreeMap<>(snapshot.samplingPolicies);
+        samplingPolicies.put(methodFQN, spec);
+        StringJoiner entries = new StringJoiner(";");
+        samplingPolicies.forEach((method, methodSpec) -> entries.add(method + "=" + methodSpec));
+        override("samplingPolicies", entries.toString());
+    }
+
+    @Override
+    public void setMethodProfileSizeLimitMB(long limitMB) {
+        override("methodProfileSizeLimitMB", String.valueOf(limitMB));
+    }
+
+    @Override
+    public void setGlobalProfileSizeLimitMB(long limitMB) {
+        override("globalProfileSizeLimitMB", String.valueOf(limitMB));
+    }
+
+    @Override
+    public synchronized void resetOverrides() {
+        jmxSettings.clear();
+        reload();
+    }
+}
@@ -0,0 +1,27 @@
+package se.kth.castor.pankti.instrument.capture;
+
+/**
+ * Changes capture settings over JMX while the application runs. Settings
+ * set here take precedence over those of the control file, until reset.
+ */
+public interface CaptureControlMBean {
+    long getVersion();
+
+    boolean isCaptureEnabled();
+
+    void setCaptureEnabled(boolean captureEnabled);
+
+    void disableMethod(String methodFQN);
+
+    void enableMethod(String methodFQN);
+
+    void setSamplingPolicy(String methodFQN, String spec);
+
+    void setMethodProfileSizeLimitMB(long limitMB);
+
+    void setGlobalProfileSizeLimitMB(long limitMB);
+
+    void reload();
+
+    void resetOverrides();
+}
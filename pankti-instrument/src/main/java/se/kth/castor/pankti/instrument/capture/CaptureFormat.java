@@ -0,0 +1,83 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * The format of the records in object files. XML records are the
+ * XStream XML that pankti-generate has always read. BINARY records
+ * (see BinaryRecordFile) are smaller and cheaper to write, and
+ * pankti-generate converts them back to the same XML when it reads them.
+ */
+public enum CaptureFormat {
+    XML(".xml") {
+        @Override
+        long appendRecord(String filePath, Consumer<HierarchicalStreamWriter> marshaller,
+                          ObjectStore.ContentHash contentHash, String... rootAttributes) throws IOException {
+            try (RecordBuffer record = RecordBuffer.forCurrentThread()) {
+                ObjectXMLWriter.marshal(marshaller, record, rootAttributes);
+                if (contentHash != null) {
+                    if (contentHash.isStored()) {
+                        return -1;
+                    }
+                    // Root attributes are in the start tag of the root, at the head of the record
+                    String placeholder = ObjectStore.HASH_ATTRIBUTE + "=\"" + ObjectStore.HASH_PLACEHOLDER + "\"";
+                    if (!record.replace(placeholder, ObjectStore.HASH_ATTRIBUTE + "=\"" + contentHash.toHex() + "\"")) {
+                        throw new IllegalStateException("No hash attribute in the record for " + filePath);
+                    }
+                }
+                record.write("\n");
+                return ProfileStorage.getSink().append(filePath, record);
+            }
+        }
+    },
+    BINARY(".bin") {
+        @Override
+        long appendRecord(String filePath, Consumer<HierarchicalStreamWriter> marshaller,
+                          ObjectStore.ContentHash contentHash, String... rootAttributes) throws IOException {
+            return BinaryRecordFile.forFile(filePath).append(marshaller, contentHash, rootAttributes);
+        }
+    };
+
+    private static final CaptureFormat configured = CaptureConfig.getEnum("captureFormat", CaptureFormat.class, XML);
+
+    private final String extension;
+
+    CaptureFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public static CaptureFormat getConfigured() {
+        return configured;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Appends one record to the object file, with the content that the
+     * marshaller writes and the given root attributes (name, value pairs).
+     * Returns the bytes that the record takes in the file, which are
+     * estimated for compressed files. Objects already stored in the file
+     * are only referenced when objects are deduplicated (see ObjectStore).
+     */
+    public long append(String filePath, Consumer<HierarchicalStreamWriter> marshaller,
+                       String... rootAttributes) throws IOException {
+        ObjectStore objectStore = ObjectStore.forFile(filePath);
+        long size = objectStore == null
+                ? appendRecord(filePath, marshaller, null, rootAttributes)
+                : objectStore.append(this, filePath, marshaller, rootAttributes);
+        return ProfileStorage.getSink().storedSize(filePath, size);
+    }
+
+    /**
+     * Appends one record, and returns its size. With a content hash, the
+     * record is dropped, and -1 returned, if its object is already stored,
+     * and otherwise its hash is written in place of the placeholder.
+     */
+    abstract long appendRecord(String filePath, Consumer<HierarchicalStreamWriter> marshaller,
+                               ObjectStore.ContentHash contentHash, String... rootAttributes) throws IOException;
+}
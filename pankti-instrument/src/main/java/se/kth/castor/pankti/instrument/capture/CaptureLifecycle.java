@@ -0,0 +1,67 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the periodic tasks of the capture components on one background
+ * thread, and their shutdown tasks in a single JVM shutdown hook, one
+ * phase after the other, so that queued captures are drained before
+ * the files they go to are closed
+ */
+public final class CaptureLifecycle {
+    public enum Phase {
+        DRAIN,
+        FLUSH,
+        CLOSE
+    }
+
+    private static final Map<Phase, List<Runnable>> shutdownTasks = new EnumMap<>(Phase.class);
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pankti-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        for (Phase phase : Phase.values()) {
+            shutdownTasks.put(phase, new CopyOnWriteArrayList<>());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(CaptureLifecycle::runShutdownTasks, "pankti-shutdown"));
+    }
+
+    private CaptureLifecycle() {
+    }
+
+    public static void onShutdown(Phase phase, Runnable task) {
+        shutdownTasks.get(phase).add(task);
+    }
+
+    public static void scheduleAtFixedRate(Runnable task, long periodMillis) {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static void runShutdownTasks() {
+        scheduler.shutdown();
+        for (Phase phase : Phase.values()) {
+            for (Runnable task : shutdownTasks.get(phase)) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the overhead that capturing adds, per object file of each
+ * aspect: how long records take to serialize, how large they are, and how
+ * long their writes take in all, which includes waiting for other writes
+ * to the same file. For the capture pipeline, it counts
+ * the records pending when invocations are admitted, how long records wait
+ * for a writer thread, and the invocations dropped.
+ * <p>
+ * The metrics are written periodically, and when the JVM shuts down, to
+ * pankti-metrics.json in the storage directory, and can be exposed over
+ * JMX with captureMetricsMBean.
+ */
+public final class CaptureMetrics implements CaptureMetricsMBean {
+    static final String METRICS_FILE = "pankti-metrics.json";
+    private static final boolean enabled = CaptureConfig.getBoolean("captureMetrics", true);
+    private static final CaptureMetrics instance = new CaptureMetrics();
+
+    static {
+        if (enabled) {
+            long intervalMillis = CaptureConfig.getLong("metricsIntervalMillis", 10000);
+            if (intervalMillis > 0) {
+                CaptureLifecycle.scheduleAtFixedRate(CaptureMetrics::writeMetricsFile, intervalMillis);
+                CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.FLUSH, CaptureMetrics::writeMetricsFile);
+            }
+            if (CaptureConfig.getBoolean("captureMetricsMBean", false)) {
+                instance.registerMBean();
+            }
+        }
+    }
+
+    private final Map<String, FileMetrics> files = new ConcurrentHashMap<>();
+    private final Histogram queueDepth = new Histogram();
+    private final Histogram queueNanos = new Histogram();
+
+    private CaptureMetrics() {
+    }
+
+    static final class FileMetrics {
+        // The aspect that writes the file, if it registered its files
+        private final String methodFQN;
+        private final Histogram serializationNanos = new Histogram();
+        private final Histogram recordBytes = new Histogram();
+        private final Histogram writeNanos = new Histogram();
+
+        FileMetrics(String methodFQN) {
+            this.methodFQN = methodFQN;
+        }
+
+        // Writes that went through the pipeline, or the serialization of those that did not
+        long getCaptureNanos() {
+            return Math.max(writeNanos.getSum(), serializationNanos.getSum());
+        }
+
+        // Writes that went through the pipeline, less their serialization
+        long getBlockedNanos() {
+            return writeNanos.getCount() == 0 ? 0L : Math.max(0L, writeNanos.getSum() - serializationNanos.getSum());
+        }
+    }
+
+    static CaptureMetrics getInstance() {
+        return instance;
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("se.kth.castor.pankti:type=CaptureMetrics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private FileMetrics forFile(String objectFilePath) {
+        return files.computeIfAbsent(objectFilePath, path -> new FileMetrics(null));
+    }
+
+    // Attributes the metrics of the object files to the aspect of the method, for the OverheadGovernor
+    public static void registerMethodFiles(String methodFQN, String... objectFilePaths) {
+        if (enabled) {
+            for (String objectFilePath : objectFilePaths) {
+                instance.files.putIfAbsent(objectFilePath, new FileMetrics(methodFQN));
+            }
+        }
+    }
+
+    // The time spent capturing the objects of each registered method, since the start
+    Map<String, Long> getCaptureNanosByMethod() {
+        Map<String, Long> captureNanos = new HashMap<>();
+        for (FileMetrics metrics : files.values()) {
+            if (metrics.methodFQN != null) {
+                captureNanos.merge(metrics.methodFQN, metrics.getCaptureNanos(), Long::sum);
+            }
+        }
+        return captureNanos;
+    }
+
+    // The marshalling and append of one record
+    public static void recordSerialization(String objectFilePath, long nanos, long bytes) {
+        if (enabled) {
+            FileMetrics metrics = instance.forFile(objectFilePath);
+            metrics.serializationNanos.record(nanos);
+            metrics.recordBytes.record(bytes);
+        }
+    }
+
+    // A whole write submitted to the pipeline, including waiting for other writes to the file
+    static void recordWrite(String objectFilePath, long nanos) {
+        if (enabled) {
+            instance.forFile(objectFilePath).writeNanos.record(nanos);
+        }
+    }
+
+    static void recordQueueDepth(long pendingRecords) {
+        if (enabled) {
+            instance.queueDepth.record(pendingRecords);
+        }
+    }
+
+    static void recordQueueWait(long nanos) {
+        if (enabled) {
+            instance.queueNanos.record(nanos);
+        }
+    }
+
+    public static void writeMetricsFile() {
+        try {
+            instance.writeTo(Paths.get(ProfileStorage.getDirectory(), METRICS_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Replaces the file at once, so that readers never see a partial file
+    void writeTo(Path metricsFile) throws IOException {
+        Files.createDirectories(metricsFile.toAbsolutePath().getParent());
+        Path temporaryFile = metricsFile.resolveSibling(metricsFile.getFileName() + ".tmp");
+        Files.writeString(temporaryFile, toJson(), StandardCharsets.UTF_8);
+        try {
+            Files.move(temporaryFile, metricsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, metricsFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    String toJson() {
+        CapturePipeline capturePipeline = CapturePipeline.getInstance();
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        json.append("  \"captureMode\": \"").append(capturePipeline.getMode()).append("\",\n");
+        json.append("  \"records\": ").append(getRecords()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(getBytesWritten()).append(",\n");
+        json.append("  \"serializationNanos\": ").append(getSerializationNanos()).append(",\n");
+        json.append("  \"blockedNanos\": ").append(getBlockedNanos()).append(",\n");
+        json.append("  \"droppedInvocations\": ").append(capturePipeline.getDroppedInvocations()).append(",\n");
+        json.append("  \"pendingRecords\": ").append(capturePipeline.getPendingRecords()).append(",\n");
+        json.append("  \"queueDepth\": ").append(queueDepth.toJson()).append(",\n");
+        json.append("  \"queueWaitNanos\": ").append(queueNanos.toJson()).append(",\n");
+        json.append("  \"files\": {");
+        String storageDirectory = ProfileStorage.getDirectory();
+        String separator = "\n";
+        for (Map.Entry<String, FileMetrics> file : new TreeMap<>(files).entrySet()) {
+            String name = file.getKey().startsWith(storageDirectory)
+                    ? file.getKey().substring(storageDirectory.length())
+                    : file.getKey();
+            FileMetrics metrics = file.getValue();
+            json.append(separator).append("    \"").append(escape(name)).append("\": {\n");
+            json.append("      \"serializationNanos\": ").append(metrics.serializationNanos.toJson()).append(",\n");
+            json.append("      \"recordBytes\": ").append(metrics.recordBytes.toJson()).append(",\n");
+            json.append("      \"writeNanos\": ").append(metrics.writeNanos.toJson()).append(",\n");
+            json.append("      \"blockedNanos\": ").append(metrics.getBlockedNanos()).append("\n");
+            json.append("    }");
+            separator = ",\n";
+        }
+        json.append(files.isEmpty() ? "}\n" : "\n  }\n");
+        return json.append("}\n").toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public long getRecords() {
+        long records = 0L;
+        for (FileMetrics metrics : files.values()) {
+            records += metrics.recordBytes.getCount();
+        }
+        return records;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        long bytes = 0L;
+        for (FileMetrics metrics : files.values()) {
+            bytes += metrics.recordBytes.getSum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getSerializationNanos() {
+        long nanos = 0L;
+        for (FileMetrics metrics : files.values()) {
+            nanos += metrics.serializationNanos.getSum();
+        }
+        return nanos;
+    }
+
+    // The largest 99th percentile of the files
+    @Override
+    public long getSerializationNanosP99() {
+        long nanos = 0L;
+        for (FileMetrics metrics : files.values()) {
+            nanos = Math.max(nanos, metrics.serializationNanos.getPercentile(0.99));
+        }
+        return nanos;
+    }
+
+    @Override
+    public long getBlockedNanos() {
+        long nanos = 0L;
+        for (FileMetrics metrics : files.values()) {
+            nanos += metrics.getBlockedNanos();
+        }
+        return nanos;
+    }
+
+    @Override
+    public long getDroppedInvocations() {
+        return CapturePipeline.getInstance().getDroppedInvocations();
+    }
+
+    @Override
+    public long getPendingRecords() {
+        return CapturePipeline.getInstance().getPendingRecords();
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return queueDepth.getMax();
+    }
+}
@@ -0,0 +1,22 @@
+package se.kth.castor.pankti.instrument.capture;
+
+/**
+ * Exposes the overhead of capturing over JMX, e.g., as Glowroot gauges
+ */
+public interface CaptureMetricsMBean {
+    long getRecords();
+
+    long getBytesWritten();
+
+    long getSerializationNanos();
+
+    long getSerializationNanosP99();
+
+    long getBlockedNanos();
+
+    long getDroppedInvocations();
+
+    long getPendingRecords();
+
+    long getQueueDepthMax();
+}
@@ -0,0 +1,179 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides where captured objects are serialized. In SYNC mode, the
+ * serialization runs on the application thread, as it always has.
+ * In ASYNC mode, the advice only hands off the objects, and a pool of
+ * writer threads performs the XStream marshalling and the file appends.
+ * <p>
+ * Records for the same file always go to the same writer thread, so
+ * each object file keeps the order in which invocations were captured,
+ * and writes to a file never run concurrently: in SYNC mode, they are
+ * serialized by a lock per file instead. The aspects therefore write
+ * their files without locks of their own, and the writer threads of
+ * different files never wait for each other.
+ * The number of pending records is bounded; an invocation reserves room
+ * for all of its records up front, so that a full queue drops (or blocks)
+ * the whole invocation instead of a single record, which would misalign
+ * the receiving, params, and returned files.
+ * <p>
+ * Note that in ASYNC mode an object is serialized some time after the
+ * advice hands it off, so it may reflect later changes to its state.
+ */
+public final class CapturePipeline {
+    public enum Mode {
+        SYNC,
+        ASYNC
+    }
+
+    public enum QueueFullPolicy {
+        DROP,
+        BLOCK
+    }
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final CapturePipeline instance = new CapturePipeline(
+            CaptureConfig.getEnum("captureMode", Mode.class, Mode.SYNC),
+            CaptureConfig.getEnum("captureQueueFullPolicy", QueueFullPolicy.class, QueueFullPolicy.DROP),
+            (int) CaptureConfig.getLong("captureQueueCapacity", 4096),
+            (int) CaptureConfig.getLong("captureWriterThreads", 2));
+
+    static {
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.DRAIN, instance::shutdown);
+    }
+
+    private final Mode mode;
+    private final QueueFullPolicy queueFullPolicy;
+    private final int capacity;
+    private final Semaphore pendingRecords;
+    private final ThreadPoolExecutor[] writers;
+    private final AtomicLong droppedInvocations = new AtomicLong();
+    private final Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+
+    CapturePipeline(Mode mode, QueueFullPolicy queueFullPolicy, int capacity, int writerThreads) {
+        this.mode = mode;
+        this.queueFullPolicy = queueFullPolicy;
+        this.capacity = capacity;
+        this.pendingRecords = new Semaphore(capacity);
+        if (mode == Mode.ASYNC) {
+            writers = new ThreadPoolExecutor[Math.max(1, writerThreads)];
+            for (int i = 0; i < writers.length; i++) {
+                String threadName = "pankti-capture-writer-" + i;
+                writers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(capacity), runnable -> {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        } else {
+            writers = new ThreadPoolExecutor[0];
+        }
+    }
+
+    public static CapturePipeline getInstance() {
+        return instance;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDroppedInvocations() {
+        return droppedInvocations.get();
+    }
+
+    public int getPendingRecords() {
+        int pending = 0;
+        for (ThreadPoolExecutor writer : writers) {
+            pending += writer.getQueue().size();
+        }
+        return pending;
+    }
+
+    /**
+     * Reserves room for the given number of records of one invocation.
+     *
+     * @return false if the invocation should not be captured
+     */
+    public boolean admit(int records) {
+        if (mode == Mode.SYNC) {
+            return true;
+        }
+        CaptureMetrics.recordQueueDepth(capacity - pendingRecords.availablePermits());
+        if (pendingRecords.tryAcquire(records)) {
+            return true;
+        }
+        if (queueFullPolicy == QueueFullPolicy.BLOCK) {
+            pendingRecords.acquireUninterruptibly(records);
+            return true;
+        }
+        droppedInvocations.incrementAndGet();
+        return false;
+    }
+
+    // Give back room reserved for records that will not be submitted, e.g., when the method throws
+    public void release(int records) {
+        if (mode == Mode.ASYNC) {
+            pendingRecords.release(records);
+        }
+    }
+
+    /**
+     * Runs the write of one admitted record, either right away or on the
+     * writer thread that owns the given file.
+     */
+    public void submit(String objectFilePath, Runnable write) {
+        if (mode == Mode.SYNC) {
+            synchronized (fileLocks.computeIfAbsent(objectFilePath, path -> new Object())) {
+                timeWrite(objectFilePath, write);
+            }
+            return;
+        }
+        ThreadPoolExecutor writer = writers[Math.floorMod(objectFilePath.hashCode(), writers.length)];
+        long submitted = System.nanoTime();
+        try {
+            writer.execute(() -> {
+                try {
+                    CaptureMetrics.recordQueueWait(System.nanoTime() - submitted);
+                    timeWrite(objectFilePath, write);
+                } finally {
+                    pendingRecords.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pipeline is shutting down
+            pendingRecords.release();
+        }
+    }
+
+    private static void timeWrite(String objectFilePath, Runnable write) {
+        long start = System.nanoTime();
+        try {
+            write.run();
+        } finally {
+            CaptureMetrics.recordWrite(objectFilePath, System.nanoTime() - start);
+        }
+    }
+
+    void shutdown() {
+        for (ThreadPoolExecutor writer : writers) {
+            writer.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor writer : writers) {
+                writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
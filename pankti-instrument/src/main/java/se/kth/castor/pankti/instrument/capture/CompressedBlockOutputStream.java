@@ -0,0 +1,108 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Buffers the bytes of an object file, and writes each full buffer, or
+ * what is buffered when the stream is flushed, as a complete GZIP member.
+ * Every block can be decompressed on its own, so a file that is cut short
+ * (e.g., when the JVM is killed) only loses the block being written, and
+ * blocks from several runs can be appended to the same file. The Deflater
+ * is reused for all blocks of the file.
+ */
+final class CompressedBlockOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final OutputStream out;
+    private final byte[] block;
+    private final byte[] compressed;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private int count = 0;
+    private long uncompressedBytes = 0L;
+    private long compressedBytes = 0L;
+    private volatile double compressionRatio = 1.0;
+
+    CompressedBlockOutputStream(OutputStream out, int blockSize) {
+        this.out = out;
+        this.block = new byte[blockSize];
+        this.compressed = new byte[blockSize / 4];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == block.length) {
+            writeBlock();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == block.length) {
+                writeBlock();
+            }
+            int chunk = Math.min(length, block.length - count);
+            System.arraycopy(bytes, offset, block, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        out.write(GZIP_HEADER);
+        long blockBytes = GZIP_HEADER.length + 8;
+        deflater.reset();
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int deflated = deflater.deflate(compressed);
+            out.write(compressed, 0, deflated);
+            blockBytes += deflated;
+        }
+        crc.reset();
+        crc.update(block, 0, count);
+        writeIntLittleEndian((int) crc.getValue());
+        writeIntLittleEndian(count);
+        uncompressedBytes += count;
+        compressedBytes += blockBytes;
+        compressionRatio = (double) compressedBytes / uncompressedBytes;
+        count = 0;
+    }
+
+    private void writeIntLittleEndian(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+    // Compressed size over uncompressed size of the blocks written so far, 1 before the first block
+    double getCompressionRatio() {
+        return compressionRatio;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
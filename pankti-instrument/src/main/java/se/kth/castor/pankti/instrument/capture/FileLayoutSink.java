@@ -0,0 +1,46 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Stores each profile in its own file, through the writers that
+ * ObjectFileWriters keeps open, flushes, and closes
+ */
+public final class FileLayoutSink implements ProfileSink {
+
+    @Override
+    public void append(String profilePath, String content) throws IOException {
+        ObjectFileWriters.append(profilePath, content);
+    }
+
+    @Override
+    public long append(String profilePath, RecordBuffer record) throws IOException {
+        return ObjectFileWriters.append(profilePath, record);
+    }
+
+    @Override
+    public void append(String profilePath, byte[] bytes, int offset, int length) throws IOException {
+        ObjectFileWriters.append(profilePath, bytes, offset, length);
+    }
+
+    @Override
+    public long size(String profilePath) {
+        return new File(profilePath).length();
+    }
+
+    @Override
+    public long storedSize(String profilePath, long size) {
+        return ObjectFileWriters.storedSize(profilePath, size);
+    }
+
+    @Override
+    public void flush() {
+        ObjectFileWriters.flushAll();
+    }
+
+    // The writers are closed by ObjectFileWriters at shutdown
+    @Override
+    public void close() {
+    }
+}
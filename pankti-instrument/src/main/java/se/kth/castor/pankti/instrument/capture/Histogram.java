@@ -0,0 +1,80 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non-negative values in buckets of powers of two, so recording a
+ * value is a few atomic increments, whatever the range of the values.
+ * Percentiles are the upper bounds of their buckets, so they are off by
+ * at most a factor of two.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Bucket b holds the values of b significant bits, [2^(b-1), 2^b - 1], and bucket 0 holds 0
+    private static int bucket(long value) {
+        return BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+
+    public void record(long value) {
+        value = Math.max(0L, value);
+        counts.incrementAndGet(Math.min(bucket(value), BUCKETS - 1));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0L : getSum() / count;
+    }
+
+    // The smallest bucket bound that at least the given fraction of the values are below, capped by the maximum
+    public long getPercentile(double fraction) {
+        long total = 0L;
+        long[] bucketCounts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            bucketCounts[b] = counts.get(b);
+            total += bucketCounts[b];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0L;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += bucketCounts[b];
+            if (seen >= rank) {
+                long upperBound = b == 0 ? 0L : b >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+                return Math.min(upperBound, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    String toJson() {
+        return String.format("{\"count\": %d, \"sum\": %d, \"mean\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}",
+                getCount(), getSum(), getMean(), getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), getMax());
+    }
+}
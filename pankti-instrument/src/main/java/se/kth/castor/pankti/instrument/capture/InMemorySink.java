@@ -0,0 +1,65 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps profiles in memory, so that tests can capture objects without
+ * touching the file system. Nothing is ever evicted.
+ */
+public final class InMemorySink implements ProfileSink {
+    private final Map<String, ByteArrayOutputStream> profiles = new ConcurrentHashMap<>();
+
+    private ByteArrayOutputStream profile(String profilePath) {
+        return profiles.computeIfAbsent(profilePath, path -> new ByteArrayOutputStream());
+    }
+
+    @Override
+    public void append(String profilePath, String content) {
+        byte[] bytes = content.getBytes();
+        append(profilePath, bytes, 0, bytes.length);
+    }
+
+    @Override
+    public long append(String profilePath, RecordBuffer record) throws IOException {
+        ByteArrayOutputStream profile = profile(profilePath);
+        synchronized (profile) {
+            int start = profile.size();
+            Writer writer = new OutputStreamWriter(profile);
+            record.transferTo(writer);
+            writer.flush();
+            return profile.size() - start;
+        }
+    }
+
+    @Override
+    public void append(String profilePath, byte[] bytes, int offset, int length) {
+        ByteArrayOutputStream profile = profile(profilePath);
+        synchronized (profile) {
+            profile.write(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public long size(String profilePath) {
+        ByteArrayOutputStream profile = profiles.get(profilePath);
+        return profile == null ? 0L : profile.size();
+    }
+
+    public byte[] getBytes(String profilePath) {
+        ByteArrayOutputStream profile = profiles.get(profilePath);
+        return profile == null ? new byte[0] : profile.toByteArray();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
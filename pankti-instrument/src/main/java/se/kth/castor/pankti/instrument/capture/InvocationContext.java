@@ -0,0 +1,120 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tracks the instrumented methods that are currently executing on each
+ * thread. A parent aspect enters its method in onBefore and exits it in
+ * onReturn or onThrow, so that the aspects of its nested invocations can
+ * find the parent invocation with a map lookup, instead of walking the
+ * stack trace or comparing thread names.
+ * <p>
+ * The context is held in a ThreadLocal, so each platform or virtual
+ * thread has its own. When a task is handed off to an executor, a
+ * snapshot of the submitting thread's context travels with the task
+ * and is restored while the task runs (see ContextPropagationAspect).
+ */
+public final class InvocationContext {
+    private static final ThreadLocal<InvocationContext> contexts = ThreadLocal.withInitial(InvocationContext::new);
+
+    // Innermost invocation of each method on this thread
+    private final Map<String, Invocation> innermostInvocations = new HashMap<>();
+    private int depth = 0;
+
+    private InvocationContext() {
+    }
+
+    public static final class Invocation {
+        private final String methodFQN;
+        private final UUID uuid;
+        private final int depth;
+        private final Invocation enclosingInvocationOfSameMethod;
+
+        Invocation(String methodFQN, UUID uuid, int depth, Invocation enclosingInvocationOfSameMethod) {
+            this.methodFQN = methodFQN;
+            this.uuid = uuid;
+            this.depth = depth;
+            this.enclosingInvocationOfSameMethod = enclosingInvocationOfSameMethod;
+        }
+
+        public String getMethodFQN() {
+            return methodFQN;
+        }
+
+        // Null if the objects of this invocation are not captured for mocking
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        // Number of instrumented invocations on the thread, including this one
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    public static Invocation enter(String methodFQN, UUID uuid) {
+        InvocationContext context = contexts.get();
+        Invocation invocation = new Invocation(methodFQN, uuid, ++context.depth,
+                context.innermostInvocations.get(methodFQN));
+        context.innermostInvocations.put(methodFQN, invocation);
+        return invocation;
+    }
+
+    // Every enter is matched by an exit, as Glowroot calls onReturn or onThrow after each onBefore
+    public static void exit(String methodFQN) {
+        InvocationContext context = contexts.get();
+        Invocation invocation = context.innermostInvocations.get(methodFQN);
+        if (invocation == null) {
+            return;
+        }
+        context.depth--;
+        if (invocation.enclosingInvocationOfSameMethod == null) {
+            context.innermostInvocations.remove(methodFQN);
+        } else {
+            context.innermostInvocations.put(methodFQN, invocation.enclosingInvocationOfSameMethod);
+        }
+    }
+
+    /**
+     * The invocations executing on a thread when a task was submitted
+     * to an executor.
+     */
+    public static final class Snapshot {
+        private final Map<String, Invocation> innermostInvocations;
+        private final int depth;
+
+        Snapshot(Map<String, Invocation> innermostInvocations, int depth) {
+            this.innermostInvocations = Collections.unmodifiableMap(new HashMap<>(innermostInvocations));
+            this.depth = depth;
+        }
+    }
+
+    // Null if no instrumented method is executing on this thread
+    public static Snapshot snapshot() {
+        InvocationContext context = contexts.get();
+        return context.innermostInvocations.isEmpty() ? null
+                : new Snapshot(context.innermostInvocations, context.depth);
+    }
+
+    // Makes the snapshot the context of this thread, and returns the context it replaces
+    public static InvocationContext restore(Snapshot snapshot) {
+        InvocationContext previous = contexts.get();
+        InvocationContext restored = new InvocationContext();
+        restored.innermostInvocations.putAll(snapshot.innermostInvocations);
+        restored.depth = snapshot.depth;
+        contexts.set(restored);
+        return previous;
+    }
+
+    public static void reinstate(InvocationContext previous) {
+        contexts.set(previous);
+    }
+
+    // The innermost invocation of the given method on this thread, or null if it is not executing
+    public static Invocation current(String methodFQN) {
+        return contexts.get().innermostInvocations.get(methodFQN);
+    }
+}
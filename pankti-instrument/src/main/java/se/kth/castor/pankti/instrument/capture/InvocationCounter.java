@@ -0,0 +1,109 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts the invocations of an instrumented method in memory. Counts
+ * are written to the -count.txt file of the method periodically and
+ * when the JVM shuts down, and continue from the count already in the
+ * file, if any.
+ */
+public final class InvocationCounter implements InvocationCounterMBean {
+    private static final Pattern countPattern = Pattern.compile("(\\d+)\\s*$");
+    private static final Map<String, InvocationCounter> counters = new ConcurrentHashMap<>();
+    private static final boolean registerMBeans = CaptureConfig.getBoolean("invocationCountMBeans", false);
+
+    static {
+        CaptureLifecycle.scheduleAtFixedRate(InvocationCounter::flushAll,
+                CaptureConfig.getLong("captureFlushIntervalMillis", 1000));
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.FLUSH, InvocationCounter::flushAll);
+    }
+
+    private final String method;
+    private final Path countFilePath;
+    private final String invocationString;
+    private final long countInFile;
+    private final LongAdder count = new LongAdder();
+    private long flushedCount = -1;
+
+    private InvocationCounter(String method, String countFilePath, String invocationString) {
+        this.method = method;
+        this.countFilePath = new File(countFilePath).toPath();
+        this.invocationString = invocationString;
+        this.countInFile = readCountInFile(this.countFilePath);
+    }
+
+    public static InvocationCounter forMethod(String method, String countFilePath, String invocationString) {
+        return counters.computeIfAbsent(countFilePath, path -> {
+            InvocationCounter counter = new InvocationCounter(method, path, invocationString);
+            if (registerMBeans) {
+                counter.registerMBean();
+            }
+            return counter;
+        });
+    }
+
+    private static long readCountInFile(Path path) {
+        try {
+            if (Files.exists(path)) {
+                Matcher matcher = countPattern.matcher(Files.readString(path));
+                if (matcher.find()) {
+                    return Long.parseLong(matcher.group(1));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0L;
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("se.kth.castor.pankti:type=InvocationCounter,method=" + ObjectName.quote(method)));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public long getCount() {
+        return countInFile + count.sum();
+    }
+
+    synchronized void flush() throws Exception {
+        long currentCount = getCount();
+        if (currentCount != flushedCount && currentCount > 0) {
+            Files.writeString(countFilePath, invocationString + currentCount);
+            flushedCount = currentCount;
+        }
+    }
+
+    public static void flushAll() {
+        for (InvocationCounter counter : counters.values()) {
+            try {
+                counter.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package se.kth.castor.pankti.instrument.capture;
+
+/**
+ * Exposes live invocation counts over JMX, e.g., as Glowroot gauges
+ */
+public interface InvocationCounterMBean {
+    String getMethod();
+
+    long getCount();
+}
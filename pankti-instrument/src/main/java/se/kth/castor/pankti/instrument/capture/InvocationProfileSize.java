@@ -0,0 +1,42 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * The size of the object profile of one captured invocation: the sum of
+ * the sizes of its records. In ASYNC mode, the records are written on the
+ * writer threads of their files after the advice has returned, so the size
+ * is reported to the consumer given to complete() once the last record of
+ * the invocation is recorded, on whichever thread records it.
+ */
+public final class InvocationProfileSize {
+    private final AtomicLong bytes = new AtomicLong();
+    // The records submitted and not recorded yet, and one for the invocation until it completes
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private volatile LongConsumer onComplete;
+
+    // Called before a record of the invocation is submitted to the pipeline
+    public void submitted() {
+        pending.incrementAndGet();
+    }
+
+    // Called once a submitted record is written, with a size of 0 if it could not be
+    public void recorded(long recordSize) {
+        bytes.addAndGet(recordSize);
+        countDown();
+    }
+
+    // Called once the last record of the invocation is submitted
+    public void complete(LongConsumer onComplete) {
+        this.onComplete = onComplete;
+        countDown();
+    }
+
+    private void countDown() {
+        if (pending.decrementAndGet() == 0) {
+            onComplete.accept(bytes.get());
+        }
+    }
+}
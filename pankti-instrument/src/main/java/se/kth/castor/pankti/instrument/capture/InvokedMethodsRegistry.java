@@ -0,0 +1,53 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the rows of invoked-methods.csv in memory, so that registering
+ * an invoked method is a set lookup instead of a scan of the file.
+ * The file is read once, and new rows are appended through its
+ * ObjectFileWriters writer.
+ */
+public final class InvokedMethodsRegistry {
+    private static final String[] HEADERS = {"visibility", "parent-FQN", "method-name", "param-list", "return-type",
+            "param-signature", "has-mockable-invocations", "nested-invocations"};
+    private static final Map<String, InvokedMethodsRegistry> registries = new ConcurrentHashMap<>();
+
+    private final String csvFilePath;
+    private final Set<String> rows = ConcurrentHashMap.newKeySet();
+
+    private InvokedMethodsRegistry(String csvFilePath) {
+        this.csvFilePath = csvFilePath;
+        Path path = new File(csvFilePath).toPath();
+        try {
+            if (Files.exists(path)) {
+                rows.addAll(Files.readAllLines(path));
+            } else {
+                Files.writeString(path, String.join(",", HEADERS));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static InvokedMethodsRegistry forFile(String csvFilePath) {
+        return registries.computeIfAbsent(csvFilePath, InvokedMethodsRegistry::new);
+    }
+
+    public boolean isRegistered(String row) {
+        return rows.contains(row);
+    }
+
+    public void register(String row) throws IOException {
+        if (!row.isEmpty() && rows.add(row)) {
+            ObjectFileWriters.append(csvFilePath, "\n" + row);
+        }
+    }
+}
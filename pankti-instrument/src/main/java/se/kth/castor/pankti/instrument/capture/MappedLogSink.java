@@ -0,0 +1,197 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends profiles to a log (see ProfileLog) of pre-allocated segments
+ * that are mapped into memory, for aspects that capture every invocation.
+ * An append reserves its slot in the current segment by advancing an
+ * atomic cursor, and copies its entry into the mapped buffer, so that
+ * application threads append concurrently, without a monitor or a system
+ * call. Only rolling over to a new segment, when an entry does not fit,
+ * takes a lock. Segments are forced to disk by the capture scheduler, and
+ * by a background thread once they are full.
+ * <p>
+ * The unused end of a segment stays zero, which ends its entries. If the
+ * JVM dies between the reservation and the copy of an entry, the entries
+ * after it in the segment are lost.
+ */
+public final class MappedLogSink implements ProfileSink {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    // An append only copies one entry into its segment, so a segment is not kept open longer for one
+    private static final long RETIRE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RETIRE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private final File directory;
+    private final String directoryPrefix;
+    private final int segmentSizeBytes;
+    private final Map<String, Long> existingSizes;
+    private final Map<String, LongAdder> appendedSizes = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ExecutorService retiredSegmentWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pankti-mapped-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int segmentNumber;
+    private volatile Segment current;
+
+    public MappedLogSink(File directory, int segmentSizeBytes) throws IOException {
+        this.directory = directory;
+        this.directoryPrefix = directory.getPath() + File.separator;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.existingSizes = ProfileLog.readSizes(directory);
+        this.segmentNumber = ProfileLog.nextSegmentNumber(directory);
+        this.current = new Segment(segmentNumber, segmentSizeBytes);
+    }
+
+    private final class Segment {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicInteger activeWriters = new AtomicInteger();
+        private final Set<Integer> definedIds = ConcurrentHashMap.newKeySet();
+
+        Segment(int number, int capacity) throws IOException {
+            channel = FileChannel.open(ProfileLog.segmentFile(directory, number).toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        // Returns false, without writing, if the entry does not fit in the segment
+        boolean write(byte[] header, byte[] bytes, int offset, int length) {
+            int size = header.length + length;
+            activeWriters.incrementAndGet();
+            try {
+                long position = cursor.getAndAdd(size);
+                if (position + size > buffer.capacity()) {
+                    return false;
+                }
+                ByteBuffer slot = buffer.duplicate();
+                slot.position((int) position);
+                slot.put(header);
+                slot.put(bytes, offset, length);
+                return true;
+            } finally {
+                activeWriters.decrementAndGet();
+            }
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        // Waits, for a bounded time, for the appends that reserved a slot before the segment was retired
+        void retire() throws IOException {
+            long deadline = System.nanoTime() + RETIRE_TIMEOUT_NANOS;
+            while (activeWriters.get() > 0 && System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(RETIRE_PARK_NANOS);
+            }
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    private String relativeName(String profilePath) {
+        return profilePath.startsWith(directoryPrefix) ? profilePath.substring(directoryPrefix.length()) : profilePath;
+    }
+
+    private static byte[] appendHeader(int id, int length) {
+        return ByteBuffer.allocate(ProfileLog.APPEND_HEADER_SIZE)
+                .put((byte) ProfileLog.APPEND).putInt(id).putInt(length).array();
+    }
+
+    @Override
+    public void append(String profilePath, byte[] bytes, int offset, int length) throws IOException {
+        String name = relativeName(profilePath);
+        int id = ids.computeIfAbsent(name, n -> nextId.getAndIncrement());
+        byte[] header = appendHeader(id, length);
+        while (true) {
+            Segment segment = current;
+            // Threads racing on the first append of a profile may each define it, which is harmless
+            if (!segment.definedIds.contains(id)) {
+                byte[] define = ProfileLog.encodeDefine(id, name);
+                if (!segment.write(define, define, 0, 0)) {
+                    rollOver(segment, define.length);
+                    continue;
+                }
+                segment.definedIds.add(id);
+            }
+            if (segment.write(header, bytes, offset, length)) {
+                appendedSizes.computeIfAbsent(name, n -> new LongAdder()).add(length);
+                return;
+            }
+            rollOver(segment, header.length + length);
+        }
+    }
+
+    // An entry larger than the segment size gets a segment of its own size
+    private synchronized void rollOver(Segment full, int entrySize) throws IOException {
+        if (current != full) {
+            return;
+        }
+        segmentNumber++;
+        current = new Segment(segmentNumber, Math.max(segmentSizeBytes, entrySize));
+        retiredSegmentWriter.execute(() -> {
+            try {
+                full.retire();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void append(String profilePath, String content) throws IOException {
+        byte[] bytes = content.getBytes();
+        append(profilePath, bytes, 0, bytes.length);
+    }
+
+    @Override
+    public long append(String profilePath, RecordBuffer record) throws IOException {
+        ByteArrayOutputStream encodedText = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(encodedText);
+        record.transferTo(writer);
+        writer.flush();
+        append(profilePath, encodedText.toByteArray(), 0, encodedText.size());
+        return encodedText.size();
+    }
+
+    @Override
+    public long size(String profilePath) {
+        String name = relativeName(profilePath);
+        LongAdder appended = appendedSizes.get(name);
+        return existingSizes.getOrDefault(name, 0L) + (appended == null ? 0L : appended.sum());
+    }
+
+    @Override
+    public void flush() {
+        current.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Segments retired before the current one are forced first, so that the log is complete up to it
+        retiredSegmentWriter.shutdown();
+        try {
+            retiredSegmentWriter.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.retire();
+    }
+}
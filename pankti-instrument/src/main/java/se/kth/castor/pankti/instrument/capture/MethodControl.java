@@ -0,0 +1,116 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Whether an instrumented method is enabled, its sampling policy, and its
+ * throttle, under the current CaptureControl snapshot and OverheadGovernor
+ * rate table. They are resolved again only when either is published, so
+ * the checks of an aspect cost two volatile reads and version comparisons.
+ * The sampling policy, and the state it keeps, is replaced only if its
+ * specification changes.
+ */
+public final class MethodControl {
+    private final String methodFQN;
+    private final String defaultSpec;
+    private final Function<Object, String> stateSerializer;
+    private final AtomicReference<Resolved> resolved = new AtomicReference<>();
+    private final AtomicLong throttledInvocations = new AtomicLong();
+
+    private static final class Resolved {
+        private final CaptureControl.Snapshot snapshot;
+        private final OverheadGovernor.RateTable rates;
+        private final boolean enabled;
+        private final String controlSpec;
+        private final SamplingPolicy samplingPolicy;
+        private final int keepOneIn;
+
+        Resolved(CaptureControl.Snapshot snapshot, OverheadGovernor.RateTable rates, boolean enabled,
+                 String controlSpec, SamplingPolicy samplingPolicy, int keepOneIn) {
+            this.snapshot = snapshot;
+            this.rates = rates;
+            this.enabled = enabled;
+            this.controlSpec = controlSpec;
+            this.samplingPolicy = samplingPolicy;
+            this.keepOneIn = keepOneIn;
+        }
+
+        boolean isOlderThan(CaptureControl.Snapshot snapshot, OverheadGovernor.RateTable rates) {
+            return this.snapshot.getVersion() < snapshot.getVersion() || this.rates.getVersion() < rates.getVersion();
+        }
+    }
+
+    private MethodControl(String methodFQN, String defaultSpec, Function<Object, String> stateSerializer) {
+        this.methodFQN = methodFQN;
+        this.defaultSpec = defaultSpec;
+        this.stateSerializer = stateSerializer;
+    }
+
+    public static MethodControl forMethod(String methodFQN, String defaultSpec,
+                                          Function<Object, String> stateSerializer) {
+        return new MethodControl(methodFQN, defaultSpec, stateSerializer);
+    }
+
+    private Resolved current() {
+        CaptureControl.Snapshot snapshot = CaptureControl.snapshot();
+        OverheadGovernor.RateTable rates = OverheadGovernor.rates();
+        Resolved current = resolved.get();
+        while (current == null || current.isOlderThan(snapshot, rates)) {
+            Resolved updated = resolve(snapshot, rates, current);
+            if (resolved.compareAndSet(current, updated)) {
+                return updated;
+            }
+            current = resolved.get();
+        }
+        return current;
+    }
+
+    private Resolved resolve(CaptureControl.Snapshot snapshot, OverheadGovernor.RateTable rates, Resolved previous) {
+        String controlSpec = snapshot.getSamplingPolicy(methodFQN);
+        SamplingPolicy samplingPolicy;
+        if (previous != null && Objects.equals(previous.controlSpec, controlSpec)) {
+            samplingPolicy = previous.samplingPolicy;
+        } else if (controlSpec == null) {
+            samplingPolicy = SamplingPolicy.forMethod(methodFQN, defaultSpec, stateSerializer);
+        } else {
+            samplingPolicy = SamplingPolicy.forSpec(controlSpec, defaultSpec, stateSerializer);
+        }
+        return new Resolved(snapshot, rates, snapshot.isEnabled(methodFQN), controlSpec, samplingPolicy,
+                rates.keepOneIn(methodFQN));
+    }
+
+    // Whether the method is enabled, and its sampling policy may still sample
+    public boolean isEnabled() {
+        Resolved current = current();
+        return current.enabled && !current.samplingPolicy.isExhausted();
+    }
+
+    public SamplingPolicy getSamplingPolicy() {
+        return current().samplingPolicy;
+    }
+
+    // Whether to capture the invocation; a throttled method skips invocations before its policy sees them
+    public boolean sample(Object receivingObject, Object parameterObjects) {
+        Resolved current = current();
+        if (current.keepOneIn > 1 && throttledInvocations.getAndIncrement() % current.keepOneIn != 0) {
+            return false;
+        }
+        return current.samplingPolicy.sample(receivingObject, parameterObjects);
+    }
+
+    // Whether to capture the invocation, with room reserved in the pipeline for its records. The room is reserved
+    // before the invocation is sampled, so that an invocation the pipeline drops does not use up the policy
+    public boolean admit(CapturePipeline pipeline, int records, Object receivingObject, Object parameterObjects) {
+        if (!pipeline.admit(records)) {
+            return false;
+        }
+        if (!sample(receivingObject, parameterObjects)) {
+            pipeline.release(records);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,327 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The methods instrumented by the dispatcher aspects, read from the CSV
+ * file of pankti-extract given by dispatchMethods, and read again by
+ * CaptureControl when the file changes. Each method is identified by its
+ * row in the file, from 0, so that the state of the methods can be kept
+ * in arrays indexed by method id (see MethodDispatcher), and looked up
+ * once per woven method and table by its declaring class, name, and
+ * parameter types. Parameter types are compared as normalizeType() writes
+ * them, both as pankti-extract lists them and as the dispatcher aspects
+ * find them at runtime, so that generic types and varargs match their
+ * erasure, and type variables match whatever they are erased to.
+ */
+public final class MethodTable {
+    private final List<Method> methods;
+    private final Map<String, Integer> ids = new HashMap<>();
+    // Ids of the methods with type variables in their parameters, by declaring class and name
+    private final Map<String, List<Integer>> genericIds = new HashMap<>();
+
+    private static final Set<String> PRIMITIVES = Set.of(
+            "boolean", "byte", "char", "short", "int", "long", "float", "double");
+    private static final String TYPE_VARIABLE = "?";
+
+    private MethodTable(List<Method> methods) {
+        this.methods = methods;
+        for (int id = 0; id < methods.size(); id++) {
+            Method method = methods.get(id);
+            ids.putIfAbsent(key(method.className, method.methodName, method.normalizedParameterTypes), id);
+            for (String parameterType : method.normalizedParameterTypes) {
+                if (parameterType.startsWith(TYPE_VARIABLE)) {
+                    genericIds.computeIfAbsent(method.className + "." + method.methodName, name -> new ArrayList<>())
+                            .add(id);
+                    break;
+                }
+            }
+        }
+    }
+
+    public static final class Method {
+        private final String className;
+        private final String methodName;
+        private final List<String> parameterTypes;
+        private final List<String> normalizedParameterTypes;
+        private final String returnType;
+        private final boolean hasMockableInvocations;
+        private final String nestedInvocations;
+        private final String invokedMethodsRow;
+        private final String methodFQN;
+
+        Method(String className, String methodName, List<String> listedParameterTypes, String returnType,
+               boolean hasMockableInvocations, String nestedInvocations, String invokedMethodsRow) {
+            this.className = className;
+            this.methodName = methodName;
+            this.parameterTypes = eraseTypeVariables(listedParameterTypes);
+            this.normalizedParameterTypes = normalizeTypes(listedParameterTypes);
+            this.returnType = returnType;
+            this.hasMockableInvocations = hasMockableInvocations;
+            this.nestedInvocations = nestedInvocations;
+            this.invokedMethodsRow = invokedMethodsRow;
+            String postfix = parameterTypes.isEmpty() ? "" : "_" + String.join(",", parameterTypes);
+            this.methodFQN = className + "." + methodName + postfix;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        // As in the generated aspects, so that nested aspects find their parent invocations
+        public String getMethodFQN() {
+            return methodFQN;
+        }
+
+        public boolean isReturnTypeVoid() {
+            return returnType.equals("void");
+        }
+
+        public boolean hasMockableInvocations() {
+            return hasMockableInvocations;
+        }
+
+        // The nested-invocations column, as pankti-extract writes it
+        public String getNestedInvocations() {
+            return nestedInvocations;
+        }
+
+        // The row of the method in invoked-methods.csv
+        public String getInvokedMethodsRow() {
+            return invokedMethodsRow;
+        }
+    }
+
+    // The table of dispatchMethods, empty if it is not set or cannot be read
+    public static MethodTable getConfigured() {
+        return CaptureControl.snapshot().getMethodTable();
+    }
+
+    static MethodTable loadOrEmpty(String csvFilePath) {
+        if (csvFilePath.isEmpty()) {
+            return new MethodTable(List.of());
+        }
+        try {
+            return load(Paths.get(csvFilePath));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return new MethodTable(List.of());
+        }
+    }
+
+    public static MethodTable load(Path csvFile) throws IOException {
+        List<List<String>> records = parseCSV(Files.readString(csvFile, StandardCharsets.UTF_8));
+        if (records.isEmpty()) {
+            return new MethodTable(List.of());
+        }
+        List<String> header = records.get(0);
+        int className = requiredColumn(header, "parent-FQN");
+        int methodName = requiredColumn(header, "method-name");
+        int paramList = requiredColumn(header, "param-list");
+        int returnType = requiredColumn(header, "return-type");
+        int hasMockableInvocations = header.indexOf("has-mockable-invocations");
+        int nestedInvocations = header.indexOf("nested-invocations");
+        List<Method> methods = new ArrayList<>();
+        for (List<String> record : records.subList(1, records.size())) {
+            if (record.size() < header.size()) {
+                continue;
+            }
+            methods.add(new Method(record.get(className), record.get(methodName),
+                    splitParameterTypes(record.get(paramList)), record.get(returnType),
+                    hasMockableInvocations >= 0 && record.get(hasMockableInvocations).equalsIgnoreCase("true"),
+                    nestedInvocations >= 0 ? record.get(nestedInvocations) : "",
+                    invokedMethodsRow(record)));
+        }
+        return new MethodTable(methods);
+    }
+
+    private static int requiredColumn(List<String> header, String name) {
+        int column = header.indexOf(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("No " + name + " column in " + header);
+        }
+        return column;
+    }
+
+    // RFC 4180 records, as written by pankti-extract
+    static List<List<String>> parseCSV(String csv) {
+        List<List<String>> records = new ArrayList<>();
+        List<String> record = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < csv.length(); i++) {
+            char c = csv.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < csv.length() && csv.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                record.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < csv.length() && csv.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                record.add(field.toString());
+                field.setLength(0);
+                addRecord(records, record);
+                record = new ArrayList<>();
+            } else {
+                field.append(c);
+            }
+        }
+        record.add(field.toString());
+        addRecord(records, record);
+        return records;
+    }
+
+    private static void addRecord(List<List<String>> records, List<String> record) {
+        if (record.size() > 1 || !record.get(0).isEmpty()) {
+            records.add(record);
+        }
+    }
+
+    // Type variables are erased to Object, as in the @Pointcuts of generated aspects
+    public static List<String> parseParameterTypes(String paramList) {
+        return eraseTypeVariables(splitParameterTypes(paramList));
+    }
+
+    private static List<String> splitParameterTypes(String paramList) {
+        List<String> parameterTypes = new ArrayList<>();
+        if (paramList.startsWith("[") && paramList.endsWith("]")) {
+            paramList = paramList.substring(1, paramList.length() - 1);
+        }
+        for (String type : paramList.replace("(", "").replace(")", "").split(",")) {
+            type = type.trim();
+            if (!type.isEmpty()) {
+                parameterTypes.add(type);
+            }
+        }
+        return parameterTypes;
+    }
+
+    private static List<String> eraseTypeVariables(List<String> parameterTypes) {
+        List<String> erasedTypes = new ArrayList<>();
+        for (String type : parameterTypes) {
+            if (type.matches("[EKNTV]")) {
+                type = "java.lang.Object";
+            } else if (type.matches("[EKNTV]\\[]")) {
+                type = "java.lang.Object[]";
+            }
+            erasedTypes.add(type);
+        }
+        return erasedTypes;
+    }
+
+    /**
+     * A parameter type as the table compares it: without type arguments,
+     * with varargs as arrays, and with type variables, which have no
+     * package, as "?". Applied both to the types that pankti-extract lists
+     * and to the names of the erased types that the dispatcher aspects
+     * find at runtime, so that a method is found either way.
+     */
+    public static String normalizeType(String type) {
+        String normalized = type.replaceAll("<.*>", "").replace("...", "[]").trim();
+        String componentType = normalized.replace("[]", "");
+        if (!componentType.contains(".") && !PRIMITIVES.contains(componentType)) {
+            return TYPE_VARIABLE + normalized.substring(componentType.length());
+        }
+        return normalized;
+    }
+
+    public static List<String> normalizeTypes(List<String> parameterTypes) {
+        List<String> normalizedTypes = new ArrayList<>();
+        for (String parameterType : parameterTypes) {
+            normalizedTypes.add(normalizeType(parameterType));
+        }
+        return normalizedTypes;
+    }
+
+    // As the generated aspects write the row of a method: booleans capitalized, and fields with commas quoted without spaces
+    private static String invokedMethodsRow(List<String> record) {
+        StringJoiner row = new StringJoiner(",");
+        for (String field : record) {
+            if (field.equals("true") || field.equals("false")) {
+                row.add(field.equals("true") ? "True" : "False");
+            } else if (field.contains(",")) {
+                row.add("\"" + field.replace(" ", "") + "\"");
+            } else {
+                row.add(field);
+            }
+        }
+        return row.toString();
+    }
+
+    private static String key(String className, String methodName, List<String> parameterTypes) {
+        return className + "." + methodName + "(" + String.join(",", parameterTypes) + ")";
+    }
+
+    // The id of the method, or -1 if it is not in the table
+    public int idOf(String className, String methodName, List<String> parameterTypes) {
+        List<String> normalizedTypes = normalizeTypes(parameterTypes);
+        Integer id = ids.get(key(className, methodName, normalizedTypes));
+        if (id != null) {
+            return id;
+        }
+        for (int genericId : genericIds.getOrDefault(className + "." + methodName, List.of())) {
+            if (matches(methods.get(genericId).normalizedParameterTypes, normalizedTypes)) {
+                return genericId;
+            }
+        }
+        return -1;
+    }
+
+    // The id of a method of another table in this one, or -1 if it is not in it
+    public int idOf(Method method) {
+        Integer id = ids.get(key(method.className, method.methodName, method.normalizedParameterTypes));
+        return id == null ? -1 : id;
+    }
+
+    // A type variable matches any reference type with as many array dimensions
+    private static boolean matches(List<String> tableTypes, List<String> normalizedTypes) {
+        if (tableTypes.size() != normalizedTypes.size()) {
+            return false;
+        }
+        for (int i = 0; i < tableTypes.size(); i++) {
+            String tableType = tableTypes.get(i);
+            String type = normalizedTypes.get(i);
+            if (tableType.equals(type)) {
+                continue;
+            }
+            String dimensions = tableType.substring(TYPE_VARIABLE.length());
+            if (!tableType.startsWith(TYPE_VARIABLE) || !type.endsWith(dimensions)
+                    || PRIMITIVES.contains(type.substring(0, type.length() - dimensions.length()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Method get(int id) {
+        return methods.get(id);
+    }
+
+    public int size() {
+        return methods.size();
+    }
+}
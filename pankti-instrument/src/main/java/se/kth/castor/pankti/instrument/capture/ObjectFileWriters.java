@@ -0,0 +1,165 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one buffered writer open per object file for the lifetime of
+ * the JVM, instead of opening and closing a FileWriter for every record.
+ * Writers are flushed periodically, and flushed and closed at shutdown.
+ * Text and bytes (binary records) can be appended to the same file.
+ */
+public final class ObjectFileWriters {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Map<String, ObjectFileWriter> writers = new ConcurrentHashMap<>();
+    private static volatile boolean closed = false;
+
+    static {
+        CaptureLifecycle.scheduleAtFixedRate(ObjectFileWriters::flushAll,
+                CaptureConfig.getLong("captureFlushIntervalMillis", 1000));
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.FLUSH, ObjectFileWriters::flushAll);
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.CLOSE, ObjectFileWriters::closeAll);
+    }
+
+    private ObjectFileWriters() {
+    }
+
+    // Counts the bytes that the writer encodes; flushing the writer only moves them into the buffered stream
+    private static final class EncodedOutputStream extends FilterOutputStream {
+        private long count;
+
+        EncodedOutputStream(OutputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    private static final class ObjectFileWriter {
+        private final OutputStream stream;
+        private final EncodedOutputStream encoded;
+        private final Writer writer;
+
+        ObjectFileWriter(String filePath) {
+            try {
+                this.stream = openStream(filePath);
+                this.encoded = new EncodedOutputStream(stream);
+                this.writer = new OutputStreamWriter(encoded);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void flush() throws IOException {
+            writer.flush();
+            stream.flush();
+        }
+    }
+
+    // Compressed files are written in blocks of BUFFER_SIZE bytes, and a block ends at every flush
+    private static OutputStream openStream(String filePath) throws IOException {
+        if (CaptureCompression.isCompressed(filePath)) {
+            return new CompressedBlockOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(filePath, true)), BUFFER_SIZE);
+        }
+        return new BufferedOutputStream(new FileOutputStream(filePath, true), BUFFER_SIZE);
+    }
+
+    private interface Content {
+        void writeTo(Writer writer, OutputStream stream) throws IOException;
+    }
+
+    public static void append(String filePath, String content) throws IOException {
+        append(filePath, (writer, stream) -> writer.write(content));
+    }
+
+    // Appends a whole record, which is never interleaved with other records of the file, and returns its bytes
+    public static long append(String filePath, RecordBuffer record) throws IOException {
+        return append(filePath, (writer, stream) -> record.transferTo(writer));
+    }
+
+    public static void append(String filePath, byte[] bytes, int offset, int length) throws IOException {
+        append(filePath, (writer, stream) -> {
+            // Chars still held by the encoder of the writer come first
+            writer.flush();
+            stream.write(bytes, offset, length);
+        });
+    }
+
+    // Returns the bytes appended to the file, before any compression
+    private static long append(String filePath, Content content) throws IOException {
+        if (closed) {
+            // Records arriving after shutdown are written directly
+            try (OutputStream stream = openStream(filePath)) {
+                EncodedOutputStream encoded = new EncodedOutputStream(stream);
+                Writer writer = new OutputStreamWriter(encoded);
+                content.writeTo(writer, encoded);
+                writer.flush();
+                return encoded.count;
+            }
+        }
+        ObjectFileWriter objectFileWriter;
+        try {
+            objectFileWriter = writers.computeIfAbsent(filePath, ObjectFileWriter::new);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        synchronized (objectFileWriter) {
+            long start = objectFileWriter.encoded.count;
+            content.writeTo(objectFileWriter.writer, objectFileWriter.encoded);
+            objectFileWriter.writer.flush();
+            return objectFileWriter.encoded.count - start;
+        }
+    }
+
+    // Estimates the bytes that a record of the given size takes in the file, once compressed
+    public static long storedSize(String filePath, long size) {
+        ObjectFileWriter objectFileWriter = writers.get(filePath);
+        if (objectFileWriter != null && objectFileWriter.stream instanceof CompressedBlockOutputStream) {
+            return (long) Math.ceil(size * ((CompressedBlockOutputStream) objectFileWriter.stream).getCompressionRatio());
+        }
+        return size;
+    }
+
+    public static void flushAll() {
+        for (ObjectFileWriter objectFileWriter : writers.values()) {
+            synchronized (objectFileWriter) {
+                try {
+                    objectFileWriter.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    static void closeAll() {
+        closed = true;
+        for (ObjectFileWriter objectFileWriter : writers.values()) {
+            synchronized (objectFileWriter) {
+                try {
+                    objectFileWriter.writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        writers.clear();
+    }
+}
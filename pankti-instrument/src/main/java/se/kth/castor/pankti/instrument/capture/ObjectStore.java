@@ -0,0 +1,145 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.WriterWrapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Stores each distinct object of an object file once, when
+ * deduplicateObjects is set. Records are hashed (64-bit FNV-1a) over the
+ * nodes, attributes, and values that XStream writes, which leaves out
+ * root attributes such as the uuid and timestamp of an invocation. The
+ * first record with a hash is stored in full, with a hash root attribute;
+ * later records with the same hash are written as
+ * {@code <object-ref hash="..."/>}, with the root attributes of their own
+ * invocation, which pankti-generate resolves to the stored record.
+ * <p>
+ * The hash of a record is only known once it is marshalled, so the hash
+ * attribute is written as a placeholder, and patched in the buffered
+ * record before it is appended. Hashes are remembered per file for the
+ * lifetime of the JVM, up to deduplicationCapacity per file, so every run
+ * stores its objects again.
+ */
+public final class ObjectStore {
+    static final String HASH_ATTRIBUTE = "hash";
+    static final String REFERENCE_NODE = "object-ref";
+    // Stands in for the hash until the record is marshalled, as long as its hexadecimal form
+    static final String HASH_PLACEHOLDER = "0000000000000000";
+    private static final boolean enabled = CaptureConfig.getBoolean("deduplicateObjects", false);
+    private static final long capacity = CaptureConfig.getLong("deduplicationCapacity", 4096);
+    private static final Map<String, ObjectStore> stores = new ConcurrentHashMap<>();
+
+    private final Set<Long> storedHashes = ConcurrentHashMap.newKeySet();
+
+    private ObjectStore() {
+    }
+
+    // The store of an object file, or null if objects are not deduplicated
+    static ObjectStore forFile(String filePath) {
+        return enabled ? stores.computeIfAbsent(filePath, path -> new ObjectStore()) : null;
+    }
+
+    // A store of its own, whatever deduplicateObjects is
+    static ObjectStore create() {
+        return new ObjectStore();
+    }
+
+    /**
+     * Appends the record in full if its object is not stored yet, and
+     * otherwise a reference to it. A hash is remembered once its record
+     * is appended, so that a reference always follows the stored record.
+     */
+    long append(CaptureFormat format, String filePath, Consumer<HierarchicalStreamWriter> marshaller,
+                String... rootAttributes) throws IOException {
+        String[] attributes = Arrays.copyOf(rootAttributes, rootAttributes.length + 2);
+        attributes[rootAttributes.length] = HASH_ATTRIBUTE;
+        attributes[rootAttributes.length + 1] = HASH_PLACEHOLDER;
+        ContentHash contentHash = new ContentHash();
+        long size = format.appendRecord(filePath, writer -> marshaller.accept(contentHash.wrap(writer)),
+                contentHash, attributes);
+        if (size >= 0) {
+            if (storedHashes.size() < capacity) {
+                storedHashes.add(contentHash.value);
+            }
+            return size;
+        }
+        String hash = contentHash.toHex();
+        return format.appendRecord(filePath, writer -> {
+            writer.startNode(REFERENCE_NODE);
+            writer.addAttribute(HASH_ATTRIBUTE, hash);
+            writer.endNode();
+        }, null, rootAttributes);
+    }
+
+    /**
+     * The hash of a record as it is marshalled. Capture formats ask for it
+     * once the record is buffered: a stored record is dropped, and the
+     * hash of a new one replaces the placeholder.
+     */
+    final class ContentHash {
+        private long value = 0xcbf29ce484222325L;
+
+        boolean isStored() {
+            return storedHashes.contains(value);
+        }
+
+        String toHex() {
+            String hex = Long.toHexString(value);
+            return HASH_PLACEHOLDER.substring(hex.length()) + hex;
+        }
+
+        private void add(int token, String string) {
+            update(token);
+            update(string.length());
+            for (int i = 0; i < string.length(); i++) {
+                update(string.charAt(i));
+            }
+        }
+
+        private void update(int c) {
+            value ^= c;
+            value *= 0x100000001b3L;
+        }
+
+        HierarchicalStreamWriter wrap(HierarchicalStreamWriter writer) {
+            return new WriterWrapper(writer) {
+                @Override
+                public void startNode(String name, Class clazz) {
+                    add(BinaryRecordFile.START_NODE, name);
+                    super.startNode(name, clazz);
+                }
+
+                @Override
+                public void startNode(String name) {
+                    add(BinaryRecordFile.START_NODE, name);
+                    super.startNode(name);
+                }
+
+                @Override
+                public void addAttribute(String name, String value) {
+                    add(BinaryRecordFile.ATTRIBUTE, name);
+                    add(BinaryRecordFile.ATTRIBUTE, value);
+                    super.addAttribute(name, value);
+                }
+
+                @Override
+                public void setValue(String text) {
+                    add(BinaryRecordFile.VALUE, text);
+                    super.setValue(text);
+                }
+
+                @Override
+                public void endNode() {
+                    update(BinaryRecordFile.END_NODE);
+                    super.endNode();
+                }
+            };
+        }
+    }
+}
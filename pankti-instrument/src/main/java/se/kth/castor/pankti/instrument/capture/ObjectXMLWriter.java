@@ -0,0 +1,146 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.naming.NameCoder;
+import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
+import com.thoughtworks.xstream.io.xml.XmlFriendlyNameCoder;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Marshals an object with XStream directly to a Writer, instead of
+ * building the XML as a String and post-processing it with regular
+ * expressions. Character references that XStream writes for control
+ * characters are escaped as text ({@code &amp;#x...;}), and the given
+ * attributes are added to the root element as it is written, so the
+ * output is the same as before while memory only grows with the depth
+ * of the object graph.
+ */
+public final class ObjectXMLWriter extends PrettyPrintWriter {
+    // The name coder of XStream's default XppDriver, which it also shares between writers
+    private static final NameCoder nameCoder = new XmlFriendlyNameCoder();
+
+    private final String[] rootAttributes;
+    private int openNodes = 0;
+    private boolean rootAttributesWritten = false;
+
+    private ObjectXMLWriter(Writer writer, String[] rootAttributes) {
+        super(writer, nameCoder);
+        this.rootAttributes = rootAttributes;
+    }
+
+    // Root attributes are given as name, value pairs
+    public static void marshal(XStream xStream, Object object, Writer out, String... rootAttributes)
+            throws IOException {
+        marshal(writer -> xStream.marshal(object, writer), out, rootAttributes);
+    }
+
+    // Writes whatever the marshaller writes, e.g., several objects under one hand-written root element
+    public static void marshal(Consumer<HierarchicalStreamWriter> marshaller, Writer out, String... rootAttributes)
+            throws IOException {
+        CharacterReferenceEscaper escaper = new CharacterReferenceEscaper(out);
+        ObjectXMLWriter writer = new ObjectXMLWriter(escaper, rootAttributes);
+        try {
+            marshaller.accept(writer);
+        } finally {
+            writer.flush();
+        }
+        escaper.finish();
+    }
+
+    // Attributes added by XStream come first, as the root element is still open until its first content
+    private void writeRootAttributes() {
+        if (openNodes == 1 && !rootAttributesWritten) {
+            rootAttributesWritten = true;
+            for (int i = 0; i + 1 < rootAttributes.length; i += 2) {
+                super.addAttribute(rootAttributes[i], rootAttributes[i + 1]);
+            }
+        }
+    }
+
+    @Override
+    public void startNode(String name) {
+        writeRootAttributes();
+        openNodes++;
+        super.startNode(name);
+    }
+
+    @Override
+    public void setValue(String text) {
+        writeRootAttributes();
+        super.setValue(text);
+    }
+
+    @Override
+    public void endNode() {
+        writeRootAttributes();
+        openNodes--;
+        super.endNode();
+    }
+
+    /**
+     * Rewrites every "&#x" written by XStream as "&amp;#x". A literal
+     * '&' in text is already written as "&amp;", so "&#x" only ever
+     * starts a character reference.
+     */
+    private static final class CharacterReferenceEscaper extends FilterWriter {
+        private static final String REFERENCE_PREFIX = "&#x";
+        private static final String ESCAPED_REFERENCE_PREFIX = "&amp;#x";
+        private int matched = 0;
+
+        CharacterReferenceEscaper(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            int end = offset + length;
+            int runStart = offset;
+            for (int i = offset; i < end; i++) {
+                char c = chars[i];
+                if (matched == 0) {
+                    if (c == '&') {
+                        out.write(chars, runStart, i - runStart);
+                        matched = 1;
+                        runStart = i + 1;
+                    }
+                } else if (c == REFERENCE_PREFIX.charAt(matched)) {
+                    matched++;
+                    runStart = i + 1;
+                    if (matched == REFERENCE_PREFIX.length()) {
+                        out.write(ESCAPED_REFERENCE_PREFIX);
+                        matched = 0;
+                    }
+                } else {
+                    // Not a character reference: write what was held back, and look at c again
+                    out.write(REFERENCE_PREFIX, 0, matched);
+                    matched = 0;
+                    runStart = i;
+                    i--;
+                }
+            }
+            out.write(chars, runStart, end - runStart);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            char[] chars = new char[length];
+            string.getChars(offset, offset + length, chars, 0);
+            write(chars, 0, length);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            write(new char[]{(char) c}, 0, 1);
+        }
+
+        void finish() throws IOException {
+            out.write(REFERENCE_PREFIX, 0, matched);
+            matched = 0;
+        }
+    }
+}
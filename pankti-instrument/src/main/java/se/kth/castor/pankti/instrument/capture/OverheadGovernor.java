@@ -0,0 +1,131 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the overhead of capturing within a budget (overheadBudgetPercent).
+ * Every governorIntervalMillis, on the CaptureLifecycle thread, it compares
+ * the time spent capturing since the last check (see CaptureMetrics), as a
+ * share of the wall time of all processors, and the fill of the capture
+ * queue (queueBudgetPercent), with their budgets. Over budget, the method
+ * that cost the most in the interval keeps half as many of the invocations
+ * its sampling policy would capture; well under budget, the cheapest
+ * throttled method is given back twice as many, one method per check.
+ * <p>
+ * The throttles are published as an immutable RateTable, which
+ * MethodControl resolves along with the CaptureControl snapshot, so the
+ * advice never waits for the governor.
+ */
+public final class OverheadGovernor {
+    // Throttled methods keep at least one in this many of their sampled invocations
+    static final int MAX_KEEP_ONE_IN = 1024;
+    private static volatile RateTable rates = new RateTable(0, Map.of());
+
+    static {
+        double overheadBudget = CaptureConfig.getDouble("overheadBudgetPercent", 0) / 100;
+        double queueBudget = CaptureConfig.getDouble("queueBudgetPercent", 0) / 100;
+        if (overheadBudget > 0 || queueBudget > 0) {
+            OverheadGovernor governor = new OverheadGovernor(overheadBudget, queueBudget);
+            CaptureLifecycle.scheduleAtFixedRate(governor::check,
+                    CaptureConfig.getLong("governorIntervalMillis", 1000));
+        }
+    }
+
+    private final double overheadBudget;
+    private final double queueBudget;
+    private Map<String, Long> previousCaptureNanos = new HashMap<>();
+    private long previousCheckNanos = System.nanoTime();
+
+    OverheadGovernor(double overheadBudget, double queueBudget) {
+        this.overheadBudget = overheadBudget;
+        this.queueBudget = queueBudget;
+    }
+
+    /**
+     * How many of the sampled invocations of each method are kept: one in
+     * N, for the methods that are throttled.
+     */
+    public static final class RateTable {
+        private final long version;
+        private final Map<String, Integer> keepOneIn;
+
+        RateTable(long version, Map<String, Integer> keepOneIn) {
+            this.version = version;
+            this.keepOneIn = keepOneIn;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int keepOneIn(String methodFQN) {
+            return keepOneIn.getOrDefault(methodFQN, 1);
+        }
+    }
+
+    public static RateTable rates() {
+        return rates;
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        Map<String, Long> captureNanos = CaptureMetrics.getInstance().getCaptureNanosByMethod();
+        Map<String, Long> intervalNanos = new HashMap<>();
+        captureNanos.forEach((methodFQN, nanos) ->
+                intervalNanos.put(methodFQN, nanos - previousCaptureNanos.getOrDefault(methodFQN, 0L)));
+        long wallNanos = (now - previousCheckNanos) * Runtime.getRuntime().availableProcessors();
+        previousCaptureNanos = captureNanos;
+        previousCheckNanos = now;
+        CapturePipeline capturePipeline = CapturePipeline.getInstance();
+        double queueFill = capturePipeline.getMode() == CapturePipeline.Mode.ASYNC
+                ? (double) capturePipeline.getPendingRecords() / capturePipeline.getCapacity()
+                : 0;
+        adjust(intervalNanos, wallNanos, queueFill);
+    }
+
+    // Throttles or restores one method from the capture time of each method in the interval
+    void adjust(Map<String, Long> intervalNanos, long wallNanos, double queueFill) {
+        long totalNanos = 0L;
+        for (long nanos : intervalNanos.values()) {
+            totalNanos += nanos;
+        }
+        double overhead = wallNanos <= 0 ? 0 : (double) totalNanos / wallNanos;
+        boolean overBudget = overheadBudget > 0 && overhead > overheadBudget
+                || queueBudget > 0 && queueFill > queueBudget;
+        boolean underBudget = (overheadBudget <= 0 || overhead < overheadBudget / 2)
+                && (queueBudget <= 0 || queueFill < queueBudget / 2);
+        RateTable current = rates;
+        Map<String, Integer> keepOneIn = new HashMap<>(current.keepOneIn);
+        String selected = null;
+        if (overBudget) {
+            for (Map.Entry<String, Long> method : intervalNanos.entrySet()) {
+                if (current.keepOneIn(method.getKey()) < MAX_KEEP_ONE_IN && method.getValue() > 0
+                        && (selected == null || method.getValue() > intervalNanos.get(selected))) {
+                    selected = method.getKey();
+                }
+            }
+            if (selected != null) {
+                keepOneIn.put(selected, current.keepOneIn(selected) * 2);
+            }
+        } else if (underBudget) {
+            for (String methodFQN : current.keepOneIn.keySet()) {
+                if (selected == null || intervalNanos.getOrDefault(methodFQN, 0L)
+                        < intervalNanos.getOrDefault(selected, 0L)) {
+                    selected = methodFQN;
+                }
+            }
+            if (selected != null) {
+                int restored = current.keepOneIn(selected) / 2;
+                if (restored <= 1) {
+                    keepOneIn.remove(selected);
+                } else {
+                    keepOneIn.put(selected, restored);
+                }
+            }
+        }
+        if (selected != null) {
+            rates = new RateTable(current.version + 1, Map.copyOf(keepOneIn));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import java.util.Map;
+
+/**
+ * Writes the parameters of a nested invocation as the object-array record
+ * that XStream writes for them, without XStream: primitives and Strings
+ * are written as values, and parameters of other types as an empty node
+ * named after their type, since they are not captured. The node of each
+ * parameter is resolved from the declared parameter types once, when the
+ * aspect is initialized.
+ */
+public final class ParameterArrayWriter {
+    // The names XStream writes for the values of parameters of these types
+    private static final Map<String, String> valueNodes = Map.of(
+            "boolean", "boolean",
+            "byte", "byte",
+            "char", "char",
+            "double", "double",
+            "float", "float",
+            "int", "int",
+            "long", "long",
+            "short", "short",
+            "java.lang.String", "string");
+
+    private final String[] valueNodeNames;
+    private final String[] emptyNodeNames;
+
+    private ParameterArrayWriter(String[] parameterTypes) {
+        valueNodeNames = new String[parameterTypes.length];
+        emptyNodeNames = new String[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            valueNodeNames[i] = valueNodes.get(parameterTypes[i]);
+            if (valueNodeNames[i] == null) {
+                emptyNodeNames[i] = parameterTypes[i].replace("[]", "-array").replace('$', '.');
+            }
+        }
+    }
+
+    public static ParameterArrayWriter forParameterTypes(String... parameterTypes) {
+        return new ParameterArrayWriter(parameterTypes);
+    }
+
+    public void write(Object parameterObjects, HierarchicalStreamWriter writer) {
+        Object[] parameters = (Object[]) parameterObjects;
+        writer.startNode("object-array");
+        for (int i = 0; i < valueNodeNames.length; i++) {
+            if (valueNodeNames[i] == null) {
+                writer.startNode(emptyNodeNames[i]);
+                writer.endNode();
+            } else {
+                writeValue(valueNodeNames[i], parameters[i], writer);
+            }
+        }
+        writer.endNode();
+    }
+
+    private static void writeValue(String nodeName, Object value, HierarchicalStreamWriter writer) {
+        if (value == null) {
+            writer.startNode("null");
+            writer.endNode();
+            return;
+        }
+        writer.startNode(nodeName);
+        // XStream writes the null character, which XML cannot hold, as an empty value
+        boolean isNullCharacter = value instanceof Character && (Character) value == '\0';
+        writer.setValue(isNullCharacter ? "" : value.toString());
+        writer.endNode();
+    }
+}
@@ -0,0 +1,153 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The format of the segmented logs written by SegmentedLogSink and
+ * MappedLogSink. A log is a series of segments in the storage directory
+ * (profiles-000000.log, profiles-000001.log, ...), and every run starts
+ * a new segment. A segment is a series of entries, each a type byte
+ * followed by:
+ * <ul>
+ *     <li>DEFINE: the id of a profile and its name (its path relative to
+ *     the storage directory)</li>
+ *     <li>APPEND: the id of a profile, the length of the appended bytes, and the bytes</li>
+ * </ul>
+ * Every segment defines the ids it uses before their first APPEND, so
+ * that a segment can be read on its own. An id may be defined more than
+ * once, always with the same name. A zero type byte ends the entries of
+ * a segment, which lets segments be pre-allocated.
+ */
+public final class ProfileLog {
+    static final int END = 0;
+    static final int DEFINE = 1;
+    static final int APPEND = 2;
+    // Type byte, id, and length
+    static final int APPEND_HEADER_SIZE = 9;
+    private static final String SEGMENT_PREFIX = "profiles-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private ProfileLog() {
+    }
+
+    interface EntryReader {
+        void read(String name, DataInputStream in, int length) throws IOException;
+    }
+
+    static File segmentFile(File directory, int segmentNumber) {
+        return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparingInt(ProfileLog::segmentNumber));
+        return segments;
+    }
+
+    static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // The number of the segment that a new run starts with
+    static int nextSegmentNumber(File directory) {
+        List<File> segments = listSegments(directory);
+        return segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+    }
+
+    static byte[] encodeDefine(int id, String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DEFINE);
+            out.writeInt(id);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the APPEND entries of a segment in order. An entry cut short at
+     * the end of a segment (e.g., when the JVM was killed) is ignored.
+     */
+    static void readSegment(File segmentFile, EntryReader entryReader) throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+            int type;
+            while ((type = in.read()) != -1 && type != END) {
+                if (type == DEFINE) {
+                    int id = in.readInt();
+                    names.put(id, in.readUTF());
+                } else if (type == APPEND) {
+                    int id = in.readInt();
+                    int length = in.readInt();
+                    String name = names.get(id);
+                    if (name == null) {
+                        throw new IOException("Undefined profile id " + id + " in " + segmentFile);
+                    }
+                    entryReader.read(name, in, length);
+                } else {
+                    throw new IOException("Unknown entry type " + type + " in " + segmentFile);
+                }
+            }
+        } catch (EOFException e) {
+            System.err.println("Ignoring the incomplete last entry of " + segmentFile);
+        }
+    }
+
+    static void skipFully(DataInputStream in, int length) throws IOException {
+        for (int remaining = length; remaining > 0; ) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped == 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    // Sizes of the profiles in the log of the directory, for the size limits
+    static Map<String, Long> readSizes(File directory) throws IOException {
+        Map<String, Long> sizes = new HashMap<>();
+        for (File segment : listSegments(directory)) {
+            readSegment(segment, (name, in, length) -> {
+                sizes.merge(name, (long) length, Long::sum);
+                skipFully(in, length);
+            });
+        }
+        return sizes;
+    }
+
+    // Writes every profile in the log of logDirectory to its own file in targetDirectory
+    public static void unpack(File logDirectory, File targetDirectory) throws IOException {
+        Map<String, OutputStream> profiles = new HashMap<>();
+        try {
+            for (File segmentFile : listSegments(logDirectory)) {
+                readSegment(segmentFile, (name, in, length) -> {
+                    // Read whole, so that an entry cut short is not written in part
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    OutputStream profile = profiles.get(name);
+                    if (profile == null) {
+                        File profileFile = new File(targetDirectory, name);
+                        profileFile.getParentFile().mkdirs();
+                        profile = new BufferedOutputStream(new FileOutputStream(profileFile, true));
+                        profiles.put(name, profile);
+                    }
+                    profile.write(bytes);
+                });
+            }
+        } finally {
+            for (OutputStream profile : profiles.values()) {
+                profile.close();
+            }
+        }
+    }
+
+    // Usage: ProfileLog <log directory> <target directory>
+    public static void main(String[] args) throws IOException {
+        unpack(new File(args[0]), new File(args[1]));
+    }
+}
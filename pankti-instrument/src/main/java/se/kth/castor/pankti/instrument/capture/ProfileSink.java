@@ -0,0 +1,39 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.IOException;
+
+/**
+ * Stores the object profiles of the aspects: object records, and the
+ * object-profile-sizes and library invocation files. A profile is named
+ * by the path of its file in the file layout (see ProfileStorage), and
+ * each append is stored whole, never interleaved with other appends to
+ * the same profile. The implementations are selected with the
+ * profileSink property:
+ * <ul>
+ *     <li>{@code files}: one file per profile, as pankti-generate reads them (FileLayoutSink)</li>
+ *     <li>{@code segmented-log}: one append-only log for all profiles, rolled by size (SegmentedLogSink)</li>
+ *     <li>{@code mapped-log}: the same log, written through memory-mapped segments without locking (MappedLogSink)</li>
+ *     <li>{@code memory}: profiles kept in memory, for tests (InMemorySink)</li>
+ * </ul>
+ */
+public interface ProfileSink {
+
+    void append(String profilePath, String content) throws IOException;
+
+    // Returns the bytes that the record takes once encoded, before any compression
+    long append(String profilePath, RecordBuffer record) throws IOException;
+
+    void append(String profilePath, byte[] bytes, int offset, int length) throws IOException;
+
+    // Bytes already stored for the profile, e.g., by earlier runs
+    long size(String profilePath);
+
+    // Bytes that an append of the given size is expected to take once stored
+    default long storedSize(String profilePath, long size) {
+        return size;
+    }
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
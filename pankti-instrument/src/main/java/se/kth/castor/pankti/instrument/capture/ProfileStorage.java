@@ -0,0 +1,91 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Holds the storage directory (storageDirectory, /tmp/pankti-object-data/
+ * by default) and the profile sink (profileSink) of the aspects. The
+ * invoked-methods.csv and -count.txt files are always files in the storage
+ * directory, as the scripts and pankti-generate read them directly.
+ */
+public final class ProfileStorage {
+    public enum SinkType {
+        FILES,
+        SEGMENTED_LOG,
+        MAPPED_LOG,
+        MEMORY
+    }
+
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final String directory = withTrailingSeparator(
+            CaptureConfig.getString("storageDirectory", "/tmp/pankti-object-data/"));
+    private static final SinkType sinkType = CaptureConfig.getEnum("profileSink", SinkType.class, SinkType.FILES);
+    private static final ProfileSink sink = createSink();
+
+    private ProfileStorage() {
+    }
+
+    private static String withTrailingSeparator(String path) {
+        return path.endsWith(File.separator) ? path : path + File.separator;
+    }
+
+    // Falls back to the file layout if the log cannot be opened
+    private static ProfileSink createSink() {
+        try {
+            switch (sinkType) {
+                case SEGMENTED_LOG:
+                    new File(directory).mkdirs();
+                    return withLifecycle(new SegmentedLogSink(new File(directory),
+                            CaptureConfig.getLong("segmentSizeMB", 64) * MEGABYTE));
+                case MAPPED_LOG:
+                    new File(directory).mkdirs();
+                    return withLifecycle(new MappedLogSink(new File(directory),
+                            (int) Math.min(CaptureConfig.getLong("segmentSizeMB", 64) * MEGABYTE, Integer.MAX_VALUE)));
+                case MEMORY:
+                    return new InMemorySink();
+                default:
+                    return new FileLayoutSink();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new FileLayoutSink();
+        }
+    }
+
+    // Logs are flushed periodically and at shutdown
+    private static ProfileSink withLifecycle(ProfileSink logSink) {
+        CaptureLifecycle.scheduleAtFixedRate(() -> flush(logSink),
+                CaptureConfig.getLong("captureFlushIntervalMillis", 1000));
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.FLUSH, () -> flush(logSink));
+        CaptureLifecycle.onShutdown(CaptureLifecycle.Phase.CLOSE, () -> {
+            try {
+                logSink.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        return logSink;
+    }
+
+    private static void flush(ProfileSink profileSink) {
+        try {
+            profileSink.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static String getDirectory() {
+        return directory;
+    }
+
+    public static ProfileSink getSink() {
+        return sink;
+    }
+
+    // Only the file layout compresses profiles
+    static boolean isFileLayout() {
+        return sink instanceof FileLayoutSink;
+    }
+}
@@ -0,0 +1,166 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Holds one record while it is serialized, so that a record whose
+ * serialization fails halfway is never appended to an object file.
+ * Records up to the spill threshold stay in an in-memory buffer that is
+ * reused by the thread; the rest of larger records is spilled to a
+ * temporary file, so that memory does not grow with the size of the
+ * captured object. The head of a record stays in memory, where it can
+ * still be patched (see ObjectStore).
+ */
+public final class RecordBuffer extends Writer {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int SPILL_THRESHOLD = 256 * 1024;
+    private static final ThreadLocal<RecordBuffer> buffers =
+            ThreadLocal.withInitial(() -> new RecordBuffer(SPILL_THRESHOLD));
+
+    private final int spillThreshold;
+    private char[] buffer;
+    private int count;
+    private long length;
+    private File spillFile;
+    private Writer spillWriter;
+
+    RecordBuffer(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+        this.buffer = new char[Math.min(INITIAL_CAPACITY, spillThreshold)];
+    }
+
+    // The buffer of the current thread, emptied; closing it empties it again
+    public static RecordBuffer forCurrentThread() {
+        RecordBuffer recordBuffer = buffers.get();
+        recordBuffer.reset();
+        return recordBuffer;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        this.length += length;
+        if (spillWriter == null) {
+            if (count + length <= spillThreshold) {
+                ensureCapacity(count + length);
+                System.arraycopy(chars, offset, buffer, count, length);
+                count += length;
+                return;
+            }
+            spill();
+        }
+        spillWriter.write(chars, offset, length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        this.length += length;
+        if (spillWriter == null) {
+            if (count + length <= spillThreshold) {
+                ensureCapacity(count + length);
+                string.getChars(offset, offset + length, buffer, count);
+                count += length;
+                return;
+            }
+            spill();
+        }
+        spillWriter.write(string, offset, length);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write(String.valueOf((char) c), 0, 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(spillThreshold, Math.max(capacity, buffer.length * 2)));
+        }
+    }
+
+    // The buffer keeps the head of the record, and what follows goes to the spill file
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("pankti-record", ".xml");
+        spillWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(spillFile), StandardCharsets.UTF_8));
+    }
+
+    // Number of characters in the record
+    public long length() {
+        return length;
+    }
+
+    public boolean isSpilled() {
+        return spillWriter != null;
+    }
+
+    public void transferTo(Writer target) throws IOException {
+        target.write(buffer, 0, count);
+        if (spillWriter == null) {
+            return;
+        }
+        spillWriter.flush();
+        char[] chunk = new char[INITIAL_CAPACITY];
+        try (Reader reader = new InputStreamReader(new FileInputStream(spillFile), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = reader.read(chunk, 0, chunk.length)) != -1) {
+                target.write(chunk, 0, read);
+            }
+        }
+    }
+
+    // Overwrites the first occurrence of target in the head of the record with a replacement of the same length
+    boolean replace(String target, String replacement) {
+        int length = target.length();
+        for (int start = 0; start + length <= count; start++) {
+            int matched = 0;
+            while (matched < length && buffer[start + matched] == target.charAt(matched)) {
+                matched++;
+            }
+            if (matched == length) {
+                replacement.getChars(0, length, buffer, start);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reset() {
+        count = 0;
+        length = 0;
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spillFile.delete();
+            spillWriter = null;
+            spillFile = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        reset();
+    }
+
+    @Override
+    public String toString() {
+        if (spillWriter == null) {
+            return new String(buffer, 0, count);
+        }
+        StringWriter stringWriter = new StringWriter();
+        try {
+            transferTo(stringWriter);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return stringWriter.toString();
+    }
+}
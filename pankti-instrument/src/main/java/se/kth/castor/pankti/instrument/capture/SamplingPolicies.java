@@ -0,0 +1,220 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * The sampling policies that can be selected for an aspect
+ * (see SamplingPolicy for their specifications)
+ */
+public final class SamplingPolicies {
+    private static final LongSupplier systemClock = () -> System.nanoTime() / 1_000_000L;
+
+    private SamplingPolicies() {
+    }
+
+    static SamplingPolicy parse(String spec, Function<Object, String> stateSerializer) {
+        String[] nameAndArguments = spec.trim().split(":", 2);
+        String name = nameAndArguments[0].trim().toLowerCase();
+        String arguments = nameAndArguments.length > 1 ? nameAndArguments[1].trim() : "";
+        try {
+            switch (name) {
+                case "all":
+                    return new All();
+                case "first":
+                    return new First(arguments.isEmpty() ? 1 : Long.parseLong(arguments));
+                case "rate":
+                    return new FixedRate(Long.parseLong(arguments));
+                case "token-bucket":
+                    return new TokenBucket(Long.parseLong(arguments), systemClock);
+                case "reservoir":
+                    String[] sizeAndWindow = arguments.split("/");
+                    return new Reservoir(Integer.parseInt(sizeAndWindow[0].trim()),
+                            sizeAndWindow.length > 1 ? Long.parseLong(sizeAndWindow[1].trim()) : 60_000L,
+                            systemClock);
+                case "new-state":
+                    return new NewState(arguments.isEmpty() ? 100_000 : Integer.parseInt(arguments),
+                            stateSerializer);
+                default:
+                    throw new IllegalArgumentException("Unknown sampling policy: " + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid arguments for sampling policy: " + spec, e);
+        }
+    }
+
+    private static long requirePositive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Sampling policy argument must be positive: " + value);
+        }
+        return value;
+    }
+
+    static final class All implements SamplingPolicy {
+        @Override
+        public boolean sample(Object receivingObject, Object parameterObjects) {
+            return true;
+        }
+    }
+
+    static final class First implements SamplingPolicy {
+        private final long limit;
+        private final AtomicLong sampled = new AtomicLong();
+
+        First(long limit) {
+            this.limit = requirePositive(limit);
+        }
+
+        @Override
+        public boolean sample(Object receivingObject, Object parameterObjects) {
+            return sampled.get() < limit && sampled.getAndIncrement() < limit;
+        }
+
+        @Override
+        public boolean isExhausted() {
+            return sampled.get() >= limit;
+        }
+    }
+
+    static final class FixedRate implements SamplingPolicy {
+        private final long interval;
+        private final AtomicLong invocations = new AtomicLong();
+
+        FixedRate(long interval) {
+            this.interval = requirePositive(interval);
+        }
+
+        @Override
+        public boolean sample(Object receivingObject, Object parameterObjects) {
+            return invocations.getAndIncrement() % interval == 0;
+        }
+    }
+
+    // Refills capturesPerSecond tokens every second, and holds at most that many
+    static final class TokenBucket implements SamplingPolicy {
+        private final long capturesPerSecond;
+        private final LongSupplier clockMillis;
+        private double tokens;
+        private long lastRefillMillis;
+
+        TokenBucket(long capturesPerSecond, LongSupplier clockMillis) {
+            this.capturesPerSecond = requirePositive(capturesPerSecond);
+            this.clockMillis = clockMillis;
+            this.tokens = capturesPerSecond;
+            this.lastRefillMillis = clockMillis.getAsLong();
+        }
+
+        @Override
+        public synchronized boolean sample(Object receivingObject, Object parameterObjects) {
+            long now = clockMillis.getAsLong();
+            tokens = Math.min(capturesPerSecond, tokens + (now - lastRefillMillis) * capturesPerSecond / 1000.0);
+            lastRefillMillis = now;
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Captured objects are written as soon as they are sampled, so a
+     * reservoir cannot evict them later. Instead, each invocation in a
+     * window is sampled with probability size / (invocations in the
+     * previous window), which spreads about size samples uniformly over
+     * the window, and never more than size. In the first window, the
+     * i-th invocation is sampled with probability size / i, as it would
+     * enter a classic reservoir.
+     */
+    static final class Reservoir implements SamplingPolicy {
+        private final int size;
+        private final long windowMillis;
+        private final LongSupplier clockMillis;
+        private long windowStartMillis;
+        private long invocationsInWindow;
+        private long invocationsInPreviousWindow;
+        private int sampledInWindow;
+
+        Reservoir(int size, long windowMillis, LongSupplier clockMillis) {
+            this.size = (int) requirePositive(size);
+            this.windowMillis = requirePositive(windowMillis);
+            this.clockMillis = clockMillis;
+            this.windowStartMillis = clockMillis.getAsLong();
+        }
+
+        @Override
+        public synchronized boolean sample(Object receivingObject, Object parameterObjects) {
+            long now = clockMillis.getAsLong();
+            if (now - windowStartMillis >= windowMillis) {
+                invocationsInPreviousWindow = invocationsInWindow;
+                invocationsInWindow = 0;
+                sampledInWindow = 0;
+                windowStartMillis = now;
+            }
+            invocationsInWindow++;
+            if (sampledInWindow >= size) {
+                return false;
+            }
+            long population = invocationsInPreviousWindow > 0 ? invocationsInPreviousWindow : invocationsInWindow;
+            if (ThreadLocalRandom.current().nextDouble() * population < size) {
+                sampledInWindow++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Samples an invocation only if the serialized state of its receiver
+     * and parameters has a hash that was not seen before. The state is
+     * serialized once more for hashing, which costs CPU but no I/O for
+     * repeated states. The state is serialized on the application thread,
+     * so an invocation whose state cannot be serialized is not sampled,
+     * rather than failing the instrumented method.
+     */
+    static final class NewState implements SamplingPolicy {
+        private final int maxStates;
+        private final Function<Object, String> stateSerializer;
+        private final Set<Long> seenStates = ConcurrentHashMap.newKeySet();
+
+        NewState(int maxStates, Function<Object, String> stateSerializer) {
+            this.maxStates = (int) requirePositive(maxStates);
+            this.stateSerializer = stateSerializer;
+        }
+
+        @Override
+        public boolean sample(Object receivingObject, Object parameterObjects) {
+            if (isExhausted()) {
+                return false;
+            }
+            long hash;
+            try {
+                hash = hash(stateSerializer.apply(receivingObject));
+                hash = 31 * hash + hash(stateSerializer.apply(parameterObjects));
+            } catch (RuntimeException | StackOverflowError e) {
+                return false;
+            }
+            return seenStates.add(hash);
+        }
+
+        @Override
+        public boolean isExhausted() {
+            return seenStates.size() >= maxStates;
+        }
+
+        // 64-bit FNV-1a, so that distinct states rarely collide
+        static long hash(String state) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : state.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.util.function.Function;
+
+/**
+ * Decides which invocations of an instrumented method have their
+ * objects captured. Each aspect has its own policy, selected by a
+ * specification of the form {@code name[:arguments]}:
+ * <ul>
+ *     <li>{@code all}: every invocation</li>
+ *     <li>{@code first:N}: the first N invocations, after which the aspect disables itself</li>
+ *     <li>{@code rate:N}: one in every N invocations</li>
+ *     <li>{@code token-bucket:K}: at most K invocations per second</li>
+ *     <li>{@code reservoir:K/W}: about K invocations spread over each window of W milliseconds</li>
+ *     <li>{@code new-state[:M]}: invocations whose receiver and parameters have not been seen
+ *     before, remembering at most M states, after which the aspect disables itself</li>
+ * </ul>
+ * The specification for a method is taken from the samplingPolicies
+ * entry {@code <methodFQN>=<spec>}, then from samplingPolicy, and then
+ * from the default of the aspect template. Specifications set through
+ * CaptureControl take precedence, see MethodControl.
+ */
+public interface SamplingPolicy {
+
+    boolean sample(Object receivingObject, Object parameterObjects);
+
+    // Whether the policy will never sample again, so that the aspect can disable itself
+    default boolean isExhausted() {
+        return false;
+    }
+
+    static SamplingPolicy forMethod(String methodFQN, String defaultSpec,
+                                    Function<Object, String> stateSerializer) {
+        String spec = null;
+        for (String entry : CaptureConfig.getList("samplingPolicies")) {
+            int separator = entry.lastIndexOf('=');
+            if (separator > 0 && entry.substring(0, separator).trim().equals(methodFQN)) {
+                spec = entry.substring(separator + 1);
+            }
+        }
+        if (spec == null) {
+            spec = CaptureConfig.getString("samplingPolicy", defaultSpec);
+        }
+        return forSpec(spec, defaultSpec, stateSerializer);
+    }
+
+    // The policy of the default specification if the specification is invalid
+    static SamplingPolicy forSpec(String spec, String defaultSpec, Function<Object, String> stateSerializer) {
+        try {
+            return SamplingPolicies.parse(spec, stateSerializer);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return SamplingPolicies.parse(defaultSpec, stateSerializer);
+        }
+    }
+}
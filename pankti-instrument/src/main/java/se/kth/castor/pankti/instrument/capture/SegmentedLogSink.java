@@ -0,0 +1,104 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores all profiles in one append-only log in the storage directory
+ * (see ProfileLog), so that many aspects write sequentially to one open
+ * file, instead of keeping a file open per profile. A new segment is
+ * started once the current one reaches the segment size. Appends are
+ * serialized by the monitor of the sink.
+ */
+public final class SegmentedLogSink implements ProfileSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final String directoryPrefix;
+    private final long segmentSizeBytes;
+    private final Map<String, Long> sizes;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Set<String> definedInSegment = new HashSet<>();
+    private final ByteArrayOutputStream encodedText = new ByteArrayOutputStream();
+    private int segmentNumber;
+    private DataOutputStream segment;
+
+    public SegmentedLogSink(File directory, long segmentSizeBytes) throws IOException {
+        this.directory = directory;
+        this.directoryPrefix = directory.getPath() + File.separator;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.sizes = ProfileLog.readSizes(directory);
+        this.segmentNumber = ProfileLog.nextSegmentNumber(directory);
+    }
+
+    private String relativeName(String profilePath) {
+        return profilePath.startsWith(directoryPrefix) ? profilePath.substring(directoryPrefix.length()) : profilePath;
+    }
+
+    private void startSegmentIfNeeded() throws IOException {
+        if (segment != null && segment.size() < segmentSizeBytes) {
+            return;
+        }
+        if (segment != null) {
+            segment.close();
+            segmentNumber++;
+        }
+        segment = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(ProfileLog.segmentFile(directory, segmentNumber), true), BUFFER_SIZE));
+        definedInSegment.clear();
+    }
+
+    @Override
+    public synchronized void append(String profilePath, byte[] bytes, int offset, int length) throws IOException {
+        startSegmentIfNeeded();
+        String name = relativeName(profilePath);
+        int id = ids.computeIfAbsent(name, n -> ids.size());
+        if (definedInSegment.add(name)) {
+            segment.write(ProfileLog.encodeDefine(id, name));
+        }
+        segment.writeByte(ProfileLog.APPEND);
+        segment.writeInt(id);
+        segment.writeInt(length);
+        segment.write(bytes, offset, length);
+        sizes.merge(name, (long) length, Long::sum);
+    }
+
+    @Override
+    public void append(String profilePath, String content) throws IOException {
+        byte[] bytes = content.getBytes();
+        append(profilePath, bytes, 0, bytes.length);
+    }
+
+    @Override
+    public synchronized long append(String profilePath, RecordBuffer record) throws IOException {
+        encodedText.reset();
+        Writer writer = new OutputStreamWriter(encodedText);
+        record.transferTo(writer);
+        writer.flush();
+        append(profilePath, encodedText.toByteArray(), 0, encodedText.size());
+        return encodedText.size();
+    }
+
+    @Override
+    public synchronized long size(String profilePath) {
+        return sizes.getOrDefault(relativeName(profilePath), 0L);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (segment != null) {
+            segment.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.reflection.AbstractReflectionConverter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the metadata that XStream builds on the first capture of a
+ * type, before the instrumented methods are invoked: the converter of the
+ * type, its serialized name, and its fields, for the declaring classes,
+ * parameter types, and return types of the methods in the @Pointcuts of
+ * the aspects in META-INF/glowroot.plugin.json, and for the types of
+ * their fields, up to warmUpDepth levels deep.
+ * <p>
+ * The warm-up starts once, on a daemon thread, when the shared XStream
+ * instance is set up (see AdviceTemplate), so the aspect that is invoked
+ * first does not wait for it. Instrumented classes are loaded without
+ * being initialized. XStream caches all of this metadata in thread-safe
+ * structures, so captures can run while it is resolved.
+ */
+public final class XStreamWarmUp {
+    private static final String PLUGIN_JSON = "META-INF/glowroot.plugin.json";
+    private static final Pattern PLUGIN_ID = Pattern.compile(
+            "\"id\"\\s*:\\s*\"" + Pattern.quote(CaptureConfig.PLUGIN_ID) + "\"");
+    private static final Pattern ASPECTS = Pattern.compile("\"aspects\"\\s*:\\s*\\[([^]]*)]");
+    private static final Pattern QUOTED = Pattern.compile("\"([^\"]+)\"");
+
+    private XStreamWarmUp() {
+    }
+
+    // Warms up the shared instance in the background, unless warmUpXStream is false
+    public static void start(XStream xStream) {
+        if (!CaptureConfig.getBoolean("warmUpXStream", true)) {
+            return;
+        }
+        int depth = (int) CaptureConfig.getLong("warmUpDepth", 3);
+        ClassLoader loader = XStreamWarmUp.class.getClassLoader();
+        Thread thread = new Thread(() -> {
+            try {
+                warmUp(xStream, instrumentedTypes(readAspectClassNames(loader), loader), depth);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "pankti-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The aspects listed in the plugin descriptor of pankti
+    static List<String> readAspectClassNames(ClassLoader loader) throws IOException {
+        List<String> aspectClassNames = new ArrayList<>();
+        Enumeration<URL> descriptors = loader.getResources(PLUGIN_JSON);
+        while (descriptors.hasMoreElements()) {
+            String descriptor;
+            try (InputStream in = descriptors.nextElement().openStream()) {
+                descriptor = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            Matcher aspects = ASPECTS.matcher(descriptor);
+            if (PLUGIN_ID.matcher(descriptor).find() && aspects.find()) {
+                Matcher aspect = QUOTED.matcher(aspects.group(1));
+                while (aspect.find()) {
+                    aspectClassNames.add(aspect.group(1));
+                }
+            }
+        }
+        return aspectClassNames;
+    }
+
+    /**
+     * The declaring classes, parameter types, and return types of the
+     * methods that the advice classes of the aspects instrument. Classes
+     * that cannot be loaded, and methods named by a pattern, are skipped.
+     */
+    static Set<Class<?>> instrumentedTypes(List<String> aspectClassNames, ClassLoader loader) {
+        Set<Class<?>> types = new LinkedHashSet<>();
+        for (String aspectClassName : aspectClassNames) {
+            Class<?>[] adviceClasses;
+            try {
+                adviceClasses = Class.forName(aspectClassName, false, loader).getDeclaredClasses();
+            } catch (ClassNotFoundException | LinkageError e) {
+                continue;
+            }
+            for (Class<?> adviceClass : adviceClasses) {
+                Pointcut pointcut = adviceClass.getAnnotation(Pointcut.class);
+                if (pointcut != null) {
+                    addInstrumentedTypes(pointcut, loader, types);
+                }
+            }
+        }
+        return types;
+    }
+
+    private static void addInstrumentedTypes(Pointcut pointcut, ClassLoader loader, Set<Class<?>> types) {
+        Class<?> instrumentedClass = loadInstrumentedClass(pointcut.className(), loader);
+        if (instrumentedClass == null) {
+            return;
+        }
+        types.add(instrumentedClass);
+        List<String> parameterTypeNames = Arrays.asList(pointcut.methodParameterTypes());
+        try {
+            for (Method method : instrumentedClass.getDeclaredMethods()) {
+                if (method.getName().equals(pointcut.methodName())
+                        && parameterTypeNames.equals(typeNames(method.getParameterTypes()))) {
+                    types.addAll(Arrays.asList(method.getParameterTypes()));
+                    types.add(method.getReturnType());
+                }
+            }
+        } catch (LinkageError e) {
+            // A type in a signature of the class is missing
+        }
+    }
+
+    // Instrumented classes are loaded by the application, so its class loader is tried first
+    private static Class<?> loadInstrumentedClass(String className, ClassLoader loader) {
+        for (ClassLoader candidate : Arrays.asList(ClassLoader.getSystemClassLoader(), loader)) {
+            try {
+                return Class.forName(className, false, candidate);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Try the next class loader
+            }
+        }
+        return null;
+    }
+
+    private static List<String> typeNames(Class<?>[] types) {
+        List<String> typeNames = new ArrayList<>(types.length);
+        for (Class<?> type : types) {
+            typeNames.add(type.getTypeName());
+        }
+        return typeNames;
+    }
+
+    /**
+     * Resolves the converter, serialized name, and fields of the types,
+     * and of the types of their fields up to depth levels deep, and
+     * returns the types it resolved.
+     */
+    static Set<Class<?>> warmUp(XStream xStream, Collection<Class<?>> types, int depth) {
+        Set<Class<?>> resolved = new LinkedHashSet<>();
+        List<Class<?>> level = new ArrayList<>(types);
+        for (int i = 0; i <= depth && !level.isEmpty(); i++) {
+            List<Class<?>> next = new ArrayList<>();
+            for (Class<?> type : level) {
+                if (resolved.add(type)) {
+                    resolve(xStream, type, next);
+                }
+            }
+            level = next;
+        }
+        return resolved;
+    }
+
+    private static void resolve(XStream xStream, Class<?> type, List<Class<?>> fieldTypes) {
+        if (type == void.class) {
+            return;
+        }
+        Mapper mapper = xStream.getMapper();
+        try {
+            mapper.serializedClass(type);
+            Converter converter = xStream.getConverterLookup().lookupConverterForType(type);
+            if (type.isArray()) {
+                fieldTypes.add(type.getComponentType());
+                return;
+            }
+            // Only the reflection converters marshal the fields of a type
+            if (!(converter instanceof AbstractReflectionConverter)) {
+                return;
+            }
+            // Builds the field dictionary of the type and its superclasses
+            xStream.getReflectionProvider().getFieldOrNull(type, "");
+            for (Class<?> declaring = type; declaring != null; declaring = declaring.getSuperclass()) {
+                for (Field field : declaring.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())) {
+                        continue;
+                    }
+                    if (mapper.shouldSerializeMember(declaring, field.getName())) {
+                        mapper.serializedMember(declaring, field.getName());
+                        fieldTypes.add(mapper.defaultImplementationOf(field.getType()));
+                    }
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // XStream resolves the type on its first capture instead
+        }
+    }
+}
@@ -18,6 +18,6 @@ public class ClassLoaderConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().contains("ClassLoader");
+        return ClassLoader.class.isAssignableFrom(aClass) || aClass.getName().contains("ClassLoader");
     }
 }
@@ -20,10 +20,8 @@ public class CleanerImplConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().equals("java.lang.ref.Cleaner") ||
-                aClass.getCanonicalName().equals("java.lang.ref.Cleaner.Cleanable") ||
-                aClass.getCanonicalName().equals("jdk.internal.ref.CleanerImpl") ||
-                aClass.getCanonicalName().equals("jdk.internal.ref.CleanerImpl.PhantomCleanableRef") ||
+        return aClass.getName().equals("jdk.internal.ref.CleanerImpl") ||
+                aClass.getName().equals("jdk.internal.ref.CleanerImpl$PhantomCleanableRef") ||
                 Cleaner.class.isAssignableFrom(aClass) ||
                 Cleaner.Cleanable.class.isAssignableFrom(aClass);
     }
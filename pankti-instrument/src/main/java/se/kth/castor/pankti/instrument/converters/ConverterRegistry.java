@@ -0,0 +1,121 @@
+package se.kth.castor.pankti.instrument.converters;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The converters of pankti, registered with XStream as one converter.
+ * The converter for a type is selected once, and cached in a ClassValue:
+ * the first of the known converters for JDK types that cannot be
+ * serialized (class loaders, threads, cleaners, ...), and otherwise an
+ * empty node for the configured classes (omittedClasses), their
+ * subclasses, and their implementations.
+ * <p>
+ * A type that XStream still has no converter for is omitted from then
+ * on, without registering another converter, which would make XStream
+ * flush its own cache of converters.
+ */
+public final class ConverterRegistry implements Converter {
+    // Writes an empty node, like the known converters
+    private static final Converter OMITTED = new Converter() {
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return false;
+        }
+    };
+
+    private final List<Converter> knownConverters = List.of(
+            new ClassLoaderConverter(),
+            new FileCleanableConverter(),
+            new InflaterConverter(),
+            new CleanerImplConverter(),
+            new ThreadConverter(),
+            new ThreadGroupConverter());
+    private final Set<String> omittedClassNames;
+    private final Set<String> omittedAtRuntime = ConcurrentHashMap.newKeySet();
+    private final ClassValue<Converter> converters = new ClassValue<>() {
+        @Override
+        protected Converter computeValue(Class<?> type) {
+            return selectConverter(type);
+        }
+    };
+
+    public ConverterRegistry(List<String> omittedClassNames) {
+        this.omittedClassNames = new HashSet<>(omittedClassNames);
+    }
+
+    private Converter selectConverter(Class<?> type) {
+        for (Converter converter : knownConverters) {
+            if (converter.canConvert(type)) {
+                return converter;
+            }
+        }
+        return isOmitted(type) ? OMITTED : null;
+    }
+
+    private boolean isOmitted(Class<?> type) {
+        for (Class<?> superType = type; superType != null; superType = superType.getSuperclass()) {
+            if (omittedClassNames.contains(superType.getName())) {
+                return true;
+            }
+            for (Class<?> implemented : superType.getInterfaces()) {
+                if (isOmitted(implemented)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Omits the type that XStream had no converter for, if that is why
+     * serialization failed, and returns whether it did.
+     */
+    public boolean omitUnconvertibleType(Exception e) {
+        if (!(e instanceof ConversionException) || !e.getMessage().startsWith("No converter")) {
+            return false;
+        }
+        String className = ((ConversionException) e).get("type");
+        return className != null && omittedAtRuntime.add(className);
+    }
+
+    @Override
+    public boolean canConvert(Class type) {
+        if (type == null) {
+            return false;
+        }
+        return converters.get(type) != null
+                || !omittedAtRuntime.isEmpty() && omittedAtRuntime.contains(type.getName());
+    }
+
+    @Override
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+        Converter converter = converters.get(source.getClass());
+        if (converter != null) {
+            converter.marshal(source, writer, context);
+        }
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+        return null;
+    }
+}
@@ -18,6 +18,6 @@ public class FileCleanableConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().equals("java.io.FileCleanable");
+        return aClass.getName().equals("java.io.FileCleanable");
     }
 }
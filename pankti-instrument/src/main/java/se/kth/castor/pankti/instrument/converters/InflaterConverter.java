@@ -6,6 +6,8 @@ import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 
+import java.util.zip.Inflater;
+
 public class InflaterConverter implements Converter {
     @Override
     public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
@@ -18,6 +20,6 @@ public class InflaterConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().equals("java.util.zip.Inflater");
+        return Inflater.class.isAssignableFrom(aClass);
     }
 }
@@ -18,6 +18,6 @@ public class ThreadConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().equals("java.lang.Thread");
+        return Thread.class.isAssignableFrom(aClass);
     }
 }
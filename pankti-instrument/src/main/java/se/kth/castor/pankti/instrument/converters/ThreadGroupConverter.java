@@ -18,6 +18,6 @@ public class ThreadGroupConverter implements Converter {
 
     @Override
     public boolean canConvert(Class aClass) {
-        return aClass.getCanonicalName().equals("java.lang.ThreadGroup");
+        return ThreadGroup.class.isAssignableFrom(aClass);
     }
 }
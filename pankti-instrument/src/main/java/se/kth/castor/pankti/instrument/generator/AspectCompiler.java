@@ -0,0 +1,78 @@
+package se.kth.castor.pankti.instrument.generator;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compiles the sources of generated aspects in memory, with the compiler
+ * of the JDK, against the plugin jar and the class path of the generator,
+ * which holds the Glowroot plugin API.
+ */
+final class AspectCompiler {
+    // The release of pankti-instrument, so that aspects load wherever the plugin does
+    private static final String RELEASE = "11";
+
+    private AspectCompiler() {
+    }
+
+    // The class files of the sources, by binary class name
+    static Map<String, byte[]> compile(Map<String, String> sourcesByClassName, File pluginJar) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Aspects are compiled with the compiler of a JDK, run the generator with one");
+        }
+        List<JavaFileObject> sources = new ArrayList<>();
+        sourcesByClassName.forEach((className, source) -> sources.add(new SourceFile(className, source)));
+        Map<String, ByteArrayOutputStream> outputs = new TreeMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardFileManager =
+                compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<>(standardFileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return outputs.computeIfAbsent(className, name -> new ByteArrayOutputStream());
+                    }
+                };
+            }
+        };
+        List<String> options = List.of("--release", RELEASE, "-proc:none", "-nowarn", "-classpath",
+                pluginJar.getAbsolutePath() + File.pathSeparator + System.getProperty("java.class.path"));
+        boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+        if (!compiled) {
+            StringJoiner errors = new StringJoiner("\n", "Generated aspects do not compile:\n", "");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.add(diagnostic.toString());
+                }
+            }
+            throw new IllegalStateException(errors.toString());
+        }
+        Map<String, byte[]> classFiles = new TreeMap<>();
+        outputs.forEach((className, output) -> classFiles.put(className, output.toByteArray()));
+        return classFiles;
+    }
+
+    private static final class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.castor.pankti.instrument.generator;
+
+import se.kth.castor.pankti.instrument.capture.MethodTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Generates the aspects for the methods of a pankti-extract CSV file, and
+ * writes them into the plugin jar in one step, without a rebuild of the
+ * plugin:
+ * <pre>
+ * java -cp /path/to/glowroot.jar:pankti-instrument-&lt;version&gt;-jar-with-dependencies.jar \
+ *     se.kth.castor.pankti.instrument.generator.AspectGenerator \
+ *     &lt;candidates&gt;.csv &lt;plugin&gt;.jar [methods|mock|counter|dispatch] [fully.qualified.name.of.CUT]
+ * </pre>
+ * <ul>
+ *     <li>methods: a MethodAspect per method</li>
+ *     <li>mock: a MethodAspect per method with mockable invocations, and a
+ *     nested aspect per nested invocation</li>
+ *     <li>counter: the same, from the CounterAspect templates</li>
+ *     <li>dispatch: a DispatcherAspect per 200 classes, which reads the
+ *     methods from the CSV file given with dispatchMethods, and a nested
+ *     aspect per nested invocation of its methods with mockable
+ *     invocations</li>
+ * </ul>
+ * The aspects of the family that were generated before are replaced.
+ */
+public final class AspectGenerator {
+    // Keeps the class name pattern of each @Pointcut well within the size of a constant
+    static final int CLASSES_PER_DISPATCHER = 200;
+
+    public enum Mode {
+        METHODS("MethodAspect"),
+        MOCK("MethodAspect"),
+        COUNTER("CounterAspect"),
+        DISPATCH("DispatcherAspect");
+
+        private final String family;
+
+        Mode(String family) {
+            this.family = family;
+        }
+    }
+
+    private AspectGenerator() {
+    }
+
+    // The sources of the aspects, by class name, in the order they are listed in the plugin
+    static Map<String, String> generateSources(List<MethodTable.Method> methods, Mode mode) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        String packagePrefix = AspectSources.PLUGINS_PACKAGE + ".";
+        if (mode == Mode.DISPATCH) {
+            List<String> template = AspectSources.readTemplate("DispatcherAspect0");
+            List<String> nestedTemplate = AspectSources.readTemplate("MethodAspect0Nested0");
+            List<List<MethodTable.Method>> chunks = chunkByClass(methods);
+            for (int i = 0; i < chunks.size(); i++) {
+                sources.put(packagePrefix + "DispatcherAspect" + (i + 1),
+                        AspectSources.dispatcherAspect(template, i + 1, chunks.get(i)));
+                int nestedCount = 0;
+                for (MethodTable.Method method : chunks.get(i)) {
+                    if (!method.hasMockableInvocations()) {
+                        continue;
+                    }
+                    for (AspectSources.NestedInvocation invocation
+                            : AspectSources.parseNestedInvocations(method.getNestedInvocations())) {
+                        nestedCount++;
+                        sources.put(packagePrefix + "DispatcherAspect" + (i + 1) + "Nested" + nestedCount,
+                                AspectSources.dispatchedNestedAspect(nestedTemplate, i + 1, nestedCount,
+                                        method, invocation));
+                    }
+                }
+            }
+            return sources;
+        }
+        String family = mode.family;
+        List<String> template = AspectSources.readTemplate(family + "0");
+        List<String> nestedTemplate = mode == Mode.METHODS ? null : AspectSources.readTemplate(family + "0Nested0");
+        int count = 0;
+        for (MethodTable.Method method : methods) {
+            if (mode != Mode.METHODS && !method.hasMockableInvocations()) {
+                continue;
+            }
+            count++;
+            sources.put(packagePrefix + family + count,
+                    AspectSources.parentAspect(family, template, count, method, mode != Mode.METHODS));
+            if (nestedTemplate == null) {
+                continue;
+            }
+            List<AspectSources.NestedInvocation> invocations =
+                    AspectSources.parseNestedInvocations(method.getNestedInvocations());
+            for (int i = 0; i < invocations.size(); i++) {
+                sources.put(packagePrefix + family + count + "Nested" + (i + 1),
+                        AspectSources.nestedAspect(family, nestedTemplate, count, i + 1, invocations.get(i)));
+            }
+        }
+        return sources;
+    }
+
+    private static List<List<MethodTable.Method>> chunkByClass(List<MethodTable.Method> methods) {
+        Map<String, List<MethodTable.Method>> methodsByClass = new LinkedHashMap<>();
+        for (MethodTable.Method method : methods) {
+            methodsByClass.computeIfAbsent(method.getClassName(), className -> new ArrayList<>()).add(method);
+        }
+        List<List<MethodTable.Method>> chunks = new ArrayList<>();
+        List<MethodTable.Method> chunk = new ArrayList<>();
+        int classes = 0;
+        for (List<MethodTable.Method> classMethods : methodsByClass.values()) {
+            if (classes == CLASSES_PER_DISPATCHER) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                classes = 0;
+            }
+            chunk.addAll(classMethods);
+            classes++;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    // Generates, compiles, and writes the aspects into the plugin jar, and returns their class names
+    public static List<String> generate(File csvFile, File pluginJar, Mode mode, String cut) throws IOException {
+        MethodTable methodTable = MethodTable.load(csvFile.toPath());
+        List<MethodTable.Method> methods = new ArrayList<>();
+        for (int id = 0; id < methodTable.size(); id++) {
+            if (cut.isEmpty() || methodTable.get(id).getClassName().equals(cut)) {
+                methods.add(methodTable.get(id));
+            }
+        }
+        Map<String, String> sources = generateSources(methods, mode);
+        Map<String, byte[]> classFiles = sources.isEmpty()
+                ? Map.of()
+                : AspectCompiler.compile(sources, pluginJar);
+        List<String> aspectClassNames = new ArrayList<>(sources.keySet());
+        PluginJar.replaceAspects(pluginJar, mode.family, aspectClassNames, classFiles);
+        return aspectClassNames;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("USAGE: AspectGenerator </path/to/instrumentation/candidate/list>.csv "
+                    + "</path/to/plugin>.jar [methods|mock|counter|dispatch] <optional.fqn.of.class.under.test>");
+            System.exit(1);
+        }
+        Mode mode = args.length > 2 ? Mode.valueOf(args[2].toUpperCase()) : Mode.METHODS;
+        String cut = args.length > 3 ? args[3] : "";
+        long start = System.nanoTime();
+        List<String> aspectClassNames = generate(new File(args[0]), new File(args[1]), mode, cut);
+        System.out.printf("%d aspect classes written to %s in %d ms%n", aspectClassNames.size(), args[1],
+                (System.nanoTime() - start) / 1_000_000);
+        if (mode == Mode.DISPATCH) {
+            System.out.println("Run the application with -Dpankti.dispatchMethods="
+                    + Paths.get(args[0]).toAbsolutePath());
+        }
+    }
+}
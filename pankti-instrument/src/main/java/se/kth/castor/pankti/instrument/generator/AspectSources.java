@@ -0,0 +1,236 @@
+package se.kth.castor.pankti.instrument.generator;
+
+import se.kth.castor.pankti.instrument.capture.MethodTable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the sources of aspects from the templates in the plugins package
+ * (MethodAspect0, CounterAspect0, their Nested0 aspects, and
+ * DispatcherAspect0, whose nested aspects are written from
+ * MethodAspect0Nested0), which are packaged as resources. Lines are rewritten
+ * by the markers they contain, so the templates keep compiling as they are.
+ */
+final class AspectSources {
+    static final String PLUGINS_PACKAGE = "se.kth.castor.pankti.instrument.plugins";
+    private static final String TEMPLATES = "templates/";
+    private static final Pattern CLASS_NAME = Pattern.compile("=\\s\"(.+)\",");
+    private static final Pattern PARAMETER_TYPES = Pattern.compile("=\\s\\{.*},");
+    private static final Pattern TIMER_NAME = Pattern.compile("=\\s\".+\"\\)");
+    private static final Pattern COUNT = Pattern.compile("=\\s\\d+;");
+    private static final Pattern PARENT = Pattern.compile("=\\s.+;");
+    private static final Pattern DECLARING_TYPE = Pattern.compile("nestedInvocationDeclaringType='([^']*)'");
+    private static final Pattern METHOD = Pattern.compile("nestedInvocationMethod='(\\w+)'");
+    private static final Pattern PARAMETERS = Pattern.compile("nestedInvocationParams='\\[(.*?)]'");
+    private static final Pattern MODE = Pattern.compile("nestedInvocationMode='(\\w+)'");
+
+    private AspectSources() {
+    }
+
+    static final class NestedInvocation {
+        final String className;
+        final String methodName;
+        final List<String> parameterTypes;
+        final boolean onLibraryMethod;
+
+        NestedInvocation(String className, String methodName, List<String> parameterTypes, boolean onLibraryMethod) {
+            this.className = className;
+            this.methodName = methodName;
+            this.parameterTypes = parameterTypes;
+            this.onLibraryMethod = onLibraryMethod;
+        }
+    }
+
+    static List<String> readTemplate(String templateName) {
+        try (InputStream in = AspectSources.class.getResourceAsStream(TEMPLATES + templateName + ".java")) {
+            if (in == null) {
+                throw new IllegalStateException("No template " + templateName);
+            }
+            return List.of(new String(in.readAllBytes(), StandardCharsets.UTF_8).split("(?<=\n)"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The nested invocations of a method, as pankti-extract lists them
+    static List<NestedInvocation> parseNestedInvocations(String nestedInvocations) {
+        List<NestedInvocation> invocations = new ArrayList<>();
+        for (String invocation : nestedInvocations.split("}, ")) {
+            Matcher declaringType = DECLARING_TYPE.matcher(invocation);
+            Matcher method = METHOD.matcher(invocation);
+            if (!declaringType.find() || !method.find()) {
+                continue;
+            }
+            Matcher parameters = PARAMETERS.matcher(invocation);
+            Matcher mode = MODE.matcher(invocation);
+            invocations.add(new NestedInvocation(declaringType.group(1), method.group(1),
+                    parameters.find() ? MethodTable.parseParameterTypes(parameters.group(1)) : List.of(),
+                    mode.find() && mode.group(1).equals("LIBRARY")));
+        }
+        return invocations;
+    }
+
+    // An aspect for a method from the MethodAspect0 or CounterAspect0 template
+    static String parentAspect(String family, List<String> template, int count, MethodTable.Method method,
+                               boolean markMockableInvocations) {
+        StringBuilder source = new StringBuilder();
+        for (String line : template) {
+            if (line.contains("public class " + family + "0")) {
+                line = line.replace("0", String.valueOf(count));
+            }
+            if (line.contains("@Pointcut(className =")) {
+                line = replace(CLASS_NAME, line, "= \"" + method.getClassName() + "\",");
+            }
+            if (line.contains("methodName = ")) {
+                line = replace(CLASS_NAME, line, "= \"" + method.getMethodName() + "\",");
+            }
+            if (line.contains("String rowInCSVFile")) {
+                line = line.replace("\"\"", "\"" + javaString(method.getInvokedMethodsRow()) + "\"");
+            }
+            // Changes needed for void methods
+            if (method.isReturnTypeVoid()) {
+                if (line.contains("boolean isReturnTypeVoid")) {
+                    line = line.replace("false", "true");
+                }
+                if (line.contains("onReturn(@BindReturn Object returnedObject,")) {
+                    line = line.replace("@BindReturn Object returnedObject", "@BindReceiver Object receivingObjectPost");
+                }
+                if (line.contains("writeObjectXMLToFile(returnedObject, returnedObjectFilePath,")) {
+                    line = line.replace("returnedObject", "receivingObjectPost");
+                }
+            }
+            if (markMockableInvocations && method.hasMockableInvocations()
+                    && line.contains("boolean hasMockableInvocations")) {
+                line = line.replace("false", "true");
+            }
+            if (line.contains("methodParameterTypes = ")) {
+                line = replace(PARAMETER_TYPES, line, "= {" + quoted(method.getParameterTypes()) + "},");
+            }
+            if (line.contains("timerName = ")) {
+                line = replace(TIMER_NAME, line, "= \"" + method.getClassName() + "-" + method.getMethodName() + "\")");
+            }
+            if (line.contains("int COUNT = ")) {
+                line = replace(COUNT, line, "= " + count + ";");
+            }
+            source.append(line);
+        }
+        return source.toString();
+    }
+
+    // An aspect for a nested invocation from the MethodAspect0Nested0 or CounterAspect0Nested0 template
+    static String nestedAspect(String family, List<String> template, int count, int nestedCount,
+                               NestedInvocation invocation) {
+        StringBuilder source = new StringBuilder();
+        for (String line : template) {
+            if (line.contains("public class " + family + "0Nested0")) {
+                line = line.replace("Aspect0", "Aspect" + count).replace("Nested0", "Nested" + nestedCount);
+            }
+            if (line.contains(family + "0.TargetMethodAdvice")) {
+                line = line.replace(family + "0", family + count);
+            }
+            source.append(nestedInvocationLine(line, count, nestedCount, invocation));
+        }
+        return source.toString();
+    }
+
+    /*
+     * An aspect for a nested invocation of a method that the dispatcher
+     * aspects capture, from the MethodAspect0Nested0 template. There is no
+     * parent aspect to read the parent from, so the parent is written into
+     * the aspect, with the FQN that MethodDispatcher enters it with.
+     */
+    static String dispatchedNestedAspect(List<String> template, int count, int nestedCount,
+                                         MethodTable.Method parent, NestedInvocation invocation) {
+        StringBuilder source = new StringBuilder();
+        for (String line : template) {
+            if (line.contains("public class MethodAspect0Nested0")) {
+                line = line.replace("MethodAspect0", "DispatcherAspect" + count)
+                        .replace("Nested0", "Nested" + nestedCount);
+            }
+            if (line.contains("String parentInvocationClassName = ")) {
+                line = replace(PARENT, line, "= \"" + javaString(parent.getClassName()) + "\";");
+            }
+            if (line.contains("String parentInvocationMethodName = ")) {
+                line = replace(PARENT, line, "= \"" + javaString(parent.getMethodName()) + "\";");
+            }
+            if (line.contains("String parentMethodFQN = ")) {
+                line = replace(PARENT, line, "= \"" + javaString(parent.getMethodFQN()) + "\";");
+            }
+            source.append(nestedInvocationLine(line, count, nestedCount, invocation));
+        }
+        return source.toString();
+    }
+
+    private static String nestedInvocationLine(String line, int count, int nestedCount, NestedInvocation invocation) {
+        if (line.contains("@Pointcut(className =")) {
+            line = replace(CLASS_NAME, line, "= \"" + invocation.className + "\",");
+        }
+        if (line.contains("methodName = ")) {
+            line = replace(CLASS_NAME, line, "= \"" + invocation.methodName + "\",");
+        }
+        if (line.contains("methodParameterTypes = ")) {
+            line = replace(PARAMETER_TYPES, line, "= {" + quoted(invocation.parameterTypes) + "},");
+        }
+        if (line.contains("timerName = ")) {
+            line = replace(TIMER_NAME, line, "= \"" + invocation.className + "-" + invocation.methodName + "\")");
+        }
+        if (line.contains("double COUNT = ")) {
+            line = replace(COUNT, line, "= " + count + "." + nestedCount + ";");
+        }
+        if (invocation.onLibraryMethod && line.contains("boolean invocationOnLibraryMethod")) {
+            line = line.replace("false", "true");
+        }
+        return line;
+    }
+
+    // A dispatcher aspect woven into the methods of the classes, from the DispatcherAspect0 template
+    static String dispatcherAspect(List<String> template, int count, List<MethodTable.Method> methods) {
+        LinkedHashSet<String> classNames = new LinkedHashSet<>();
+        LinkedHashSet<String> methodNames = new LinkedHashSet<>();
+        for (MethodTable.Method method : methods) {
+            classNames.add(method.getClassName());
+            methodNames.add(method.getMethodName());
+        }
+        StringBuilder source = new StringBuilder();
+        for (String line : template) {
+            if (line.contains("public class DispatcherAspect0")) {
+                line = line.replace("0", String.valueOf(count));
+            }
+            if (line.contains("@Pointcut(className =")) {
+                line = replace(CLASS_NAME, line, "= \"" + String.join("|", classNames) + "\",");
+            }
+            if (line.contains("methodName = ")) {
+                line = replace(CLASS_NAME, line, "= \"" + String.join("|", methodNames) + "\",");
+            }
+            if (line.contains("timerName = ")) {
+                line = replace(TIMER_NAME, line, "= \"pankti-dispatcher-" + count + "\")");
+            }
+            source.append(line);
+        }
+        return source.toString();
+    }
+
+    private static String replace(Pattern pattern, String line, String replacement) {
+        return pattern.matcher(line).replaceFirst(Matcher.quoteReplacement(replacement));
+    }
+
+    private static String quoted(List<String> parameterTypes) {
+        List<String> quoted = new ArrayList<>();
+        for (String parameterType : parameterTypes) {
+            quoted.add("\"" + parameterType + "\"");
+        }
+        return String.join(", ", quoted);
+    }
+
+    private static String javaString(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
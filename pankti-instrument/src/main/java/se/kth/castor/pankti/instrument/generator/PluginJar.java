@@ -0,0 +1,104 @@
+package se.kth.castor.pankti.instrument.generator;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces the generated aspects of a family (MethodAspect, CounterAspect,
+ * or DispatcherAspect) in the plugin jar: their class files, and their
+ * entries in the aspects of META-INF/glowroot.plugin.json. Other entries,
+ * the templates of the family, and the other aspects are kept.
+ */
+final class PluginJar {
+    static final String PLUGIN_JSON = "META-INF/glowroot.plugin.json";
+    private static final String CONTEXT_PROPAGATION_ASPECT = AspectSources.PLUGINS_PACKAGE + ".ContextPropagationAspect";
+    private static final Pattern ASPECTS = Pattern.compile("(\"aspects\"\\s*:\\s*\\[)([^]]*)(])");
+    private static final Pattern QUOTED = Pattern.compile("\"([^\"]+)\"");
+
+    private PluginJar() {
+    }
+
+    // Aspects generated from the templates of the family, not the templates themselves
+    static boolean isGenerated(String className, String family) {
+        String prefix = AspectSources.PLUGINS_PACKAGE + "." + family;
+        return className.startsWith(prefix)
+                && className.substring(prefix.length()).matches("[1-9]\\d*(Nested\\d+)?(\\$.*)?");
+    }
+
+    static void replaceAspects(File jar, String family, List<String> aspectClassNames,
+                               Map<String, byte[]> classFiles) throws IOException {
+        File updatedJar = File.createTempFile("pankti-plugin", ".jar", jar.getAbsoluteFile().getParentFile());
+        try (JarInputStream in = new JarInputStream(new FileInputStream(jar));
+             JarOutputStream out = openJar(updatedJar, in.getManifest())) {
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                String name = entry.getName();
+                if (name.endsWith(".class") && isGenerated(name.replace('/', '.').replace(".class", ""), family)) {
+                    continue;
+                }
+                out.putNextEntry(new JarEntry(name));
+                if (name.equals(PLUGIN_JSON)) {
+                    String pluginJson = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    out.write(replaceAspects(pluginJson, family, aspectClassNames).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    in.transferTo(out);
+                }
+                out.closeEntry();
+            }
+            for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+                out.putNextEntry(new JarEntry(classFile.getKey().replace('.', '/') + ".class"));
+                out.write(classFile.getValue());
+                out.closeEntry();
+            }
+        } catch (IOException | RuntimeException e) {
+            updatedJar.delete();
+            throw e;
+        }
+        Files.move(updatedJar.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static JarOutputStream openJar(File jar, Manifest manifest) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(jar));
+        return manifest == null ? new JarOutputStream(out) : new JarOutputStream(out, manifest);
+    }
+
+    // The aspects of the family are replaced, and the new ones listed first; ContextPropagationAspect stays last
+    static String replaceAspects(String pluginJson, String family, List<String> aspectClassNames) {
+        Matcher aspects = ASPECTS.matcher(pluginJson);
+        if (!aspects.find()) {
+            throw new IllegalArgumentException("No aspects in " + PLUGIN_JSON);
+        }
+        List<String> updatedAspects = new ArrayList<>(aspectClassNames);
+        boolean hasContextPropagation = false;
+        Matcher aspect = QUOTED.matcher(aspects.group(2));
+        while (aspect.find()) {
+            String className = aspect.group(1);
+            if (className.equals(CONTEXT_PROPAGATION_ASPECT)) {
+                hasContextPropagation = true;
+            } else if (!isGenerated(className, family)) {
+                updatedAspects.add(className);
+            }
+        }
+        if (hasContextPropagation) {
+            updatedAspects.add(CONTEXT_PROPAGATION_ASPECT);
+        }
+        StringBuilder list = new StringBuilder("\n");
+        for (int i = 0; i < updatedAspects.size(); i++) {
+            list.append("    \"").append(updatedAspects.get(i)).append('"')
+                    .append(i < updatedAspects.size() - 1 ? ",\n" : "\n");
+        }
+        list.append("  ");
+        return pluginJson.substring(0, aspects.start(2)) + list + pluginJson.substring(aspects.end(2));
+    }
+}
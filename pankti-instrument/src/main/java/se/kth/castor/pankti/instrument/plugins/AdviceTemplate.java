@@ -1,58 +1,127 @@
 package se.kth.castor.pankti.instrument.plugins;
 
 import com.thoughtworks.xstream.XStream;
-import se.kth.castor.pankti.instrument.converters.*;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import se.kth.castor.pankti.instrument.capture.BoundedGraphMarshallingStrategy;
+import se.kth.castor.pankti.instrument.capture.CaptureBudget;
+import se.kth.castor.pankti.instrument.capture.CaptureCompression;
+import se.kth.castor.pankti.instrument.capture.CaptureConfig;
+import se.kth.castor.pankti.instrument.capture.CaptureFormat;
+import se.kth.castor.pankti.instrument.capture.CaptureMetrics;
+import se.kth.castor.pankti.instrument.capture.InvokedMethodsRegistry;
+import se.kth.castor.pankti.instrument.capture.ProfileStorage;
+import se.kth.castor.pankti.instrument.capture.XStreamWarmUp;
+import se.kth.castor.pankti.instrument.converters.ConverterRegistry;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public interface AdviceTemplate {
-    XStream xStream = new XStream();
-
-    static void setUpXStream() {
-        xStream.registerConverter(new ClassLoaderConverter());
-        xStream.registerConverter(new FileCleanableConverter());
-        xStream.registerConverter(new InflaterConverter());
-        xStream.registerConverter(new CleanerImplConverter());
-        xStream.registerConverter(new ThreadConverter());
-        xStream.registerConverter(new ThreadGroupConverter());
+    // Selects the converters of pankti for each type once, and omits the configured classes (omittedClasses)
+    ConverterRegistry converterRegistry = new ConverterRegistry(CaptureConfig.getList("omittedClasses"));
+    /**
+     * The XStream instance shared by all aspects and threads. It is fully
+     * configured before it is published, and is never reconfigured: no
+     * converter is registered, and no mapper, marshalling strategy, or
+     * class loader is set, after setUpXStream, since XStream only
+     * guarantees thread-safe marshalling with a fixed configuration, and
+     * registering a converter flushes its cache of converters. Types that
+     * have no converter are omitted through the converterRegistry instead.
+     * The metadata of instrumented types is resolved in the background
+     * from the start (see XStreamWarmUp).
+     */
+    XStream xStream = setUpXStream();
+    // XML, or the compact binary format, selected with the captureFormat property
+    CaptureFormat captureFormat = CaptureFormat.getConfigured();
+    CaptureCompression captureCompression = CaptureCompression.getConfigured();
+
+    // Converters are registered once, when the shared XStream instance is created, which also bounds object graphs if configured
+    private static XStream setUpXStream() {
+        XStream xStream = new XStream();
+        xStream.registerConverter(converterRegistry);
+        BoundedGraphMarshallingStrategy boundedGraphs = BoundedGraphMarshallingStrategy.getConfigured();
+        if (boundedGraphs != null) {
+            xStream.setMarshallingStrategy(boundedGraphs);
+        }
+        XStreamWarmUp.start(xStream);
+        return xStream;
     }
 
-    static String setUpInvokedMethodsCSVFile(String storageDir) throws Exception {
-        String[] HEADERS = {"visibility", "parent-FQN", "method-name", "param-list", "return-type",
-                "param-signature", "has-mockable-invocations", "nested-invocations"};
+    // Serializes the state of an invocation for the new-state sampling policy, which skips it if this throws
+    static String serializeState(Object state) {
+        try {
+            return xStream.toXML(state);
+        } catch (RuntimeException e) {
+            converterRegistry.omitUnconvertibleType(e);
+            throw e;
+        }
+    }
 
+    static String setUpInvokedMethodsCSVFile(String storageDir) throws Exception {
         File invokedMethodsCSVFile = new File(storageDir + "invoked-methods.csv");
-        if (!invokedMethodsCSVFile.exists()) {
-            FileWriter myWriter = new FileWriter(invokedMethodsCSVFile);
-            myWriter.write(String.join(",", HEADERS));
-            myWriter.close();
-        }
+        InvokedMethodsRegistry.forFile(invokedMethodsCSVFile.getAbsolutePath());
         return invokedMethodsCSVFile.getAbsolutePath();
     }
 
+    // Appends to the profile sink, which flushes periodically and at shutdown
+    static void appendToFile(String filePath, String content) throws IOException {
+        ProfileStorage.getSink().append(filePath, content);
+    }
+
+    /**
+     * Appends one object record in the capture format, and returns its size.
+     * If the record has a type without a converter, nothing of it is stored,
+     * so it is marshalled once more with the type omitted, and the object
+     * is still captured the first time the type is found.
+     */
+    static long appendRecordToFile(String objectFilePath,
+                                   Consumer<HierarchicalStreamWriter> marshaller,
+                                   String... rootAttributes) throws IOException {
+        long start = System.nanoTime();
+        long recordSize;
+        try {
+            recordSize = captureFormat.append(objectFilePath, marshaller, rootAttributes);
+        } catch (RuntimeException e) {
+            if (!converterRegistry.omitUnconvertibleType(e)) {
+                throw e;
+            }
+            recordSize = captureFormat.append(objectFilePath, marshaller, rootAttributes);
+        }
+        CaptureMetrics.recordSerialization(objectFilePath, System.nanoTime() - start, recordSize);
+        return recordSize;
+    }
+
+    // Profile paths are set up even if the storage directory cannot be created, in which case nothing is captured
     static Map<Type, String> setUpFiles(String path) {
+        return setUpFiles(path, path);
+    }
+
+    // Nested invocations prefix their files, which are still measured as those of their method
+    static Map<Type, String> setUpFiles(String methodFQN, String path) {
         Map<Type, String> fileNameMap = new HashMap<>();
+        String storageDir = ProfileStorage.getDirectory();
+        String filePath = storageDir + path;
+        String objectFileExtension = captureFormat.getExtension() + captureCompression.getExtension();
+        fileNameMap.put(Type.RECEIVING_PRE, filePath + "-receiving" + objectFileExtension);
+        fileNameMap.put(Type.RECEIVING_POST, filePath + "-receiving-post" + objectFileExtension);
+        fileNameMap.put(Type.PARAMS, filePath + "-params" + objectFileExtension);
+        fileNameMap.put(Type.RETURNED, filePath + "-returned" + objectFileExtension);
+        fileNameMap.put(Type.INVOCATION_COUNT, filePath + "-count.txt");
+        fileNameMap.put(Type.OBJECT_PROFILE_SIZE, filePath + "-object-profile-sizes.txt");
+        fileNameMap.put(Type.INVOKED_METHODS, new File(storageDir + "invoked-methods.csv").getAbsolutePath());
+        CaptureMetrics.registerMethodFiles(methodFQN, fileNameMap.get(Type.RECEIVING_PRE),
+                fileNameMap.get(Type.RECEIVING_POST), fileNameMap.get(Type.PARAMS), fileNameMap.get(Type.RETURNED));
         try {
-            String storageDir = "/tmp/pankti-object-data/";
             Files.createDirectories(Paths.get(storageDir));
-            String invokedMethodsCSVFilePath = setUpInvokedMethodsCSVFile(storageDir);
-            String filePath = storageDir + path;
-            fileNameMap.put(Type.RECEIVING_PRE, filePath + "-receiving.xml");
-            fileNameMap.put(Type.RECEIVING_POST, filePath + "-receiving-post.xml");
-            fileNameMap.put(Type.PARAMS, filePath + "-params.xml");
-            fileNameMap.put(Type.RETURNED, filePath + "-returned.xml");
-            fileNameMap.put(Type.INVOCATION_COUNT, filePath + "-count.txt");
-            fileNameMap.put(Type.OBJECT_PROFILE_SIZE, filePath + "-object-profile-sizes.txt");
-            fileNameMap.put(Type.INVOKED_METHODS, invokedMethodsCSVFilePath);
-            return fileNameMap;
+            setUpInvokedMethodsCSVFile(storageDir);
         } catch (Exception e) {
             e.printStackTrace();
-            System.exit(0);
+            CaptureBudget.disableCapture();
         }
         return fileNameMap;
     }
@@ -0,0 +1,63 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.TraceEntry;
+import se.kth.castor.pankti.instrument.capture.InvocationProfileSize;
+
+import java.util.UUID;
+
+/**
+ * The state of a single invocation, returned from onBefore and bound
+ * with @BindTraveler in onReturn and onThrow. Keeping it here instead
+ * of in static fields of the aspect lets concurrent invocations of the
+ * same method keep their own UUIDs, timestamps, and capture decisions.
+ */
+public final class AdviceTraveler {
+    private final TraceEntry traceEntry;
+    private final UUID uuid;
+    private final long timestamp;
+    private final boolean captureAdmitted;
+    private final InvocationProfileSize profileSize;
+    private final String methodFQN;
+
+    public AdviceTraveler(TraceEntry traceEntry, UUID uuid, long timestamp,
+                          boolean captureAdmitted, InvocationProfileSize profileSize) {
+        this(traceEntry, uuid, timestamp, captureAdmitted, profileSize, null);
+    }
+
+    public AdviceTraveler(TraceEntry traceEntry, UUID uuid, long timestamp,
+                          boolean captureAdmitted, InvocationProfileSize profileSize, String methodFQN) {
+        this.traceEntry = traceEntry;
+        this.uuid = uuid;
+        this.timestamp = timestamp;
+        this.captureAdmitted = captureAdmitted;
+        this.profileSize = profileSize;
+        this.methodFQN = methodFQN;
+    }
+
+    public TraceEntry getTraceEntry() {
+        return traceEntry;
+    }
+
+    // The UUID of this invocation for a parent, or of its parent invocation for a nested one
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isCaptureAdmitted() {
+        return captureAdmitted;
+    }
+
+    // The size of the records of this invocation, if its objects are captured
+    public InvocationProfileSize getProfileSize() {
+        return profileSize;
+    }
+
+    // The method FQN a dispatched invocation entered the InvocationContext with, which a reload may rebind
+    public String getMethodFQN() {
+        return methodFQN;
+    }
+}
@@ -0,0 +1,219 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.ParameterHolder;
+import org.glowroot.agent.plugin.api.weaving.*;
+import se.kth.castor.pankti.instrument.capture.InvocationContext;
+
+import java.util.concurrent.Callable;
+
+/**
+ * This aspect class carries the invocation context of the submitting
+ * thread into tasks handed off to executors, and into the tasks that
+ * executors wrap them in, so that nested invocations running on pool
+ * threads can still be attributed to their parent. Tasks that Glowroot
+ * cannot mix TaskMixin into, such as lambdas, are handed off in a wrapper
+ * that carries the context instead.
+ */
+public class ContextPropagationAspect {
+
+    // Field and method names are prefixed since they are mixed into application classes
+    @Mixin({"java.lang.Runnable", "java.util.concurrent.Callable"})
+    public static class TaskImpl implements TaskMixin {
+        private transient volatile InvocationContext.Snapshot pankti$invocationSnapshot;
+
+        @Override
+        public InvocationContext.Snapshot pankti$getInvocationSnapshot() {
+            return pankti$invocationSnapshot;
+        }
+
+        @Override
+        public void pankti$setInvocationSnapshot(InvocationContext.Snapshot invocationSnapshot) {
+            pankti$invocationSnapshot = invocationSnapshot;
+        }
+    }
+
+    public interface TaskMixin {
+        InvocationContext.Snapshot pankti$getInvocationSnapshot();
+
+        void pankti$setInvocationSnapshot(InvocationContext.Snapshot invocationSnapshot);
+    }
+
+    // Set even if no instrumented method is executing, so that a resubmitted task drops an earlier snapshot
+    private static void captureSnapshot(Object task) {
+        if (task instanceof TaskMixin) {
+            ((TaskMixin) task).pankti$setInvocationSnapshot(InvocationContext.snapshot());
+        }
+    }
+
+    // Tasks without the mixin are replaced with a wrapper, unless there is no context to carry
+    private static void handOff(ParameterHolder<Runnable> taskHolder) {
+        Runnable task = taskHolder.get();
+        InvocationContext.Snapshot snapshot = InvocationContext.snapshot();
+        if (task instanceof TaskMixin) {
+            captureSnapshot(task);
+        } else if (task != null && snapshot != null) {
+            taskHolder.set(new RunnableWrapper(task, snapshot));
+        }
+    }
+
+    private static void handOffCallable(ParameterHolder<Callable<?>> taskHolder) {
+        Callable<?> task = taskHolder.get();
+        InvocationContext.Snapshot snapshot = InvocationContext.snapshot();
+        if (task instanceof TaskMixin) {
+            captureSnapshot(task);
+        } else if (task != null && snapshot != null) {
+            taskHolder.set(wrap(task, snapshot));
+        }
+    }
+
+    private static <V> Callable<V> wrap(Callable<V> task, InvocationContext.Snapshot snapshot) {
+        return new CallableWrapper<>(task, snapshot);
+    }
+
+    // A task without the mixin, which runs with the context of the thread that handed it off
+    public static final class RunnableWrapper implements Runnable {
+        private final Runnable task;
+        private final InvocationContext.Snapshot snapshot;
+
+        RunnableWrapper(Runnable task, InvocationContext.Snapshot snapshot) {
+            this.task = task;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public void run() {
+            InvocationContext previousContext = InvocationContext.restore(snapshot);
+            try {
+                task.run();
+            } finally {
+                InvocationContext.reinstate(previousContext);
+            }
+        }
+    }
+
+    public static final class CallableWrapper<V> implements Callable<V> {
+        private final Callable<V> task;
+        private final InvocationContext.Snapshot snapshot;
+
+        CallableWrapper(Callable<V> task, InvocationContext.Snapshot snapshot) {
+            this.task = task;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public V call() throws Exception {
+            InvocationContext previousContext = InvocationContext.restore(snapshot);
+            try {
+                return task.call();
+            } finally {
+                InvocationContext.reinstate(previousContext);
+            }
+        }
+    }
+
+    private static boolean hasSnapshot(Object task) {
+        return task instanceof TaskMixin && ((TaskMixin) task).pankti$getInvocationSnapshot() != null;
+    }
+
+    /**
+     * The context that a running task replaced, and the snapshot it
+     * restored, which is cleared from the task once it has run unless the
+     * task was submitted again meanwhile.
+     */
+    public static final class RestoredContext {
+        private final InvocationContext previousContext;
+        private final InvocationContext.Snapshot snapshot;
+
+        RestoredContext(InvocationContext previousContext, InvocationContext.Snapshot snapshot) {
+            this.previousContext = previousContext;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static RestoredContext restoreSnapshot(Object task) {
+        InvocationContext.Snapshot snapshot = ((TaskMixin) task).pankti$getInvocationSnapshot();
+        return new RestoredContext(InvocationContext.restore(snapshot), snapshot);
+    }
+
+    private static void reinstateContext(Object task, RestoredContext restoredContext) {
+        InvocationContext.reinstate(restoredContext.previousContext);
+        TaskMixin taskMixin = (TaskMixin) task;
+        if (taskMixin.pankti$getInvocationSnapshot() == restoredContext.snapshot) {
+            taskMixin.pankti$setInvocationSnapshot(null);
+        }
+    }
+
+    // submit wraps its task, e.g., in a FutureTask, and passes it to execute, so they nest in separate groups
+    @Pointcut(className = "java.util.concurrent.Executor",
+            methodName = "execute",
+            methodParameterTypes = {"java.lang.Runnable"},
+            nestingGroup = "pankti-executor-execute")
+    public static class ExecuteAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Runnable> taskHolder) {
+            handOff(taskHolder);
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.ExecutorService",
+            methodName = "submit",
+            methodParameterTypes = {"java.lang.Runnable", ".."},
+            nestingGroup = "pankti-executor-submit")
+    public static class SubmitRunnableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Runnable> taskHolder) {
+            handOff(taskHolder);
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.ExecutorService",
+            methodName = "submit",
+            methodParameterTypes = {"java.util.concurrent.Callable"},
+            nestingGroup = "pankti-executor-submit")
+    public static class SubmitCallableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Callable<?>> taskHolder) {
+            handOffCallable(taskHolder);
+        }
+    }
+
+    @Pointcut(className = "java.lang.Runnable",
+            methodName = "run",
+            methodParameterTypes = {})
+    public static class RunAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver Object task) {
+            return hasSnapshot(task);
+        }
+
+        @OnBefore
+        public static RestoredContext onBefore(@BindReceiver Object task) {
+            return restoreSnapshot(task);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindReceiver Object task, @BindTraveler RestoredContext restoredContext) {
+            reinstateContext(task, restoredContext);
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.Callable",
+            methodName = "call",
+            methodParameterTypes = {})
+    public static class CallAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver Object task) {
+            return hasSnapshot(task);
+        }
+
+        @OnBefore
+        public static RestoredContext onBefore(@BindReceiver Object task) {
+            return restoreSnapshot(task);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindReceiver Object task, @BindTraveler RestoredContext restoredContext) {
+            reinstateContext(task, restoredContext);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.MethodInfo;
+import se.kth.castor.pankti.instrument.capture.MethodTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The id of a method in the MethodTable, bound with @BindMethodMeta in
+ * the dispatcher aspects. Glowroot creates it once per woven method, so
+ * the method is looked up once per table, and not on every invocation.
+ * Methods that match the @Pointcut of a dispatcher aspect without being
+ * in the table have the id -1. Parameter types are the names of the erased
+ * runtime types, which the table normalizes as it does its own.
+ */
+public final class DispatchedMethod {
+    private final String className;
+    private final String methodName;
+    private final List<String> parameterTypes;
+    private final String runtimeMethodFQN;
+    private volatile Binding binding;
+
+    private static final class Binding {
+        private final MethodTable methodTable;
+        private final int id;
+        private final String methodFQN;
+
+        Binding(MethodTable methodTable, int id, String methodFQN) {
+            this.methodTable = methodTable;
+            this.id = id;
+            this.methodFQN = methodFQN;
+        }
+    }
+
+    public DispatchedMethod(MethodInfo methodInfo) {
+        className = methodInfo.getDeclaringClassName();
+        methodName = methodInfo.getName();
+        parameterTypes = new ArrayList<>();
+        for (Class<?> parameterType : methodInfo.getParameterTypes()) {
+            parameterTypes.add(parameterType.getTypeName());
+        }
+        String postfix = parameterTypes.isEmpty() ? "" : "_" + String.join(",", parameterTypes);
+        runtimeMethodFQN = className + "." + methodName + postfix;
+        binding = bind(MethodTable.getConfigured());
+    }
+
+    private Binding bind(MethodTable methodTable) {
+        int id = methodTable.idOf(className, methodName, parameterTypes);
+        return new Binding(methodTable, id, id < 0 ? runtimeMethodFQN : methodTable.get(id).getMethodFQN());
+    }
+
+    // The id in the table, looked up again only when the table is reloaded
+    public int getId(MethodTable methodTable) {
+        Binding current = binding;
+        if (current.methodTable != methodTable) {
+            current = bind(methodTable);
+            binding = current;
+        }
+        return current.id;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    // The FQN of the method in the table it was last looked up in, as its nested aspects find their parent
+    public String getMethodFQN() {
+        return binding.methodFQN;
+    }
+}
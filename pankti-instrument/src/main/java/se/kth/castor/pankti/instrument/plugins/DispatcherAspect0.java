@@ -0,0 +1,51 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.*;
+import org.glowroot.agent.plugin.api.weaving.*;
+
+/**
+ * The template of the dispatcher aspects that AspectGenerator generates, each
+ * woven into the methods of the classes and names in its @Pointcut. Only
+ * the methods of the MethodTable (dispatchMethods) are enabled, and their
+ * invocations are captured by MethodDispatcher.
+ */
+public class DispatcherAspect0 {
+
+    @Pointcut(className = "fully.qualified.path.to.class",
+            methodName = "methodToInstrument",
+            methodParameterTypes = {".."},
+            timerName = "Timer - name")
+    public static class DispatchedMethodAdvice {
+        private static final TimerName timer = Agent.getTimerName(DispatchedMethodAdvice.class);
+
+        @IsEnabled
+        public static boolean isDispatched(@BindMethodMeta DispatchedMethod method) {
+            return MethodDispatcher.isEnabled(method);
+        }
+
+        @OnBefore
+        public static AdviceTraveler onBefore(OptionalThreadContext context,
+                                              @BindMethodMeta DispatchedMethod method,
+                                              @BindReceiver Object receivingObject,
+                                              @BindParameterArray Object parameterObjects,
+                                              @BindMethodName String methodName) {
+            return MethodDispatcher.onBefore(method, context, timer,
+                    receivingObject, parameterObjects, methodName);
+        }
+
+        @OnReturn
+        public static void onReturn(@BindMethodMeta DispatchedMethod method,
+                                    @BindReceiver Object receivingObject,
+                                    @BindOptionalReturn OptionalReturn optionalReturn,
+                                    @BindTraveler AdviceTraveler traveler) {
+            MethodDispatcher.onReturn(method, receivingObject, optionalReturn, traveler);
+        }
+
+        @OnThrow
+        public static void onThrow(@BindMethodMeta DispatchedMethod method,
+                                   @BindThrowable Throwable throwable,
+                                   @BindTraveler AdviceTraveler traveler) {
+            MethodDispatcher.onThrow(method, throwable, traveler);
+        }
+    }
+}
@@ -1,26 +1,21 @@
 package se.kth.castor.pankti.instrument.plugins;
 
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import org.glowroot.agent.plugin.api.*;
 import org.glowroot.agent.plugin.api.weaving.*;
+import se.kth.castor.pankti.instrument.capture.CaptureBudget;
+import se.kth.castor.pankti.instrument.capture.CapturePipeline;
+import se.kth.castor.pankti.instrument.capture.InvocationContext;
+import se.kth.castor.pankti.instrument.capture.InvocationCounter;
+import se.kth.castor.pankti.instrument.capture.InvokedMethodsRegistry;
+import se.kth.castor.pankti.instrument.capture.MethodControl;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MethodAspect0 {
-    private static int INVOCATION_COUNT;
-    private static boolean fileSizeWithinLimits = true;
+    private static final AtomicInteger INVOCATION_COUNT = new AtomicInteger();
 
     @Pointcut(className = "fully.qualified.path.to.class",
             methodName = "methodToInstrument",
@@ -30,12 +25,12 @@ public class MethodAspect0 {
         private static final TimerName timer = Agent.getTimerName(TargetMethodAdvice.class);
         private static final String transactionType = "Target";
         private static final int COUNT = 0;
-        private static long profileSizePre;
         private static String receivingObjectFilePath;
         private static String receivingObjectPostFilePath;
         private static String paramObjectsFilePath;
         private static String returnedObjectFilePath;
         private static String invocationCountFilePath;
+        private static InvocationCounter invocationCounter;
         private static String invokedMethodsCSVFilePath;
         private static String objectProfileSizeFilePath;
         private static Logger logger = Logger.getLogger(TargetMethodAdvice.class);
@@ -44,128 +39,84 @@ public class MethodAspect0 {
         private static final boolean hasMockableInvocations = false;
         private static final String methodParamTypesString = String.join(",", TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodParameterTypes());
         private static final String postfix = methodParamTypesString.isEmpty() ? "" : "_" + methodParamTypesString;
-        public static final String methodFQN = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className() + "."
+        private static final String instrumentedClassName = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className();
+        public static final String methodFQN = instrumentedClassName + "."
                 + TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName() + postfix;
-        static UUID invocationUuid = null;
         private static final String invocationString = String.format("Invocation count for %s: ", methodFQN.replaceAll("\\[\\]", "%5b%5d"));
-        private static File[] allObjectFiles;
-
+        private static CaptureBudget captureBudget;
+        private static volatile boolean isSetUp = false;
+        private static final CapturePipeline capturePipeline = CapturePipeline.getInstance();
+        // receiving, params, and returned (or receiving-post) objects
+        private static final int RECORDS_PER_INVOCATION = 3;
+        private static final MethodControl methodControl = MethodControl.forMethod(methodFQN, "first:1", AdviceTemplate::serializeState);
+
+        // Set up the files of this aspect once, on its first invocation
         private static void setup() {
-            AdviceTemplate.setUpXStream();
-            Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
-            receivingObjectFilePath = fileNameMap.get(Type.RECEIVING_PRE);
-            receivingObjectPostFilePath = fileNameMap.get(Type.RECEIVING_POST);
-            paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
-            returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
-            invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
-            invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
-            objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
-            allObjectFiles = new File[]{
-                    new File(receivingObjectFilePath),
-                    new File(receivingObjectPostFilePath),
-                    new File(returnedObjectFilePath),
-                    new File(paramObjectsFilePath)};
-            checkFileSizeLimit();
+            if (isSetUp) {
+                return;
+            }
+            synchronized (TargetMethodAdvice.class) {
+                if (!isSetUp) {
+                    Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
+                    receivingObjectFilePath = fileNameMap.get(Type.RECEIVING_PRE);
+                    receivingObjectPostFilePath = fileNameMap.get(Type.RECEIVING_POST);
+                    paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                    returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                    invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
+                    invocationCounter = InvocationCounter.forMethod(methodFQN, invocationCountFilePath, invocationString);
+                    invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
+                    objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
+                    captureBudget = CaptureBudget.forFiles(
+                            receivingObjectFilePath,
+                            receivingObjectPostFilePath,
+                            returnedObjectFilePath,
+                            paramObjectsFilePath);
+                    isSetUp = true;
+                }
+            }
         }
 
         public static long getObjectProfileSize() {
-            long objectProfileSize = 0L;
-            for (File file : allObjectFiles) {
-                objectProfileSize += file.length();
-            }
-            return objectProfileSize;
+            return captureBudget.getBytes();
         }
 
-        // Limit object XML files to ~200 MB
-        public static void checkFileSizeLimit() {
-            for (File file : allObjectFiles) {
-                if (file.exists() && (file.length() / (1024 * 1024) >= 200)) {
-                    fileSizeWithinLimits = false;
-                    break;
-                }
-            }
+        public static void writeObjectXMLToFile(Object objectToWrite, String objectFilePath, UUID uuid) {
+            capturePipeline.submit(objectFilePath, () -> serializeObjectXMLToFile(objectToWrite, objectFilePath, uuid));
         }
 
-        public static synchronized void writeObjectXMLToFile(Object objectToWrite, String objectFilePath) {
+        // Records of a file are not written concurrently, so no lock is needed (see CapturePipeline)
+        public static long serializeObjectXMLToFile(Object objectToWrite, String objectFilePath, UUID uuid) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectFilePath, true);
-                String xml = xStream.toXML(objectToWrite);
-                xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
                 // Add attributes if method has mockable invocations
-                if (hasMockableInvocations) {
-                    xml = xml.replaceFirst("(\\/*)>", " uuid=\"" + invocationUuid + "\"$1>");
-                }
-                BufferedReader reader = new BufferedReader(new StringReader(xml));
-                BufferedWriter writer = new BufferedWriter(objectFileWriter);
-                while ((xml = reader.readLine()) != null) {
-                    writer.write(xml);
-                    writer.newLine();
-                }
-                writer.flush();
-                writer.close();
+                String[] rootAttributes = hasMockableInvocations
+                        ? new String[]{"uuid", String.valueOf(uuid)}
+                        : new String[0];
+                long recordSize = AdviceTemplate.appendRecordToFile(objectFilePath,
+                        writer -> xStream.marshal(objectToWrite, writer), rootAttributes);
+                captureBudget.record(objectFilePath, recordSize);
+                return recordSize;
             } catch (Exception e) {
                 logger.info("Exception when writing XML for MethodAspect" + COUNT + " to file " + objectFilePath);
                 e.printStackTrace();
-                if (e.getMessage().startsWith("No converter specified") || e.getMessage().startsWith("No converter available")) {
-                    String className = extractClassNameFromTheExceptionMessage(e.getMessage());
-                    registerConverterAtRuntime(className);
-                    logger.info("Automatically register a converter for: " + className);
+                if (converterRegistry.omitUnconvertibleType(e)) {
+                    logger.info("Omitting objects without a converter: " + e.getMessage());
                 }
+                return 0L;
             }
         }
 
         // Write size (in bytes) of individual object profile to file
-        public static synchronized void writeObjectProfileSizeToFile(long size) {
+        public static void writeObjectProfileSizeToFile(long size) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectProfileSizeFilePath, true);
-                objectFileWriter.write(size + "\n");
-                objectFileWriter.close();
+                AdviceTemplate.appendToFile(objectProfileSizeFilePath, size + "\n");
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
-        public static synchronized void writeInvocationCountToFile() {
+        public static void appendRowToInvokedCSVFile() {
             try {
-                File invocationCountFile = new File(invocationCountFilePath);
-
-                if (!invocationCountFile.exists()) {
-                    FileWriter objectFileWriter = new FileWriter(invocationCountFilePath);
-                    objectFileWriter.write(invocationString + INVOCATION_COUNT);
-                    objectFileWriter.close();
-                } else {
-                    String content = Files.readString(Paths.get(invocationCountFilePath));
-                    Pattern pattern = Pattern.compile(invocationString + "(\\d+$)");
-                    Matcher matcher = pattern.matcher(content);
-                    if (matcher.find()) {
-                        int count = Integer.parseInt(matcher.group(1)) + 1;
-                        content = matcher.replaceAll(invocationString + count);
-                        Files.write(invocationCountFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        public static synchronized void appendRowToInvokedCSVFile() {
-            try {
-                File invokedMethodsCSVFile = new File(invokedMethodsCSVFilePath);
-                Scanner scanner = new Scanner(invokedMethodsCSVFile);
-                boolean found = false;
-                while (scanner.hasNextLine()) {
-                    String lineFromFile = scanner.nextLine();
-                    if (lineFromFile.contains(rowInCSVFile)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    FileWriter fr = new FileWriter(invokedMethodsCSVFile, true);
-                    fr.write("\n");
-                    fr.write(rowInCSVFile);
-                    fr.close();
-                }
+                InvokedMethodsRegistry.forFile(invokedMethodsCSVFilePath).register(rowInCSVFile);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -173,86 +124,58 @@ public class MethodAspect0 {
 
         @IsEnabled
         public static boolean enableProfileCollection() {
-            invocationUuid = null;
-            return INVOCATION_COUNT < 1;
+            return methodControl.isEnabled();
         }
 
         @OnBefore
-        public static TraceEntry onBefore(OptionalThreadContext context,
-                                          @BindReceiver Object receivingObject,
-                                          @BindParameterArray Object parameterObjects,
-                                          @BindMethodName String methodName) {
+        public static AdviceTraveler onBefore(OptionalThreadContext context,
+                                              @BindReceiver Object receivingObject,
+                                              @BindParameterArray Object parameterObjects,
+                                              @BindMethodName String methodName) {
             setup();
-            if (fileSizeWithinLimits) {
+            boolean captureAdmitted = captureBudget.isWithinLimits()
+                    && methodControl.admit(capturePipeline, RECORDS_PER_INVOCATION, receivingObject, parameterObjects);
+            UUID invocationUuid = null;
+            if (captureAdmitted) {
                 if (hasMockableInvocations) {
                     invocationUuid = UUID.randomUUID();
-                    Thread.currentThread().setName(methodFQN);
                 }
-                profileSizePre = getObjectProfileSize();
-                writeObjectXMLToFile(receivingObject, receivingObjectFilePath);
-                writeObjectXMLToFile(parameterObjects, paramObjectsFilePath);
+                writeObjectXMLToFile(receivingObject, receivingObjectFilePath, invocationUuid);
+                writeObjectXMLToFile(parameterObjects, paramObjectsFilePath, invocationUuid);
             }
+            InvocationContext.enter(methodFQN, invocationUuid);
             MessageSupplier messageSupplier = MessageSupplier.create(
                     "className: {}, methodName: {}",
-                    TargetMethodAdvice.class.getAnnotation(Pointcut.class).className(),
+                    instrumentedClassName,
                     methodName
             );
-            return context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+            TraceEntry traceEntry = context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+            return new AdviceTraveler(traceEntry, invocationUuid, 0L, captureAdmitted, null);
         }
 
         // Replaced with @BindReceiver for void methods
         @OnReturn
         public static void onReturn(@BindReturn Object returnedObject,
-                                    @BindTraveler TraceEntry traceEntry) {
-            if (fileSizeWithinLimits) {
-                writeObjectXMLToFile(returnedObject, returnedObjectFilePath);
-//                writeObjectProfileSizeToFile(getObjectProfileSize() - profileSizePre);
-                checkFileSizeLimit();
+                                    @BindTraveler AdviceTraveler traveler) {
+            if (traveler.isCaptureAdmitted()) {
+                writeObjectXMLToFile(returnedObject, returnedObjectFilePath, traveler.getUuid());
             }
-            INVOCATION_COUNT++;
-            if (INVOCATION_COUNT == 1) {
+            if (INVOCATION_COUNT.incrementAndGet() == 1) {
                 appendRowToInvokedCSVFile();
             }
-            writeInvocationCountToFile();
-            invocationUuid = null;
-            traceEntry.end();
+            invocationCounter.increment();
+            InvocationContext.exit(methodFQN);
+            traveler.getTraceEntry().end();
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable throwable,
-                                   @BindTraveler TraceEntry traceEntry) {
-            traceEntry.endWithError(throwable);
-        }
-
-        public static String extractClassNameFromTheExceptionMessage(String exceptionMessage) {
-            String className = "";
-
-            String pattern = "type\\s+:\\s+(\\S*)\\n";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(exceptionMessage);
-            if (m.find()) {
-                className = m.group(1);
+                                   @BindTraveler AdviceTraveler traveler) {
+            if (traveler.isCaptureAdmitted()) {
+                capturePipeline.release(1);
             }
-
-            return className;
-        }
-
-        public static void registerConverterAtRuntime(String className) {
-            xStream.registerConverter(new Converter() {
-                @Override
-                public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
-                }
-
-                @Override
-                public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
-                    return null;
-                }
-
-                @Override
-                public boolean canConvert(Class aClass) {
-                    return aClass.getCanonicalName().equals(className);
-                }
-            });
+            InvocationContext.exit(methodFQN);
+            traveler.getTraceEntry().endWithError(throwable);
         }
     }
 }
@@ -1,25 +1,22 @@
 package se.kth.castor.pankti.instrument.plugins;
 
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import org.glowroot.agent.plugin.api.*;
 import org.glowroot.agent.plugin.api.weaving.*;
+import se.kth.castor.pankti.instrument.capture.CaptureBudget;
+import se.kth.castor.pankti.instrument.capture.CapturePipeline;
+import se.kth.castor.pankti.instrument.capture.InvocationContext;
+import se.kth.castor.pankti.instrument.capture.InvocationCounter;
+import se.kth.castor.pankti.instrument.capture.InvocationProfileSize;
+import se.kth.castor.pankti.instrument.capture.MethodControl;
+import se.kth.castor.pankti.instrument.capture.ParameterArrayWriter;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MethodAspect0Nested0 {
-    private static int INVOCATION_COUNT;
-    private static boolean fileSizeWithinLimits = true;
+    private static final AtomicInteger INVOCATION_COUNT = new AtomicInteger();
 
     @Pointcut(className = "fully.qualified.path.to.class",
             methodName = "methodToInstrument",
@@ -29,178 +26,123 @@ public class MethodAspect0Nested0 {
         private static final TimerName timer = Agent.getTimerName(TargetMethodAdvice.class);
         private static final String transactionType = "Target";
         private static final double COUNT = 0;
-        private static long profileSizePre;
         private static String paramObjectsFilePath;
         private static String returnedObjectFilePath;
         private static String invocationCountFilePath;
+        private static InvocationCounter invocationCounter;
         private static String invokedMethodsCSVFilePath;
         private static String objectProfileSizeFilePath;
         private static String libraryInvocationFilePath;
         private static String parentInvocationClassName = MethodAspect0.TargetMethodAdvice.class.getAnnotation(Pointcut.class).className();
         private static String parentInvocationMethodName = MethodAspect0.TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName();
+        private static final String parentMethodFQN = MethodAspect0.TargetMethodAdvice.methodFQN;
         private static Logger logger = Logger.getLogger(TargetMethodAdvice.class);
         private static final String methodParamTypesString = String.join(",", TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodParameterTypes());
         private static final String postfix = methodParamTypesString.isEmpty() ? "" : "_" + methodParamTypesString;
-        private static final String methodFQN = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className() + "."
+        private static final String instrumentedClassName = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className();
+        private static final String methodFQN = instrumentedClassName + "."
                 + TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName() + postfix;
-        static UUID invocationUuid = null;
-        static long invocationTimestamp;
+        // Writes primitive and String parameters directly, and other parameters as empty nodes
+        private static final ParameterArrayWriter parameterArrayWriter = ParameterArrayWriter.forParameterTypes(
+                TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodParameterTypes());
         private static final boolean invocationOnLibraryMethod = false;
         private static final String invocationString = String.format("Invocation count for %s: ", methodFQN.replaceAll("\\[\\]", "%5b%5d"));
-        private static File[] allObjectFiles;
-
-        private static String sanitizeMethodFQN() {
-            return methodFQN.replaceAll("\\[\\]", "%5b%5d")
-                    .replaceAll("\\$", ".")
-                    .replaceAll(",", "_");
-        }
-
-        private static synchronized void gatherDataForInvocationOfLibraryMethod() {
+        private static CaptureBudget captureBudget;
+        private static volatile boolean isSetUp = false;
+        private static final CapturePipeline capturePipeline = CapturePipeline.getInstance();
+        // params and returned objects
+        private static final int RECORDS_PER_INVOCATION = 2;
+        private static final MethodControl methodControl = MethodControl.forMethod(methodFQN, "first:10", AdviceTemplate::serializeState);
+
+        private static final String sanitizedMethodFQN = methodFQN.replace("[]", "%5b%5d")
+                .replace('$', '.')
+                .replace(',', '_');
+
+        private static synchronized void gatherDataForInvocationOfLibraryMethod(UUID invocationUuid) {
             setup();
             logger.info(String.format("Writing invocation %s to file %s",
-                    INVOCATION_COUNT, libraryInvocationFilePath));
-            INVOCATION_COUNT++;
-            invocationTimestamp = Instant.now().toEpochMilli();
+                    INVOCATION_COUNT.getAndIncrement(), libraryInvocationFilePath));
+            long invocationTimestamp = Instant.now().toEpochMilli();
             try {
-                FileWriter objectFileWriter = new FileWriter(libraryInvocationFilePath, true);
                 String toWrite = String.format("<%s parent=\"%s.%s\" parent-uuid=\"%s\" timestamp=\"%s\"/>",
-                        sanitizeMethodFQN(),
+                        sanitizedMethodFQN,
                         parentInvocationClassName, parentInvocationMethodName,
                         invocationUuid, invocationTimestamp);
-                objectFileWriter.write(toWrite + "\n");
-                objectFileWriter.close();
+                AdviceTemplate.appendToFile(libraryInvocationFilePath, toWrite + "\n");
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
+        // Set up the files of this aspect once, on its first invocation
         private static void setup() {
-            AdviceTemplate.setUpXStream();
-            Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles("nested-" + methodFQN);
-            paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
-            returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
-            invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
-            invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
-            objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
-            allObjectFiles = new File[]{
-                    new File(returnedObjectFilePath),
-                    new File(paramObjectsFilePath)};
-            checkFileSizeLimit();
-        }
-
-        public static long getObjectProfileSize() {
-            long objectProfileSize = 0L;
-            for (File file : allObjectFiles) {
-                objectProfileSize += file.length();
+            if (isSetUp) {
+                return;
             }
-            return objectProfileSize;
-        }
-
-        // Limit object XML files to ~200 MB
-        public static void checkFileSizeLimit() {
-            for (File file : allObjectFiles) {
-                if (file.exists() && (file.length() / (1024 * 1024) >= 200)) {
-                    fileSizeWithinLimits = false;
-                    break;
+            synchronized (TargetMethodAdvice.class) {
+                if (!isSetUp) {
+                    Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN, "nested-" + methodFQN);
+                    paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                    returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                    invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
+                    invocationCounter = InvocationCounter.forMethod(methodFQN, invocationCountFilePath, invocationString);
+                    invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
+                    objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
+                    captureBudget = CaptureBudget.forFiles(
+                            returnedObjectFilePath,
+                            paramObjectsFilePath);
+                    isSetUp = true;
                 }
             }
         }
 
-        public static String handleNonPrimitiveParamSerialization(Object objectToWrite) {
-            List<String> primitives = List.of("boolean", "byte", "char", "double", "float",
-                    "int", "long", "short", "java.lang.String");
-            String[] paramTypes = TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodParameterTypes();
-
-            if (paramTypes.length == 0 ||
-                    Arrays.stream(paramTypes).allMatch(primitives::contains)) {
-                return xStream.toXML(objectToWrite);
-            }
-
-            Object[] paramObjectArray = (Object[]) objectToWrite;
-            StringBuilder serializedParams = new StringBuilder();
-            serializedParams.append("<object-array>\n");
-            for (int i = 0; i < paramTypes.length; i++) {
-                if (!primitives.contains(paramTypes[i])) {
-                    paramTypes[i] = paramTypes[i].replaceAll("\\[]", "-array")
-                            .replaceAll("\\$", ".");
+        public static long getObjectProfileSize() {
+            return captureBudget.getBytes();
+        }
 
-                    serializedParams.append("  <")
-                            .append(paramTypes[i])
-                            .append("/>").append("\n");
-                } else {
-                    serializedParams.append("  ")
-                            .append(xStream.toXML(paramObjectArray[i]))
-                            .append("\n");
-                }
-            }
-            serializedParams.append("</object-array>\n");
-            return serializedParams.toString();
+        public static void writeObjectXMLToFile(boolean isParameter,
+                                                Object objectToWrite,
+                                                String objectFilePath,
+                                                UUID uuid,
+                                                long timestamp,
+                                                InvocationProfileSize profileSize) {
+            profileSize.submitted();
+            capturePipeline.submit(objectFilePath, () -> profileSize.recorded(
+                    serializeObjectXMLToFile(isParameter, objectToWrite, objectFilePath, uuid, timestamp)));
         }
 
-        public static synchronized void writeObjectXMLToFile(boolean isParameter,
-                                                             Object objectToWrite,
-                                                             String objectFilePath) {
+        // Records of a file are not written concurrently, so no lock is needed (see CapturePipeline)
+        public static long serializeObjectXMLToFile(boolean isParameter,
+                                                    Object objectToWrite,
+                                                    String objectFilePath,
+                                                    UUID uuid,
+                                                    long timestamp) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectFilePath, true);
-                String xml;
-                if (isParameter) {
-                    // We don't want to serialize non-primitive parameters
-                    xml = handleNonPrimitiveParamSerialization(objectToWrite);
-                } else {
-                    xml = xStream.toXML(objectToWrite);
-                }
-                xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
-                xml = xml.replaceFirst("(\\/*)>",
-                        " parent-uuid=\"" + invocationUuid +
-                                "\" timestamp=\"" + invocationTimestamp + "\"$1>");
-                BufferedReader reader = new BufferedReader(new StringReader(xml));
-                BufferedWriter writer = new BufferedWriter(objectFileWriter);
-                while ((xml = reader.readLine()) != null) {
-                    writer.write(xml);
-                    writer.newLine();
-                }
-                writer.flush();
-                writer.close();
+                String[] rootAttributes = {"parent-uuid", String.valueOf(uuid), "timestamp", String.valueOf(timestamp)};
+                long recordSize = AdviceTemplate.appendRecordToFile(objectFilePath, writer -> {
+                    if (isParameter) {
+                        // We don't want to serialize non-primitive parameters
+                        parameterArrayWriter.write(objectToWrite, writer);
+                    } else {
+                        xStream.marshal(objectToWrite, writer);
+                    }
+                }, rootAttributes);
+                captureBudget.record(objectFilePath, recordSize);
+                return recordSize;
             } catch (Exception e) {
                 logger.info("Exception when writing XML for MethodAspect" + COUNT + " to file " + objectFilePath);
                 e.printStackTrace();
-                if (e.getMessage().startsWith("No converter specified") || e.getMessage().startsWith("No converter available")) {
-                    String className = extractClassNameFromTheExceptionMessage(e.getMessage());
-                    registerConverterAtRuntime(className);
-                    logger.info("Automatically register a converter for: " + className);
+                if (converterRegistry.omitUnconvertibleType(e)) {
+                    logger.info("Omitting objects without a converter: " + e.getMessage());
                 }
+                return 0L;
             }
         }
 
-        // Write size (in bytes) of individual object profile to file
-        public static synchronized void writeObjectProfileSizeToFile(long size) {
-            try {
-                FileWriter objectFileWriter = new FileWriter(objectProfileSizeFilePath, true);
-                objectFileWriter.write(size + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-        public static synchronized void writeInvocationCountToFile() {
+        // Write size (in bytes) of individual object profile to file, once its last record is written
+        public static void writeObjectProfileSizeToFile(long size) {
             try {
-                File invocationCountFile = new File(invocationCountFilePath);
-
-                if (!invocationCountFile.exists()) {
-                    FileWriter objectFileWriter = new FileWriter(invocationCountFilePath);
-                    objectFileWriter.write(invocationString + INVOCATION_COUNT);
-                    objectFileWriter.close();
-                } else {
-                    String content = Files.readString(Paths.get(invocationCountFilePath));
-                    Pattern pattern = Pattern.compile(invocationString + "(\\d+$)");
-                    Matcher matcher = pattern.matcher(content);
-                    if (matcher.find()) {
-                        int count = Integer.parseInt(matcher.group(1)) + 1;
-                        content = matcher.replaceAll(invocationString + count);
-                        Files.write(invocationCountFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
+                AdviceTemplate.appendToFile(objectProfileSizeFilePath, size + "\n");
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -208,94 +150,72 @@ public class MethodAspect0Nested0 {
 
         // For mocking: instrument and collect parameters and returned values if this invocation is nested
         @IsEnabled
-        public synchronized static boolean isNestedInvocation() {
-            invocationUuid = null;
-            if (INVOCATION_COUNT >= 10)
+        public static boolean isNestedInvocation() {
+            if (!methodControl.isEnabled())
                 return false;
-            boolean isNestedInvocation = Arrays.stream(Thread.currentThread().getStackTrace()).anyMatch(s ->
-                    s.getClassName().equals(parentInvocationClassName) &
-                            s.getMethodName().equals(parentInvocationMethodName));
-            if (isNestedInvocation) {
-                if (!invocationOnLibraryMethod) {
-                    logger.info("Aspect " + COUNT + " is a nested invocation");
-                    invocationUuid = MethodAspect0.TargetMethodAdvice.invocationUuid;
-                } else if (invocationOnLibraryMethod) {
-                    logger.info("Aspect " + COUNT + " is a nested invocation on a library method");
-                    if (Thread.currentThread().getName().equals(MethodAspect0.TargetMethodAdvice.methodFQN)) {
-                        invocationUuid = MethodAspect0.TargetMethodAdvice.invocationUuid;
-                    }
-                }
+            UUID parentUuid = getParentUuid();
+            if (parentUuid == null) {
+                return false;
+            }
+            if (!invocationOnLibraryMethod) {
+                logger.info("Aspect " + COUNT + " is a nested invocation");
+            } else if (invocationOnLibraryMethod) {
+                logger.info("Aspect " + COUNT + " is a nested invocation on a library method");
             }
-            return invocationUuid != null & isNestedInvocation;
+            return true;
+        }
+
+        // The UUID of the innermost invocation of the parent on this thread, if its objects are captured
+        private static UUID getParentUuid() {
+            InvocationContext.Invocation parentInvocation = InvocationContext.current(parentMethodFQN);
+            return parentInvocation == null ? null : parentInvocation.getUuid();
         }
 
         @OnBefore
-        public static TraceEntry onBefore(OptionalThreadContext context,
-                                          @BindParameterArray Object parameterObjects,
-                                          @BindMethodName String methodName) {
+        public static AdviceTraveler onBefore(OptionalThreadContext context,
+                                              @BindParameterArray Object parameterObjects,
+                                              @BindMethodName String methodName) {
             setup();
-            if (fileSizeWithinLimits) {
+            boolean captureAdmitted = captureBudget.isWithinLimits()
+                    && methodControl.admit(capturePipeline, RECORDS_PER_INVOCATION, null, parameterObjects);
+            UUID parentUuid = getParentUuid();
+            long invocationTimestamp = 0L;
+            InvocationProfileSize profileSize = null;
+            if (captureAdmitted) {
                 invocationTimestamp = Instant.now().toEpochMilli();
-                profileSizePre = getObjectProfileSize();
-                writeObjectXMLToFile(true, parameterObjects, paramObjectsFilePath);
-                INVOCATION_COUNT++;
+                profileSize = new InvocationProfileSize();
+                writeObjectXMLToFile(true, parameterObjects, paramObjectsFilePath, parentUuid, invocationTimestamp,
+                        profileSize);
+                INVOCATION_COUNT.incrementAndGet();
             }
             MessageSupplier messageSupplier = MessageSupplier.create(
                     "className: {}, methodName: {}",
-                    TargetMethodAdvice.class.getAnnotation(Pointcut.class).className(),
+                    instrumentedClassName,
                     methodName
             );
-            return context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+            TraceEntry traceEntry = context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+            return new AdviceTraveler(traceEntry, parentUuid, invocationTimestamp, captureAdmitted, profileSize);
         }
 
         @OnReturn
         public static void onReturn(@BindReturn Object returnedObject,
-                                    @BindTraveler TraceEntry traceEntry) {
-            if (fileSizeWithinLimits) {
-                writeObjectXMLToFile(false, returnedObject, returnedObjectFilePath);
-                writeObjectProfileSizeToFile(getObjectProfileSize() - profileSizePre);
-                checkFileSizeLimit();
+                                    @BindTraveler AdviceTraveler traveler) {
+            if (traveler.isCaptureAdmitted()) {
+                writeObjectXMLToFile(false, returnedObject, returnedObjectFilePath,
+                        traveler.getUuid(), traveler.getTimestamp(), traveler.getProfileSize());
+                traveler.getProfileSize().complete(TargetMethodAdvice::writeObjectProfileSizeToFile);
             }
-            writeInvocationCountToFile();
-            invocationUuid = null;
-            traceEntry.end();
+            invocationCounter.increment();
+            traveler.getTraceEntry().end();
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable throwable,
-                                   @BindTraveler TraceEntry traceEntry) {
-            traceEntry.endWithError(throwable);
-        }
-
-        public static String extractClassNameFromTheExceptionMessage(String exceptionMessage) {
-            String className = "";
-
-            String pattern = "type\\s+:\\s+(\\S*)\\n";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(exceptionMessage);
-            if (m.find()) {
-                className = m.group(1);
+                                   @BindTraveler AdviceTraveler traveler) {
+            if (traveler.isCaptureAdmitted()) {
+                capturePipeline.release(1);
             }
-
-            return className;
-        }
-
-        public static void registerConverterAtRuntime(String className) {
-            xStream.registerConverter(new Converter() {
-                @Override
-                public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
-                }
-
-                @Override
-                public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
-                    return null;
-                }
-
-                @Override
-                public boolean canConvert(Class aClass) {
-                    return aClass.getCanonicalName().equals(className);
-                }
-            });
+            traveler.getTraceEntry().endWithError(throwable);
         }
     }
 }
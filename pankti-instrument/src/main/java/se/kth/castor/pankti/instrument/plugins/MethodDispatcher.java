@@ -0,0 +1,236 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.*;
+import org.glowroot.agent.plugin.api.weaving.OptionalReturn;
+import se.kth.castor.pankti.instrument.capture.CaptureBudget;
+import se.kth.castor.pankti.instrument.capture.CapturePipeline;
+import se.kth.castor.pankti.instrument.capture.InvocationContext;
+import se.kth.castor.pankti.instrument.capture.InvocationCounter;
+import se.kth.castor.pankti.instrument.capture.InvokedMethodsRegistry;
+import se.kth.castor.pankti.instrument.capture.MethodControl;
+import se.kth.castor.pankti.instrument.capture.MethodTable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Captures the invocations that the dispatcher aspects dispatch by method
+ * id, as a generated MethodAspect captures the invocations of its method.
+ * What a MethodAspect keeps in static fields is kept in a MethodState per
+ * method, in a table indexed by method id, and set up on the first
+ * invocation of the method, so that the number of classes and their
+ * static state do not grow with the number of instrumented methods.
+ * When CaptureControl reloads the method table, the states of the methods
+ * that stay in it are carried over to a new table.
+ */
+public final class MethodDispatcher {
+    private static final String transactionType = "Target";
+    // receiving, params, and returned (or receiving-post) objects
+    private static final int RECORDS_PER_INVOCATION = 3;
+    private static final CapturePipeline capturePipeline = CapturePipeline.getInstance();
+    private static final Logger logger = Logger.getLogger(MethodDispatcher.class);
+    private static volatile Dispatch dispatch = new Dispatch(MethodTable.getConfigured(), null);
+
+    private MethodDispatcher() {
+    }
+
+    private static final class Dispatch {
+        private final MethodTable methodTable;
+        private final AtomicReferenceArray<MethodState> states;
+
+        Dispatch(MethodTable methodTable, Dispatch previous) {
+            this.methodTable = methodTable;
+            this.states = new AtomicReferenceArray<>(methodTable.size());
+            if (previous == null) {
+                return;
+            }
+            for (int id = 0; id < previous.states.length(); id++) {
+                MethodState state = previous.states.get(id);
+                if (state != null) {
+                    int updatedId = methodTable.idOf(state.method);
+                    if (updatedId >= 0) {
+                        states.set(updatedId, state);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Dispatch dispatch() {
+        Dispatch current = dispatch;
+        MethodTable methodTable = MethodTable.getConfigured();
+        if (current.methodTable != methodTable) {
+            synchronized (MethodDispatcher.class) {
+                current = dispatch;
+                if (current.methodTable != methodTable) {
+                    current = new Dispatch(methodTable, current);
+                    dispatch = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // The state of the method, or null if it is not in the method table
+    private static MethodState state(DispatchedMethod dispatchedMethod) {
+        Dispatch current = dispatch();
+        int id = dispatchedMethod.getId(current.methodTable);
+        if (id < 0) {
+            return null;
+        }
+        MethodState state = current.states.get(id);
+        if (state == null) {
+            current.states.compareAndSet(id, null, new MethodState(current.methodTable.get(id)));
+            state = current.states.get(id);
+        }
+        return state;
+    }
+
+    public static boolean isEnabled(DispatchedMethod dispatchedMethod) {
+        MethodState state = state(dispatchedMethod);
+        return state != null && state.methodControl.isEnabled();
+    }
+
+    public static AdviceTraveler onBefore(DispatchedMethod dispatchedMethod, OptionalThreadContext context,
+                                          TimerName timer, Object receivingObject, Object parameterObjects,
+                                          String methodName) {
+        MethodState state = state(dispatchedMethod);
+        boolean captureAdmitted = false;
+        UUID invocationUuid = null;
+        if (state != null) {
+            state.setup();
+            captureAdmitted = state.captureBudget.isWithinLimits()
+                    && state.methodControl.admit(capturePipeline, RECORDS_PER_INVOCATION,
+                    receivingObject, parameterObjects);
+        }
+        if (captureAdmitted) {
+            if (state.method.hasMockableInvocations()) {
+                invocationUuid = UUID.randomUUID();
+            }
+            state.writeObjectXMLToFile(receivingObject, state.receivingObjectFilePath, invocationUuid);
+            state.writeObjectXMLToFile(parameterObjects, state.paramObjectsFilePath, invocationUuid);
+        }
+        String methodFQN = dispatchedMethod.getMethodFQN();
+        InvocationContext.enter(methodFQN, invocationUuid);
+        MessageSupplier messageSupplier = MessageSupplier.create(
+                "className: {}, methodName: {}",
+                dispatchedMethod.getClassName(),
+                methodName
+        );
+        TraceEntry traceEntry = context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+        return new AdviceTraveler(traceEntry, invocationUuid, 0L, captureAdmitted, null, methodFQN);
+    }
+
+    // The receiving object is captured again after void methods, and the returned object after others
+    public static void onReturn(DispatchedMethod dispatchedMethod, Object receivingObject,
+                                OptionalReturn optionalReturn, AdviceTraveler traveler) {
+        MethodState state = state(dispatchedMethod);
+        if (state == null) {
+            // Removed from the method table during the invocation
+            if (traveler.isCaptureAdmitted()) {
+                capturePipeline.release(1);
+            }
+        } else {
+            if (traveler.isCaptureAdmitted()) {
+                if (state.method.isReturnTypeVoid()) {
+                    state.writeObjectXMLToFile(receivingObject, state.receivingObjectPostFilePath, traveler.getUuid());
+                } else {
+                    state.writeObjectXMLToFile(optionalReturn.getValue(), state.returnedObjectFilePath, traveler.getUuid());
+                }
+            }
+            if (state.invocationCount.incrementAndGet() == 1) {
+                state.appendRowToInvokedCSVFile();
+            }
+            state.invocationCounter.increment();
+        }
+        InvocationContext.exit(traveler.getMethodFQN());
+        traveler.getTraceEntry().end();
+    }
+
+    public static void onThrow(DispatchedMethod dispatchedMethod, Throwable throwable, AdviceTraveler traveler) {
+        if (traveler.isCaptureAdmitted()) {
+            capturePipeline.release(1);
+        }
+        InvocationContext.exit(traveler.getMethodFQN());
+        traveler.getTraceEntry().endWithError(throwable);
+    }
+
+    private static final class MethodState {
+        private final MethodTable.Method method;
+        private final String methodFQN;
+        private final MethodControl methodControl;
+        private final AtomicInteger invocationCount = new AtomicInteger();
+        private volatile boolean isSetUp = false;
+        private String receivingObjectFilePath;
+        private String receivingObjectPostFilePath;
+        private String paramObjectsFilePath;
+        private String returnedObjectFilePath;
+        private String invokedMethodsCSVFilePath;
+        private InvocationCounter invocationCounter;
+        private CaptureBudget captureBudget;
+
+        MethodState(MethodTable.Method method) {
+            this.method = method;
+            this.methodFQN = method.getMethodFQN();
+            this.methodControl = MethodControl.forMethod(methodFQN, "first:1", AdviceTemplate::serializeState);
+        }
+
+        // Set up the files of the method once, on its first invocation
+        private void setup() {
+            if (isSetUp) {
+                return;
+            }
+            synchronized (this) {
+                if (!isSetUp) {
+                    Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
+                    receivingObjectFilePath = fileNameMap.get(Type.RECEIVING_PRE);
+                    receivingObjectPostFilePath = fileNameMap.get(Type.RECEIVING_POST);
+                    paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                    returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                    invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
+                    invocationCounter = InvocationCounter.forMethod(methodFQN, fileNameMap.get(Type.INVOCATION_COUNT),
+                            String.format("Invocation count for %s: ", methodFQN.replace("[]", "%5b%5d")));
+                    captureBudget = CaptureBudget.forFiles(
+                            receivingObjectFilePath,
+                            receivingObjectPostFilePath,
+                            returnedObjectFilePath,
+                            paramObjectsFilePath);
+                    isSetUp = true;
+                }
+            }
+        }
+
+        private void writeObjectXMLToFile(Object objectToWrite, String objectFilePath, UUID uuid) {
+            capturePipeline.submit(objectFilePath, () -> serializeObjectXMLToFile(objectToWrite, objectFilePath, uuid));
+        }
+
+        // Records of a file are not written concurrently, so no lock is needed (see CapturePipeline)
+        private void serializeObjectXMLToFile(Object objectToWrite, String objectFilePath, UUID uuid) {
+            try {
+                // Add attributes if method has mockable invocations
+                String[] rootAttributes = method.hasMockableInvocations()
+                        ? new String[]{"uuid", String.valueOf(uuid)}
+                        : new String[0];
+                long recordSize = AdviceTemplate.appendRecordToFile(objectFilePath,
+                        writer -> AdviceTemplate.xStream.marshal(objectToWrite, writer), rootAttributes);
+                captureBudget.record(objectFilePath, recordSize);
+            } catch (Exception e) {
+                logger.info("Exception when writing XML for " + methodFQN + " to file " + objectFilePath);
+                e.printStackTrace();
+                if (AdviceTemplate.converterRegistry.omitUnconvertibleType(e)) {
+                    logger.info("Omitting objects without a converter: " + e.getMessage());
+                }
+            }
+        }
+
+        private void appendRowToInvokedCSVFile() {
+            try {
+                InvokedMethodsRegistry.forFile(invokedMethodsCSVFilePath).register(method.getInvokedMethodsRow());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.glowroot.agent.impl;
+
+import org.glowroot.agent.plugin.api.Logger;
+import org.glowroot.agent.plugin.api.internal.LoggerFactory;
+
+/**
+ * Stands in for the logger factory of the Glowroot agent, which
+ * Logger.getLogger() loads by name, so that tests can initialize aspects
+ * without the agent. Nothing is logged.
+ */
+public class LoggerFactoryImpl implements LoggerFactory {
+    @Override
+    public Logger getLogger(Class<?> type) {
+        return new NopLogger(type.getName());
+    }
+
+    private static final class NopLogger extends Logger {
+        private final String name;
+
+        NopLogger(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isTraceEnabled() {
+            return false;
+        }
+
+        @Override
+        public void trace(String msg) {
+        }
+
+        @Override
+        public void trace(String format, Object arg) {
+        }
+
+        @Override
+        public void trace(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void trace(String format, Object... arguments) {
+        }
+
+        @Override
+        public void trace(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void debug(String format, Object arg) {
+        }
+
+        @Override
+        public void debug(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void debug(String format, Object... arguments) {
+        }
+
+        @Override
+        public void debug(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isInfoEnabled() {
+            return false;
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void info(String format, Object arg) {
+        }
+
+        @Override
+        public void info(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void info(String format, Object... arguments) {
+        }
+
+        @Override
+        public void info(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isWarnEnabled() {
+            return false;
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String format, Object arg) {
+        }
+
+        @Override
+        public void warn(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void warn(String format, Object... arguments) {
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isErrorEnabled() {
+            return false;
+        }
+
+        @Override
+        public void error(String msg) {
+        }
+
+        @Override
+        public void error(String format, Object arg) {
+        }
+
+        @Override
+        public void error(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void error(String format, Object... arguments) {
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryRecordFileTest {
+    static final XStream xStream = new XStream();
+
+    private static File createTempFile() throws Exception {
+        File file = File.createTempFile("pankti-binary", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // Test that a repeated record only refers to the names and values defined by the first one
+    @Test
+    public void testRepeatedRecordIsInterned() throws Exception {
+        File file = createTempFile();
+        BinaryRecordFile binaryRecordFile = BinaryRecordFile.forFile(file.getPath());
+        Object object = new int[]{1, 2};
+        long firstSize = binaryRecordFile.append(writer -> xStream.marshal(object, writer), "uuid", "1");
+        long secondSize = binaryRecordFile.append(writer -> xStream.marshal(object, writer), "uuid", "2");
+        assertTrue(secondSize < firstSize);
+        ObjectFileWriters.flushAll();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(firstSize + secondSize, bytes.length);
+        // Frames shorter than 128 bytes have a one-byte length, followed by the flags
+        assertEquals(firstSize - 1, bytes[0]);
+        assertEquals(BinaryRecordFile.FLAG_RESET_DICTIONARY, bytes[1]);
+        assertEquals(BinaryRecordFile.DEFINE, bytes[2]);
+        assertEquals(0, bytes[(int) firstSize + 1]);
+        assertEquals(BinaryRecordFile.START_NODE, bytes[(int) firstSize + 2]);
+    }
+
+    // Test that a record that fails is not appended, and that its definitions are made again by the next record
+    @Test
+    public void testFailedRecordIsDiscarded() throws Exception {
+        File file = createTempFile();
+        BinaryRecordFile binaryRecordFile = BinaryRecordFile.forFile(file.getPath());
+        assertThrows(IllegalStateException.class, () -> binaryRecordFile.append(writer -> {
+            writer.startNode("never-appended");
+            throw new IllegalStateException();
+        }));
+        long size = binaryRecordFile.append(writer -> {
+            writer.startNode("never-appended");
+            writer.endNode();
+        });
+        ObjectFileWriters.flushAll();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(size, bytes.length);
+        assertEquals(BinaryRecordFile.FLAG_RESET_DICTIONARY, bytes[1]);
+        assertEquals(BinaryRecordFile.DEFINE, bytes[2]);
+        assertEquals("never-appended".length(), bytes[3]);
+    }
+}
@@ -0,0 +1,69 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BoundedGraphMarshallingStrategyTest {
+
+    static class Node {
+        String name;
+        Node next;
+        List<Integer> values = new ArrayList<>();
+        Thread thread;
+
+        Node(String name, Node next) {
+            this.name = name;
+            this.next = next;
+        }
+    }
+
+    private static XStream boundedXStream(int maxDepth, int maxElements, long maxRecordChars, List<String> denied) {
+        XStream xStream = new XStream();
+        xStream.setMarshallingStrategy(new BoundedGraphMarshallingStrategy(maxDepth, maxElements, maxRecordChars, denied));
+        return xStream;
+    }
+
+    // Test that objects nested too deep are truncated, while their single values are kept
+    @Test
+    public void testDeepObjectsAreTruncated() {
+        Node chain = new Node("a", new Node("b", new Node("c", null)));
+        String xml = boundedXStream(2, 0, 0, List.of()).toXML(chain);
+        assertTrue(xml.contains("<name>b</name>"), xml);
+        assertFalse(xml.contains("<name>c</name>"), xml);
+        assertTrue(xml.contains("<next pankti-truncated=\"depth\"/>"), xml);
+    }
+
+    // Test that large collections keep their first elements, and denied classes are not serialized
+    @Test
+    public void testElementsAndDeniedClassesAreTruncated() {
+        Node node = new Node("a", null);
+        for (int i = 0; i < 100; i++) {
+            node.values.add(i);
+        }
+        node.thread = Thread.currentThread();
+        String xml = boundedXStream(0, 3, 0, List.of("java.lang.Runnable")).toXML(node);
+        assertTrue(xml.contains("<values pankti-truncated=\"elements\">"), xml);
+        assertTrue(xml.contains("<int>2</int>"), xml);
+        assertFalse(xml.contains("<int>3</int>"), xml);
+        assertTrue(xml.contains("<thread pankti-truncated=\"denied\"/>"), xml);
+    }
+
+    // Test that the rest of a record is truncated once it reaches the size limit
+    @Test
+    public void testLargeRecordIsTruncated() {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("value-" + i);
+        }
+        String xml = boundedXStream(0, 0, 100, List.of()).toXML(values);
+        assertTrue(xml.contains("pankti-truncated=\"size\""), xml);
+        assertTrue(xml.length() < 2000, xml);
+        // Unbounded, the same XStream setup serializes every value
+        assertTrue(new XStream().toXML(values).contains("value-999"));
+    }
+}
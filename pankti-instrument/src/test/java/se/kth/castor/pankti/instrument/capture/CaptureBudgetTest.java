@@ -0,0 +1,38 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureBudgetTest {
+
+    // Test that a budget starts from the size of existing files and counts recorded bytes
+    @Test
+    public void testBudgetCountsExistingAndRecordedBytes() throws Exception {
+        File objectFile = File.createTempFile("pankti-budget", "-receiving.xml");
+        objectFile.deleteOnExit();
+        Files.writeString(objectFile.toPath(), "<int>1</int>\n");
+        CaptureBudget budget = CaptureBudget.forFiles(objectFile.getPath(), objectFile.getPath() + ".missing");
+        assertEquals(13, budget.getBytes());
+        long globalBytes = CaptureBudget.getGlobalBytes();
+        budget.record(objectFile.getPath(), 100);
+        assertEquals(113, budget.getBytes());
+        assertEquals(globalBytes + 100, CaptureBudget.getGlobalBytes());
+        assertTrue(budget.isWithinLimits());
+    }
+
+    // Test that a budget is exhausted once one of its files reaches the limit, not the files together
+    @Test
+    public void testBudgetIsExhaustedAtLimit() {
+        CaptureBudget budget = new CaptureBudget(1024);
+        budget.record("receiving.xml", 1023);
+        budget.record("params.xml", 1023);
+        assertEquals(2046, budget.getBytes());
+        assertTrue(budget.isWithinLimits());
+        budget.record("receiving.xml", 1);
+        assertFalse(budget.isWithinLimits());
+    }
+}
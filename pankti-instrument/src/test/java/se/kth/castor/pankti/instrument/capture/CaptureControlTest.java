@@ -0,0 +1,84 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureControlTest {
+    private static final Function<Object, String> stateSerializer = String::valueOf;
+
+    private static void writeControlFile(Path controlFile, String settings, long modified) throws Exception {
+        Files.writeString(controlFile, settings);
+        Files.setLastModifiedTime(controlFile, FileTime.fromMillis(modified));
+    }
+
+    // Test that changes to the control file apply to methods, budgets, and the method table once it is polled
+    @Test
+    public void testControlFileChangesApplyWithoutRestart() throws Exception {
+        File methodList = File.createTempFile("pankti-methods", ".csv");
+        methodList.deleteOnExit();
+        Files.writeString(methodList.toPath(), MethodTableTest.csv);
+        Path controlFile = File.createTempFile("pankti-control", ".properties").toPath();
+        CaptureControl control = new CaptureControl(controlFile);
+        MethodControl methodControl = MethodControl.forMethod("com.example.Shop.close", "first:1", stateSerializer);
+        try {
+            assertTrue(methodControl.getSamplingPolicy().sample(null, null));
+            assertFalse(methodControl.isEnabled());
+
+            writeControlFile(controlFile, "samplingPolicies=com.example.Shop.close=rate:2\n"
+                    + "methodProfileSizeLimitMB=0\n"
+                    + "dispatchMethods=" + methodList.getPath().replace("\\", "\\\\") + "\n", 1_000_000L);
+            control.reloadIfModified();
+            assertTrue(methodControl.isEnabled());
+            assertTrue(methodControl.getSamplingPolicy() instanceof SamplingPolicies.FixedRate);
+            assertFalse(CaptureBudget.forFiles().isWithinLimits());
+            assertEquals(3, MethodTable.getConfigured().size());
+
+            writeControlFile(controlFile, "disabledMethods=com.example.Shop.open;com.example.Shop.close\n", 2_000_000L);
+            control.reloadIfModified();
+            assertFalse(methodControl.isEnabled());
+            assertTrue(CaptureBudget.forFiles().isWithinLimits());
+            assertEquals(0, MethodTable.getConfigured().size());
+        } finally {
+            Files.delete(controlFile);
+            control.reloadIfModified();
+        }
+        assertTrue(CaptureControl.snapshot().isEnabled("com.example.Shop.close"));
+    }
+
+    // Test that settings changed over JMX publish new snapshots, and keep policies whose specification is unchanged
+    @Test
+    public void testOverridesKeepUnchangedSamplingPolicies() {
+        CaptureControl control = CaptureControl.getInstance();
+        MethodControl methodControl = MethodControl.forMethod("com.example.Shop.findCustomer_java.lang.String,long",
+                "rate:10", stateSerializer);
+        SamplingPolicy samplingPolicy = methodControl.getSamplingPolicy();
+        long version = control.getVersion();
+        try {
+            control.disableMethod("com.example.Shop.findCustomer_java.lang.String,long");
+            assertTrue(control.getVersion() > version);
+            assertFalse(methodControl.isEnabled());
+            control.enableMethod("com.example.Shop.findCustomer_java.lang.String,long");
+            assertTrue(methodControl.isEnabled());
+            assertSame(samplingPolicy, methodControl.getSamplingPolicy());
+
+            control.setSamplingPolicy("com.example.Shop.findCustomer_java.lang.String,long", "all");
+            assertTrue(methodControl.getSamplingPolicy() instanceof SamplingPolicies.All);
+            assertThrows(IllegalArgumentException.class,
+                    () -> control.setSamplingPolicy("com.example.Shop.findCustomer_java.lang.String,long", "rate:x"));
+
+            control.setCaptureEnabled(false);
+            assertFalse(methodControl.isEnabled());
+        } finally {
+            control.resetOverrides();
+        }
+        assertTrue(methodControl.isEnabled());
+        assertTrue(methodControl.getSamplingPolicy() instanceof SamplingPolicies.FixedRate);
+    }
+}
@@ -0,0 +1,51 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureMetricsTest {
+
+    // Test that percentiles are the upper bounds of their power-of-two buckets, capped by the maximum
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (long value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.99));
+    }
+
+    // Test that writes through the pipeline are measured per object file and written to the metrics file
+    @Test
+    public void testWritesAreMeasuredPerFile() throws Exception {
+        String objectFilePath = ProfileStorage.getDirectory() + "com.example.Metrics.write-params.xml";
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.ASYNC,
+                CapturePipeline.QueueFullPolicy.DROP, 16, 1);
+        assertTrue(pipeline.admit(1));
+        pipeline.submit(objectFilePath, () -> CaptureMetrics.recordSerialization(objectFilePath, 1000, 42));
+        pipeline.shutdown();
+
+        String json = CaptureMetrics.getInstance().toJson();
+        assertTrue(json.contains("\"com.example.Metrics.write-params.xml\": {\n"
+                + "      \"serializationNanos\": {\"count\": 1, \"sum\": 1000,"));
+        assertTrue(json.contains("\"recordBytes\": {\"count\": 1, \"sum\": 42,"));
+        assertFalse(json.contains("\"queueWaitNanos\": {\"count\": 0,"));
+        assertTrue(CaptureMetrics.getInstance().getBytesWritten() >= 42);
+
+        Path metricsFile = File.createTempFile("pankti-metrics", ".json").toPath();
+        metricsFile.toFile().deleteOnExit();
+        CaptureMetrics.getInstance().writeTo(metricsFile);
+        assertTrue(Files.readString(metricsFile).contains("\"writeNanos\": {\"count\": 1,"));
+    }
+}
@@ -0,0 +1,111 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CapturePipelineTest {
+
+    // Test that records written in sync mode run on the calling thread
+    @Test
+    public void testSyncModeRunsOnCallingThread() {
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.SYNC,
+                CapturePipeline.QueueFullPolicy.DROP, 1, 1);
+        List<Thread> writingThreads = new ArrayList<>();
+        assertTrue(pipeline.admit(10));
+        pipeline.submit("file.xml", () -> writingThreads.add(Thread.currentThread()));
+        assertEquals(List.of(Thread.currentThread()), writingThreads);
+    }
+
+    // Test that records for the same file are written in the order they are submitted
+    @Test
+    public void testAsyncModeKeepsOrderPerFile() {
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.ASYNC,
+                CapturePipeline.QueueFullPolicy.BLOCK, 16, 4);
+        List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(pipeline.admit(1));
+            int record = i;
+            pipeline.submit("file.xml", () -> written.add(record));
+        }
+        pipeline.shutdown();
+        assertEquals(1000, written.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(i, written.get(i));
+        }
+    }
+
+    // Test that a whole invocation is dropped when there is no room for all of its records
+    @Test
+    public void testAsyncModeDropsInvocationWhenFull() throws InterruptedException {
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.ASYNC,
+                CapturePipeline.QueueFullPolicy.DROP, 4, 1);
+        CountDownLatch blockWriter = new CountDownLatch(1);
+        assertTrue(pipeline.admit(3));
+        pipeline.submit("file.xml", () -> {
+            try {
+                blockWriter.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertFalse(pipeline.admit(3));
+        assertEquals(1, pipeline.getDroppedInvocations());
+        pipeline.release(2);
+        assertTrue(pipeline.admit(3));
+        blockWriter.countDown();
+        pipeline.shutdown();
+    }
+
+    // Test that an invocation dropped because the pipeline is full does not use up the sampling policy of its method
+    @Test
+    public void testDroppedInvocationDoesNotUseUpSamplingPolicy() {
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.ASYNC,
+                CapturePipeline.QueueFullPolicy.DROP, 3, 1);
+        MethodControl methodControl = MethodControl.forMethod("com.example.Queue.poll", "first:1", String::valueOf);
+        assertTrue(pipeline.admit(3));
+        assertFalse(methodControl.admit(pipeline, 3, null, null));
+        assertTrue(methodControl.isEnabled());
+        pipeline.release(3);
+        assertTrue(methodControl.admit(pipeline, 3, null, null));
+        assertFalse(methodControl.isEnabled());
+        // A rejected sample gives back the room it reserved
+        assertFalse(methodControl.admit(pipeline, 3, null, null));
+        pipeline.release(3);
+        assertTrue(pipeline.admit(3));
+        pipeline.shutdown();
+    }
+
+    // Test that the profile size of an invocation is reported once its records are written on the writer threads
+    @Test
+    public void testAsyncModeReportsProfileSizeAfterLastRecord() {
+        CapturePipeline pipeline = new CapturePipeline(CapturePipeline.Mode.ASYNC,
+                CapturePipeline.QueueFullPolicy.BLOCK, 16, 2);
+        CountDownLatch blockWriter = new CountDownLatch(1);
+        AtomicLong reportedSize = new AtomicLong(-1);
+        InvocationProfileSize profileSize = new InvocationProfileSize();
+        assertTrue(pipeline.admit(2));
+        profileSize.submitted();
+        pipeline.submit("params.xml", () -> profileSize.recorded(100));
+        profileSize.submitted();
+        pipeline.submit("returned.xml", () -> {
+            try {
+                blockWriter.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            profileSize.recorded(20);
+        });
+        profileSize.complete(reportedSize::set);
+        assertEquals(-1, reportedSize.get());
+        blockWriter.countDown();
+        pipeline.shutdown();
+        assertEquals(120, reportedSize.get());
+    }
+}
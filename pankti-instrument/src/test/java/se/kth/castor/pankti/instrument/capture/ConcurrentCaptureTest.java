@@ -0,0 +1,192 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.instrument.generator.AspectGenerator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentCaptureTest {
+    private static final String PLUGINS = "se.kth.castor.pankti.instrument.plugins.";
+    private static final String PLUGIN_JSON = "META-INF/glowroot.plugin.json";
+    private static final String GLOWROOT_API = "org.glowroot.agent.plugin.api";
+    static final int THREADS = 16;
+    static final int INVOCATIONS_PER_THREAD = 200;
+
+    // A no-op implementation of a Glowroot API interface, whose methods return no-op timers and trace entries,
+    // and no config service, so that settings are read as in the other unit tests
+    static Object stub(Class<?> type) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isInterface() && returnType.getPackageName().equals(GLOWROOT_API)) {
+                return stub(returnType);
+            }
+            return returnType.isPrimitive() && returnType != void.class
+                    ? Array.get(Array.newInstance(returnType, 1), 0)
+                    : null;
+        });
+    }
+
+    /*
+     * The aspects, with the Glowroot API and the classes they use, in a
+     * loader of their own: Agent reads the plugin service once, when it is
+     * initialized, so the stub is set before any aspect is, and other tests
+     * that found no plugin service are not affected.
+     */
+    private static URLClassLoader isolatedLoader(File jar) throws Exception {
+        List<URL> urls = new ArrayList<>();
+        urls.add(jar.toURI().toURL());
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            urls.add(new File(entry).toURI().toURL());
+        }
+        URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+        Class<?> pluginService = loader.loadClass(GLOWROOT_API + ".internal.PluginService");
+        loader.loadClass(GLOWROOT_API + ".internal.PluginServiceHolder").getMethod("set", pluginService)
+                .invoke(null, stub(pluginService));
+        return loader;
+    }
+
+    // The aspects for a parent method with one nested invocation
+    private static File generateAspects(String packageName) throws Exception {
+        File csvFile = File.createTempFile("pankti-methods", ".csv");
+        csvFile.deleteOnExit();
+        Files.writeString(csvFile.toPath(), "visibility,parent-FQN,method-name,param-list,return-type,"
+                + "param-signature,has-mockable-invocations,nested-invocations\n"
+                + "public," + packageName + ".Shop,checkout,[int],java.lang.String,I,true,"
+                + "\"[{nestedInvocationMode='FIELD', nestedInvocationReturnType='java.lang.String', "
+                + "nestedInvocationTargetType=FIELD, nestedInvocationFieldName='repo', "
+                + "nestedInvocationDeclaringType='" + packageName + ".Repo', nestedInvocationMethod='find', "
+                + "nestedInvocationParams='[int]', nestedInvocationSignature='(I)Ljava/lang/String;'}]\"\n");
+        File jar = File.createTempFile("pankti-plugin", ".jar");
+        jar.deleteOnExit();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+             InputStream pluginJson = ConcurrentCaptureTest.class.getResourceAsStream("/" + PLUGIN_JSON)) {
+            out.putNextEntry(new JarEntry(PLUGIN_JSON));
+            pluginJson.transferTo(out);
+        }
+        AspectGenerator.generate(csvFile, jar, AspectGenerator.Mode.MOCK, "");
+        return jar;
+    }
+
+    private static Method adviceMethod(ClassLoader loader, String aspectClassName, String name) throws Exception {
+        for (Method method : Class.forName(aspectClassName + "$TargetMethodAdvice", true, loader).getMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new AssertionError("No " + name + " in " + aspectClassName);
+    }
+
+    private static List<String> extractUuids(String filePath, String attribute) throws Exception {
+        List<String> uuids = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\\s" + attribute + "=\"([^\"]+)\"")
+                .matcher(Files.readString(new File(filePath).toPath()));
+        while (matcher.find()) {
+            uuids.add(matcher.group(1));
+        }
+        return uuids;
+    }
+
+    private static String objectFile(File storageDirectory, String methodFQN, String type) {
+        return new File(storageDirectory, methodFQN + "-" + type + ".xml").getPath();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Test that, with many threads running the advice of the parent and nested aspects at once, every nested
+    // record references the UUID of the parent invocation it was nested in
+    @Test
+    public void testNestedRecordsReferenceTheirParent() throws Exception {
+        String packageName = "com.example.concurrent";
+        File jar = generateAspects(packageName);
+        // Read by the classes of the isolated loader when they are initialized, so they write only there
+        File storageDirectory = Files.createTempDirectory("pankti-concurrent").toFile();
+        System.setProperty("pankti.storageDirectory", storageDirectory.getPath());
+        System.setProperty("pankti.captureMetrics", "false");
+        System.setProperty("pankti.samplingPolicy", "rate:1");
+        try {
+            try (URLClassLoader loader = isolatedLoader(jar)) {
+                Object context = stub(loader.loadClass(GLOWROOT_API + ".OptionalThreadContext"));
+                Method parentIsEnabled = adviceMethod(loader, PLUGINS + "MethodAspect1", "enableProfileCollection");
+                Method parentOnBefore = adviceMethod(loader, PLUGINS + "MethodAspect1", "onBefore");
+                Method parentOnReturn = adviceMethod(loader, PLUGINS + "MethodAspect1", "onReturn");
+                Method nestedIsEnabled = adviceMethod(loader, PLUGINS + "MethodAspect1Nested1", "isNestedInvocation");
+                Method nestedOnBefore = adviceMethod(loader, PLUGINS + "MethodAspect1Nested1", "onBefore");
+                Method nestedOnReturn = adviceMethod(loader, PLUGINS + "MethodAspect1Nested1", "onReturn");
+                ExecutorService application = Executors.newFixedThreadPool(THREADS);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    String receivingObject = "shop-" + t;
+                    futures.add(application.submit(() -> {
+                        for (int i = 0; i < INVOCATIONS_PER_THREAD; i++) {
+                            // As Glowroot weaves the advice into checkout, and into the find it invokes
+                            assertTrue((Boolean) parentIsEnabled.invoke(null));
+                            Object parentTraveler = parentOnBefore.invoke(null, context, receivingObject,
+                                    new Object[]{i}, "checkout");
+                            Thread.yield();
+                            assertTrue((Boolean) nestedIsEnabled.invoke(null));
+                            Object nestedTraveler = nestedOnBefore.invoke(null, context, new Object[]{i}, "find");
+                            Thread.yield();
+                            nestedOnReturn.invoke(null, "item-" + i, nestedTraveler);
+                            parentOnReturn.invoke(null, "order-" + i, parentTraveler);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                application.shutdown();
+                // The pipeline of the aspects writes on the invoking threads (captureMode is SYNC by default), and
+                // counts flushed now are not written again when the JVM exits
+                loader.loadClass(ObjectFileWriters.class.getName()).getMethod("flushAll").invoke(null);
+                loader.loadClass(InvocationCounter.class.getName()).getMethod("flushAll").invoke(null);
+            }
+
+            List<String> parentUuids = extractUuids(
+                    objectFile(storageDirectory, packageName + ".Shop.checkout_int", "params"), "uuid");
+            List<String> nestedParentUuids = extractUuids(
+                    objectFile(storageDirectory, "nested-" + packageName + ".Repo.find_int", "params"), "parent-uuid");
+            List<String> nestedReturnedParentUuids = extractUuids(
+                    objectFile(storageDirectory, "nested-" + packageName + ".Repo.find_int", "returned"),
+                    "parent-uuid");
+            assertEquals(THREADS * INVOCATIONS_PER_THREAD, new HashSet<>(parentUuids).size());
+            assertEquals(THREADS * INVOCATIONS_PER_THREAD, nestedParentUuids.size());
+            assertEquals(new HashSet<>(parentUuids), new HashSet<>(nestedParentUuids));
+            assertEquals(new HashSet<>(parentUuids), new HashSet<>(nestedReturnedParentUuids));
+        } finally {
+            System.clearProperty("pankti.storageDirectory");
+            System.clearProperty("pankti.captureMetrics");
+            System.clearProperty("pankti.samplingPolicy");
+            deleteRecursively(storageDirectory);
+        }
+    }
+}
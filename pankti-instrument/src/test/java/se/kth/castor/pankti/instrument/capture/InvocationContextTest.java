@@ -0,0 +1,69 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationContextTest {
+    static final String parentFQN = "some.Class.parent_int";
+
+    // Test that recursive invocations of a parent are found innermost first, and removed on exit
+    @Test
+    public void testRecursiveInvocationsOfParent() {
+        UUID outer = UUID.randomUUID();
+        UUID inner = UUID.randomUUID();
+        assertNull(InvocationContext.current(parentFQN));
+        InvocationContext.enter(parentFQN, outer);
+        InvocationContext.enter("some.Class.other", null);
+        InvocationContext.Invocation innerInvocation = InvocationContext.enter(parentFQN, inner);
+        assertEquals(3, innerInvocation.getDepth());
+        assertEquals(inner, InvocationContext.current(parentFQN).getUuid());
+        InvocationContext.exit(parentFQN);
+        assertEquals(outer, InvocationContext.current(parentFQN).getUuid());
+        InvocationContext.exit("some.Class.other");
+        InvocationContext.exit(parentFQN);
+        assertNull(InvocationContext.current(parentFQN));
+    }
+
+    // Test that an invocation on one thread is not visible from another thread
+    @Test
+    public void testInvocationsAreLocalToThread() throws InterruptedException {
+        InvocationContext.enter(parentFQN, UUID.randomUUID());
+        AtomicReference<InvocationContext.Invocation> seenFromOtherThread = new AtomicReference<>();
+        Thread otherThread = new Thread(() -> seenFromOtherThread.set(InvocationContext.current(parentFQN)));
+        otherThread.start();
+        otherThread.join();
+        assertNull(seenFromOtherThread.get());
+        InvocationContext.exit(parentFQN);
+    }
+
+    // Test that a snapshot restored on a pool thread exposes the submitting thread's invocation
+    @Test
+    public void testSnapshotIsRestoredOnAnotherThread() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        InvocationContext.enter(parentFQN, uuid);
+        InvocationContext.Snapshot snapshot = InvocationContext.snapshot();
+        InvocationContext.exit(parentFQN);
+        assertNull(InvocationContext.snapshot());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            UUID seenInTask = executor.submit(() -> {
+                InvocationContext previous = InvocationContext.restore(snapshot);
+                try {
+                    return InvocationContext.current(parentFQN).getUuid();
+                } finally {
+                    InvocationContext.reinstate(previous);
+                }
+            }).get();
+            assertEquals(uuid, seenInTask);
+            assertNull(executor.submit(() -> InvocationContext.current(parentFQN)).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationCounterTest {
+
+    // Test that counts continue from the count file and are written back when flushed
+    @Test
+    public void testCountIsFlushedToFile() throws Exception {
+        File countFile = File.createTempFile("pankti-counter", "-count.txt");
+        countFile.deleteOnExit();
+        String invocationString = "Invocation count for some.Class.method_int[]: ";
+        Files.writeString(countFile.toPath(), invocationString + 41);
+        InvocationCounter counter = InvocationCounter.forMethod("some.Class.method_int[]",
+                countFile.getPath(), invocationString);
+        assertSame(counter, InvocationCounter.forMethod("some.Class.method_int[]",
+                countFile.getPath(), invocationString));
+        counter.increment();
+        assertEquals(42, counter.getCount());
+        InvocationCounter.flushAll();
+        assertEquals(invocationString + 42, Files.readString(countFile.toPath()));
+    }
+}
@@ -0,0 +1,30 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvokedMethodsRegistryTest {
+
+    // Test that rows already in the CSV file are loaded, and new rows are appended only once
+    @Test
+    public void testRowsAreAppendedOnce() throws Exception {
+        File csvFile = File.createTempFile("invoked-methods", ".csv");
+        csvFile.deleteOnExit();
+        String header = "visibility,parent-FQN,method-name";
+        Files.writeString(csvFile.toPath(), header + "\npublic,some.Class,existing");
+        InvokedMethodsRegistry registry = InvokedMethodsRegistry.forFile(csvFile.getPath());
+        assertTrue(registry.isRegistered("public,some.Class,existing"));
+
+        registry.register("public,some.Class,existing");
+        registry.register("public,some.Class,added");
+        registry.register("public,some.Class,added");
+        ObjectFileWriters.flushAll();
+        assertEquals(List.of(header, "public,some.Class,existing", "public,some.Class,added"),
+                Files.readAllLines(csvFile.toPath()));
+    }
+}
@@ -0,0 +1,72 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MethodTableTest {
+    static final String csv = "visibility,parent-FQN,method-name,param-list,return-type,param-signature,"
+            + "has-mockable-invocations,nested-invocations\n"
+            + "public,com.example.Shop,findCustomer,\"[java.lang.String, long]\",com.example.Customer,"
+            + "Ljava/lang/String;J,false,[]\n"
+            + "public,com.example.Shop$Cart,add,\"[T, int[]]\",void,Ljava/lang/Object;[I,true,\"[a, b]\"\n"
+            + "public,com.example.Shop,close,[],void,,false,[]\n";
+    static final String genericRow = "public,com.example.Shop,sort,\"[java.util.List<R>, R, java.lang.String...]\",void,"
+            + "Ljava/util/List<R>;Ljava/lang/Object;[Ljava/lang/String...;,false,[]\n";
+
+    private static MethodTable load() throws Exception {
+        return load(csv);
+    }
+
+    private static MethodTable load(String csv) throws Exception {
+        File file = File.createTempFile("pankti-methods", ".csv");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), csv);
+        return MethodTable.load(file.toPath());
+    }
+
+    // Test that methods are identified by their row, and looked up by class, name, and parameter types
+    @Test
+    public void testMethodsAreIdentifiedByRow() throws Exception {
+        MethodTable methodTable = load();
+        assertEquals(3, methodTable.size());
+        assertEquals(0, methodTable.idOf("com.example.Shop", "findCustomer", List.of("java.lang.String", "long")));
+        assertEquals(1, methodTable.idOf("com.example.Shop$Cart", "add", List.of("java.lang.Object", "int[]")));
+        assertEquals(2, methodTable.idOf("com.example.Shop", "close", List.of()));
+        assertEquals(-1, methodTable.idOf("com.example.Shop", "findCustomer", List.of("java.lang.String")));
+        assertEquals(-1, methodTable.idOf("com.example.Shop", "open", List.of()));
+    }
+
+    // Test that a method has the FQN and invoked-methods.csv row of its generated aspect
+    @Test
+    public void testMethodMatchesGeneratedAspect() throws Exception {
+        MethodTable.Method method = load().get(1);
+        assertEquals("com.example.Shop$Cart.add_java.lang.Object,int[]", method.getMethodFQN());
+        assertTrue(method.isReturnTypeVoid());
+        assertTrue(method.hasMockableInvocations());
+        assertEquals("public,com.example.Shop$Cart,add,\"[T,int[]]\",void,Ljava/lang/Object;[I,True,\"[a,b]\"",
+                method.getInvokedMethodsRow());
+        assertEquals("com.example.Shop.close", load().get(2).getMethodFQN());
+    }
+
+    // Test that generic parameters, type variables, and varargs are found by the erased types of the method at runtime
+    @Test
+    public void testGenericMethodsAreFoundByErasedTypes() throws Exception {
+        MethodTable methodTable = load(csv + genericRow);
+        // As DispatchedMethod names them, for <R extends Comparable<R>> void sort(List<R>, R, String...)
+        List<String> erasedTypes = List.of(List.class.getTypeName(), Comparable.class.getTypeName(),
+                String[].class.getTypeName());
+        assertEquals(3, methodTable.idOf("com.example.Shop", "sort", erasedTypes));
+        assertEquals(3, methodTable.idOf(methodTable.get(3)));
+        assertEquals(-1, methodTable.idOf("com.example.Shop", "sort",
+                List.of("java.util.List", "int", "java.lang.String[]")));
+        assertEquals(1, methodTable.idOf("com.example.Shop$Cart", "add",
+                List.of(Number.class.getTypeName(), int[].class.getTypeName())));
+        assertEquals("?[]", MethodTable.normalizeType("T[]"));
+        assertEquals("java.util.Map[]", MethodTable.normalizeType("java.util.Map<K, java.util.List<V>>..."));
+    }
+}
@@ -0,0 +1,47 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectFileWritersTest {
+
+    // Test that appended content reaches the file when flushed
+    @Test
+    public void testAppendIsBufferedUntilFlush() throws Exception {
+        File file = File.createTempFile("pankti-writers", ".xml");
+        file.deleteOnExit();
+        ObjectFileWriters.append(file.getPath(), "<int>1</int>\n");
+        ObjectFileWriters.append(file.getPath(), "<int>2</int>\n");
+        assertEquals(0, file.length());
+        ObjectFileWriters.flushAll();
+        assertEquals("<int>1</int>\n<int>2</int>\n", Files.readString(file.toPath()));
+    }
+
+    // Test that a compressed file is written as GZIP blocks, which decompress as one stream
+    @Test
+    public void testCompressedFileIsWrittenInBlocks() throws Exception {
+        File file = File.createTempFile("pankti-writers", ".xml.gz");
+        file.deleteOnExit();
+        String record = "<int-array>\n  <int>1</int>\n</int-array>\n";
+        ObjectFileWriters.append(file.getPath(), record);
+        ObjectFileWriters.flushAll();
+        long firstBlockLength = file.length();
+        for (int i = 0; i < 100; i++) {
+            ObjectFileWriters.append(file.getPath(), record);
+        }
+        ObjectFileWriters.flushAll();
+        assertTrue(file.length() - firstBlockLength < record.length() * 10);
+        assertTrue(ObjectFileWriters.storedSize(file.getPath(), record.length()) < record.length());
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertEquals(record.repeat(101), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
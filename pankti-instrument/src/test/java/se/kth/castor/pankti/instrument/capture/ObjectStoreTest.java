@@ -0,0 +1,63 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectStoreTest {
+    static final XStream xStream = new XStream();
+
+    private static File createTempFile(String extension) throws Exception {
+        File file = File.createTempFile("pankti-store", extension);
+        file.deleteOnExit();
+        return file;
+    }
+
+    // Test that a repeated object is stored once, and referenced with the root attributes of its own invocation
+    @Test
+    public void testRepeatedObjectIsReferenced() throws Exception {
+        File file = createTempFile(".xml");
+        ObjectStore objectStore = ObjectStore.create();
+        Object object = new int[]{1, 2};
+        long storedSize = objectStore.append(CaptureFormat.XML, file.getPath(),
+                writer -> xStream.marshal(object, writer), "uuid", "1");
+        long referenceSize = objectStore.append(CaptureFormat.XML, file.getPath(),
+                writer -> xStream.marshal(object, writer), "uuid", "2");
+        objectStore.append(CaptureFormat.XML, file.getPath(),
+                writer -> xStream.marshal(new int[]{3}, writer), "uuid", "3");
+        assertTrue(referenceSize < storedSize);
+        ObjectFileWriters.flushAll();
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        String stored = lines.get(0);
+        assertTrue(stored.matches("<int-array uuid=\"1\" hash=\"[0-9a-f]{16}\">"), stored);
+        String hash = stored.substring(stored.indexOf("hash=\"") + 6, stored.length() - 2);
+        assertNotEquals(ObjectStore.HASH_PLACEHOLDER, hash);
+        assertTrue(lines.contains("<object-ref hash=\"" + hash + "\" uuid=\"2\"/>"));
+        assertTrue(lines.get(lines.size() - 3).startsWith("<int-array uuid=\"3\" hash="));
+    }
+
+    // Test that a repeated object in the binary format drops its frame, and the definitions it made
+    @Test
+    public void testRepeatedBinaryObjectIsReferenced() throws Exception {
+        File file = createTempFile(".bin");
+        ObjectStore objectStore = ObjectStore.create();
+        Object object = new String[]{"stored", "once"};
+        long storedSize = objectStore.append(CaptureFormat.BINARY, file.getPath(),
+                writer -> xStream.marshal(object, writer), "uuid", "1");
+        long referenceSize = objectStore.append(CaptureFormat.BINARY, file.getPath(),
+                writer -> xStream.marshal(object, writer), "uuid", "2");
+        assertTrue(referenceSize < storedSize);
+        ObjectFileWriters.flushAll();
+
+        String bytes = new String(Files.readAllBytes(file.toPath()));
+        assertEquals(storedSize + referenceSize, bytes.length());
+        assertFalse(bytes.contains(ObjectStore.HASH_PLACEHOLDER));
+        assertTrue(bytes.contains(ObjectStore.REFERENCE_NODE));
+    }
+}
@@ -0,0 +1,64 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectXMLWriterTest {
+    static final XStream xStream = new XStream();
+
+    static class Receiver {
+        String name = "a < b & \"c\"\r\u0001\u0000";
+        List<Object> items = new ArrayList<>(List.of(1, "two", 'c'));
+        Map<String, Object> map = new TreeMap<>(Map.of("k&#x1;", new int[]{1, 2}));
+        Object empty = new Object();
+    }
+
+    // The XML as it was built before streaming: a String, escaped and extended with regular expressions
+    private static String toXMLWithRegularExpressions(Object object, String attributes) {
+        String xml = xStream.toXML(object);
+        xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
+        return xml.replaceFirst("(\\/*)>", attributes + "$1>");
+    }
+
+    private static String toXMLWithWriter(Object object, String... rootAttributes) throws Exception {
+        StringWriter out = new StringWriter();
+        ObjectXMLWriter.marshal(xStream, object, out, rootAttributes);
+        return out.toString();
+    }
+
+    // Test that streamed XML is the same as the XML built as a String
+    @Test
+    public void testStreamedXMLMatchesStringXML() throws Exception {
+        for (Object object : new Object[]{new Receiver(), "\u0002text\r", 42, new Object(), null, new Object[]{1, null}}) {
+            assertEquals(toXMLWithRegularExpressions(object, ""), toXMLWithWriter(object));
+            assertEquals(toXMLWithRegularExpressions(object, " parent-uuid=\"u-1\" timestamp=\"42\""),
+                    toXMLWithWriter(object, "parent-uuid", "u-1", "timestamp", "42"));
+        }
+    }
+
+    // Test that a record larger than the spill threshold is kept whole, and removed on reset
+    @Test
+    public void testRecordBufferSpillsLargeRecords() throws Exception {
+        RecordBuffer record = new RecordBuffer(16);
+        record.write("<small/>");
+        assertFalse(record.isSpilled());
+        String large = "x".repeat(100);
+        record.write(large);
+        assertTrue(record.isSpilled());
+        assertEquals(108, record.length());
+        StringWriter target = new StringWriter();
+        record.transferTo(target);
+        assertEquals("<small/>" + large, target.toString());
+        record.reset();
+        assertFalse(record.isSpilled());
+        assertEquals(0, record.length());
+    }
+}
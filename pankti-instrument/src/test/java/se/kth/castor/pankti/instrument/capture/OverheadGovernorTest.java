@@ -0,0 +1,67 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OverheadGovernorTest {
+
+    private static void restoreAll(OverheadGovernor governor) {
+        for (int i = 0; i < 100 && (OverheadGovernor.rates().keepOneIn("com.example.Shop.open") > 1
+                || OverheadGovernor.rates().keepOneIn("com.example.Shop.close") > 1); i++) {
+            governor.adjust(Map.of(), 1000, 0);
+        }
+    }
+
+    // Test that the most expensive method is throttled first, and only over budget
+    @Test
+    public void testMostExpensiveMethodIsThrottledFirst() {
+        OverheadGovernor governor = new OverheadGovernor(0.05, 0.5);
+        MethodControl methodControl = MethodControl.forMethod("com.example.Shop.open", "all", String::valueOf);
+        try {
+            governor.adjust(Map.of("com.example.Shop.open", 900L, "com.example.Shop.close", 100L), 1000, 0);
+            assertEquals(2, OverheadGovernor.rates().keepOneIn("com.example.Shop.open"));
+            assertEquals(1, OverheadGovernor.rates().keepOneIn("com.example.Shop.close"));
+            governor.adjust(Map.of("com.example.Shop.open", 450L, "com.example.Shop.close", 100L), 1000, 0);
+            assertEquals(4, OverheadGovernor.rates().keepOneIn("com.example.Shop.open"));
+
+            int sampled = 0;
+            for (int i = 0; i < 8; i++) {
+                sampled += methodControl.sample(null, null) ? 1 : 0;
+            }
+            assertEquals(2, sampled);
+
+            // Within budget, but not well under it
+            long version = OverheadGovernor.rates().getVersion();
+            governor.adjust(Map.of("com.example.Shop.open", 40L), 1000, 0);
+            assertEquals(version, OverheadGovernor.rates().getVersion());
+
+            governor.adjust(Map.of("com.example.Shop.open", 10L, "com.example.Shop.close", 20L), 1000, 0.9);
+            assertEquals(2, OverheadGovernor.rates().keepOneIn("com.example.Shop.close"));
+        } finally {
+            restoreAll(governor);
+        }
+    }
+
+    // Test that throttles are lifted one step at a time once well under budget
+    @Test
+    public void testThrottlesAreRestoredUnderBudget() {
+        OverheadGovernor governor = new OverheadGovernor(0.05, 0);
+        MethodControl methodControl = MethodControl.forMethod("com.example.Shop.close", "all", String::valueOf);
+        try {
+            governor.adjust(Map.of("com.example.Shop.close", 500L), 1000, 0);
+            governor.adjust(Map.of("com.example.Shop.close", 500L), 1000, 0);
+            assertEquals(4, OverheadGovernor.rates().keepOneIn("com.example.Shop.close"));
+            governor.adjust(Map.of("com.example.Shop.close", 10L), 1000, 0);
+            assertEquals(2, OverheadGovernor.rates().keepOneIn("com.example.Shop.close"));
+            governor.adjust(Map.of(), 1000, 0);
+            assertEquals(1, OverheadGovernor.rates().keepOneIn("com.example.Shop.close"));
+            assertTrue(methodControl.sample(null, null));
+            assertTrue(methodControl.sample(null, null));
+        } finally {
+            restoreAll(governor);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParameterArrayWriterTest {
+    static final XStream xStream = new XStream();
+
+    private static String write(Consumer<CompactWriter> marshaller) {
+        StringWriter stringWriter = new StringWriter();
+        marshaller.accept(new CompactWriter(stringWriter));
+        return stringWriter.toString();
+    }
+
+    // Test that primitive and String parameters are written as XStream writes them
+    @Test
+    public void testPrimitiveAndStringParametersMatchXStream() {
+        ParameterArrayWriter parameterArrayWriter = ParameterArrayWriter.forParameterTypes(
+                "int", "long", "java.lang.String", "boolean", "char", "char", "double", "float",
+                "byte", "short", "java.lang.String");
+        Object[] parameters = {42, -7L, "<a & b>", true, 'x', '\0', 0.1, 1.5f, (byte) 3, (short) 4, null};
+        assertEquals(write(writer -> xStream.marshal(parameters, writer)),
+                write(writer -> parameterArrayWriter.write(parameters, writer)));
+        assertEquals(write(writer -> xStream.marshal(new Object[0], writer)),
+                write(writer -> ParameterArrayWriter.forParameterTypes().write(new Object[0], writer)));
+    }
+
+    // Test that parameters of other types are written as empty nodes named after their type
+    @Test
+    public void testOtherParametersAreEmptyNodes() {
+        ParameterArrayWriter parameterArrayWriter = ParameterArrayWriter.forParameterTypes(
+                "int", "java.util.List", "com.example.Outer$Inner[]");
+        Object[] parameters = {1, java.util.List.of(1), null};
+        assertEquals("<object-array><int>1</int><java.util.List/><com.example.Outer.Inner-array/></object-array>",
+                write(writer -> parameterArrayWriter.write(parameters, writer)));
+    }
+}
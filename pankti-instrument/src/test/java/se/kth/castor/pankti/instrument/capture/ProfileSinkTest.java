@@ -0,0 +1,122 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileSinkTest {
+
+    // Test that every sink reports the bytes a record takes once encoded, as their sizes count, not its chars
+    @Test
+    public void testSinksReportEncodedRecordSizes() throws Exception {
+        File directory = Files.createTempDirectory("pankti-encoded").toFile();
+        String content = "<string>Åsa läser på caféet</string>\n";
+        ProfileSink[] sinks = {
+                new FileLayoutSink(),
+                new SegmentedLogSink(Files.createDirectory(new File(directory, "segmented").toPath()).toFile(), 4096),
+                new MappedLogSink(Files.createDirectory(new File(directory, "mapped").toPath()).toFile(), 4096),
+                new InMemorySink()
+        };
+        for (ProfileSink sink : sinks) {
+            String profilePath = new File(directory, sink.getClass().getSimpleName() + "-params.xml").getPath();
+            long recordSize;
+            try (RecordBuffer record = new RecordBuffer(16)) {
+                record.write(content);
+                recordSize = sink.append(profilePath, record);
+            }
+            sink.flush();
+            assertEquals(content.getBytes().length, recordSize, sink.getClass().getSimpleName());
+            assertEquals(sink.size(profilePath), recordSize, sink.getClass().getSimpleName());
+            sink.close();
+        }
+    }
+
+    // Test that the segmented log rolls over by size, and unpacks into one file per profile
+    @Test
+    public void testSegmentedLogIsUnpackedIntoFiles() throws Exception {
+        File directory = Files.createTempDirectory("pankti-log").toFile();
+        String receivingPath = directory.getPath() + File.separator + "A.m-receiving.xml";
+        String paramsPath = directory.getPath() + File.separator + "A.m-params.xml";
+        SegmentedLogSink sink = new SegmentedLogSink(directory, 64);
+        StringBuilder receiving = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            String record = "<int>" + i + "</int>\n";
+            sink.append(receivingPath, record);
+            sink.append(paramsPath, "<object-array/>\n");
+            receiving.append(record);
+        }
+        sink.close();
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        assertTrue(segments.length > 1);
+
+        // A new run continues in a new segment, from the sizes stored by earlier runs
+        SegmentedLogSink nextRun = new SegmentedLogSink(directory, 64);
+        assertEquals(receiving.length(), nextRun.size(receivingPath));
+        nextRun.append(receivingPath, "<int>10</int>\n");
+        nextRun.close();
+        receiving.append("<int>10</int>\n");
+
+        File target = Files.createTempDirectory("pankti-unpacked").toFile();
+        ProfileLog.unpack(directory, target);
+        assertEquals(receiving.toString(), Files.readString(new File(target, "A.m-receiving.xml").toPath()));
+        assertEquals("<object-array/>\n".repeat(10), Files.readString(new File(target, "A.m-params.xml").toPath()));
+    }
+
+    // Test that threads appending concurrently to the mapped log lose no record, across segments
+    @Test
+    public void testMappedLogKeepsConcurrentAppends() throws Exception {
+        File directory = Files.createTempDirectory("pankti-mapped-log").toFile();
+        MappedLogSink sink = new MappedLogSink(directory, 4096);
+        int threads = 4;
+        int records = 500;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String path = directory.getPath() + File.separator + "A.m" + t + "-receiving.xml";
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < records; i++) {
+                    try {
+                        sink.append(path, "<int>" + i + "</int>\n");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        sink.close();
+        assertTrue(directory.listFiles((dir, name) -> name.endsWith(".log")).length > 1);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            expected.append("<int>").append(i).append("</int>\n");
+        }
+        File target = Files.createTempDirectory("pankti-unpacked").toFile();
+        ProfileLog.unpack(directory, target);
+        for (int t = 0; t < threads; t++) {
+            assertEquals(expected.toString(), Files.readString(new File(target, "A.m" + t + "-receiving.xml").toPath()));
+            assertEquals(expected.length(), sink.size(directory.getPath() + File.separator + "A.m" + t + "-receiving.xml"));
+        }
+    }
+
+    // Test that the in-memory sink keeps each profile apart
+    @Test
+    public void testInMemorySinkKeepsProfiles() throws Exception {
+        InMemorySink sink = new InMemorySink();
+        sink.append("a", "<int>1</int>\n");
+        sink.append("a", new byte[]{'x', 'y'}, 1, 1);
+        sink.append("b", "<int>2</int>\n");
+        assertEquals("<int>1</int>\ny", new String(sink.getBytes("a")));
+        assertEquals(13, sink.size("b"));
+        assertEquals(0, sink.size("c"));
+    }
+}
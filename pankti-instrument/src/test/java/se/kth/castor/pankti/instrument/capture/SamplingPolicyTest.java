@@ -0,0 +1,105 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SamplingPolicyTest {
+    static final Function<Object, String> stateSerializer = String::valueOf;
+
+    private static int countSamples(SamplingPolicy policy, int invocations) {
+        int sampled = 0;
+        for (int i = 0; i < invocations; i++) {
+            if (policy.sample(null, i)) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+
+    // Test that first:N samples N invocations, then reports that it is exhausted
+    @Test
+    public void testFirstIsExhaustedAfterLimit() {
+        SamplingPolicy policy = SamplingPolicies.parse("first:2", stateSerializer);
+        assertFalse(policy.isExhausted());
+        assertEquals(2, countSamples(policy, 10));
+        assertTrue(policy.isExhausted());
+    }
+
+    // Test that rate:N samples one in N invocations
+    @Test
+    public void testFixedRate() {
+        SamplingPolicy policy = SamplingPolicies.parse("rate:10", stateSerializer);
+        assertEquals(100, countSamples(policy, 1000));
+        assertFalse(policy.isExhausted());
+    }
+
+    // Test that the token bucket samples at most K invocations per second
+    @Test
+    public void testTokenBucketRefillsOverTime() {
+        AtomicLong clock = new AtomicLong();
+        SamplingPolicy policy = new SamplingPolicies.TokenBucket(5, clock::get);
+        assertEquals(5, countSamples(policy, 100));
+        clock.addAndGet(400);
+        assertEquals(2, countSamples(policy, 100));
+        clock.addAndGet(10_000);
+        assertEquals(5, countSamples(policy, 100));
+    }
+
+    // Test that the reservoir samples its size in the first window, and at most its size in later windows
+    @Test
+    public void testReservoirBoundsSamplesPerWindow() {
+        AtomicLong clock = new AtomicLong();
+        SamplingPolicy policy = new SamplingPolicies.Reservoir(10, 1000, clock::get);
+        assertEquals(10, countSamples(policy, 10));
+        countSamples(policy, 990);
+        clock.addAndGet(1000);
+        int sampled = countSamples(policy, 1000);
+        assertTrue(sampled > 0 && sampled <= 10);
+    }
+
+    // Test that new-state samples an invocation only when its state was not seen before
+    @Test
+    public void testNewStateSkipsSeenStates() {
+        SamplingPolicy policy = SamplingPolicies.parse("new-state", stateSerializer);
+        assertTrue(policy.sample("receiver", 1));
+        assertFalse(policy.sample("receiver", 1));
+        assertTrue(policy.sample("receiver", 2));
+        assertTrue(policy.sample("other", 1));
+    }
+
+    // Test that new-state skips states it cannot serialize, and is exhausted once it remembers M states
+    @Test
+    public void testNewStateSkipsUnserializableStatesAndIsExhausted() {
+        SamplingPolicy policy = SamplingPolicies.parse("new-state:2", state -> {
+            if ("unserializable".equals(state)) {
+                throw new IllegalStateException("no converter");
+            }
+            return String.valueOf(state);
+        });
+        assertFalse(policy.sample("unserializable", 1));
+        assertFalse(policy.isExhausted());
+        assertTrue(policy.sample("receiver", 1));
+        assertTrue(policy.sample("receiver", 2));
+        assertTrue(policy.isExhausted());
+        assertFalse(policy.sample("receiver", 3));
+    }
+
+    // Test that an invalid specification falls back to the default of the aspect
+    @Test
+    public void testInvalidSpecificationFallsBackToDefault() {
+        assertThrows(IllegalArgumentException.class, () -> SamplingPolicies.parse("rate:x", stateSerializer));
+        System.setProperty("pankti.samplingPolicies", "some.Class.method=unknown;other.Class.method=rate:5");
+        try {
+            assertTrue(SamplingPolicy.forMethod("some.Class.method", "first:1", stateSerializer)
+                    instanceof SamplingPolicies.First);
+            assertTrue(SamplingPolicy.forMethod("other.Class.method", "first:1", stateSerializer)
+                    instanceof SamplingPolicies.FixedRate);
+        } finally {
+            System.clearProperty("pankti.samplingPolicies");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package se.kth.castor.pankti.instrument.capture;
+
+import com.thoughtworks.xstream.XStream;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XStreamWarmUpTest {
+    static final String aspectClassName = XStreamWarmUpTest.class.getName() + "$TestAspect";
+
+    public static class Address {
+        private String street;
+        private int number;
+    }
+
+    public static class Customer {
+        private String name;
+        private Address address;
+    }
+
+    public static class Shop {
+        public Customer findCustomer(String name, long id) {
+            return null;
+        }
+
+        public Customer findCustomer(String name) {
+            return null;
+        }
+    }
+
+    public static class TestAspect {
+        @Pointcut(className = "se.kth.castor.pankti.instrument.capture.XStreamWarmUpTest$Shop",
+                methodName = "findCustomer",
+                methodParameterTypes = {"java.lang.String", "long"},
+                timerName = "findCustomer")
+        public static class FindCustomerAdvice {
+        }
+
+        @Pointcut(className = "com.example.Missing",
+                methodName = "missing",
+                methodParameterTypes = {},
+                timerName = "missing")
+        public static class MissingClassAdvice {
+        }
+    }
+
+    // Test that the aspects of pankti are read from its plugin descriptor
+    @Test
+    public void testAspectsAreReadFromPluginDescriptor() throws Exception {
+        List<String> aspectClassNames = XStreamWarmUp.readAspectClassNames(getClass().getClassLoader());
+        assertTrue(aspectClassNames.contains("se.kth.castor.pankti.instrument.plugins.ContextPropagationAspect"));
+    }
+
+    // Test that the class, parameter types, and return type of an instrumented method are found, and missing classes skipped
+    @Test
+    public void testInstrumentedTypesAreFoundFromPointcuts() {
+        Set<Class<?>> types = XStreamWarmUp.instrumentedTypes(
+                List.of(aspectClassName, "com.example.MissingAspect"), getClass().getClassLoader());
+        assertEquals(Set.of(Shop.class, String.class, long.class, Customer.class), types);
+    }
+
+    // Test that the types of fields are resolved up to the warm-up depth, only for types marshalled by reflection
+    @Test
+    public void testFieldTypesAreResolvedUpToDepth() {
+        XStream xStream = new XStream();
+        Set<Class<?>> shallow = XStreamWarmUp.warmUp(xStream, List.of(Customer.class), 1);
+        assertTrue(shallow.containsAll(List.of(Customer.class, String.class, Address.class)));
+        assertFalse(shallow.contains(Integer.class));
+
+        Set<Class<?>> deep = XStreamWarmUp.warmUp(xStream, List.of(Customer.class), 2);
+        assertTrue(deep.contains(Integer.class));
+        assertFalse(deep.contains(byte[].class));
+        assertTrue(xStream.toXML(new Customer()).contains("XStreamWarmUpTest_-Customer"));
+    }
+}
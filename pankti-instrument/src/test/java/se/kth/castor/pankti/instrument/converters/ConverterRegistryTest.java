@@ -0,0 +1,58 @@
+package se.kth.castor.pankti.instrument.converters;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.ConversionException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConverterRegistryTest {
+
+    interface Service {
+    }
+
+    static class CachingService implements Service {
+        int size = 42;
+    }
+
+    static class Receiver {
+        Thread worker = new Thread(() -> {
+        }) {
+        };
+        Inflater inflater = new Inflater();
+        Service service = new CachingService();
+        String name = "receiver";
+    }
+
+    // Test that known JDK types, their subclasses, and configured classes are written as empty nodes
+    @Test
+    public void testKnownAndConfiguredTypesAreOmitted() {
+        ConverterRegistry converterRegistry = new ConverterRegistry(
+                List.of(ConverterRegistryTest.class.getName() + "$Service"));
+        assertTrue(converterRegistry.canConvert(Thread.class));
+        assertTrue(converterRegistry.canConvert(CachingService.class));
+        assertFalse(converterRegistry.canConvert(Receiver.class));
+
+        XStream xStream = new XStream();
+        xStream.registerConverter(converterRegistry);
+        String xml = xStream.toXML(new Receiver());
+        assertTrue(xml.contains("<inflater/>"), xml);
+        assertTrue(xml.contains("<service class="), xml);
+        assertFalse(xml.contains("<size>"), xml);
+        assertTrue(xml.contains("<name>receiver</name>"), xml);
+    }
+
+    // Test that a type without a converter is omitted from then on
+    @Test
+    public void testUnconvertibleTypeIsOmittedAfterFailure() {
+        ConverterRegistry converterRegistry = new ConverterRegistry(List.of());
+        ConversionException noConverter = new ConversionException("No converter available");
+        noConverter.add("type", Receiver.class.getName());
+        assertTrue(converterRegistry.omitUnconvertibleType(noConverter));
+        assertTrue(converterRegistry.canConvert(Receiver.class));
+        assertFalse(converterRegistry.omitUnconvertibleType(new IllegalStateException("other failure")));
+    }
+}
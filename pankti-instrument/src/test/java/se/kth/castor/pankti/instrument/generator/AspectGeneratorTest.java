@@ -0,0 +1,141 @@
+package se.kth.castor.pankti.instrument.generator;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.instrument.capture.MethodTable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AspectGeneratorTest {
+    private static final String PLUGINS = "se.kth.castor.pankti.instrument.plugins.";
+    static final String csv = "visibility,parent-FQN,method-name,param-list,return-type,param-signature,"
+            + "has-mockable-invocations,nested-invocations\n"
+            + "public,com.example.Shop,findCustomer,\"[java.lang.String, long]\",com.example.Customer,"
+            + "Ljava/lang/String;J,false,[]\n"
+            + "public,com.example.Shop,checkout,[int],void,I,true,\"[{nestedInvocationMode='FIELD', "
+            + "nestedInvocationReturnType='com.example.Item', nestedInvocationTargetType=FIELD, "
+            + "nestedInvocationFieldName='repo', nestedInvocationDeclaringType='com.example.Repo', "
+            + "nestedInvocationMethod='find', nestedInvocationParams='[int, java.lang.String[]]', "
+            + "nestedInvocationSignature='(I[Ljava/lang/String;)Lcom/example/Item;'}]\"\n";
+
+    private static File pluginJar() throws Exception {
+        File jar = File.createTempFile("pankti-plugin", ".jar");
+        jar.deleteOnExit();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+             InputStream pluginJson = AspectGeneratorTest.class.getResourceAsStream("/" + PluginJar.PLUGIN_JSON)) {
+            out.putNextEntry(new JarEntry(PluginJar.PLUGIN_JSON));
+            pluginJson.transferTo(out);
+            out.putNextEntry(new JarEntry(PLUGINS.replace('.', '/') + "MethodAspect7.class"));
+            out.write(new byte[]{0});
+        }
+        return jar;
+    }
+
+    private static File csvFile() throws Exception {
+        File file = File.createTempFile("pankti-methods", ".csv");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), csv);
+        return file;
+    }
+
+    private static String pluginJson(File jar) throws Exception {
+        try (JarFile jarFile = new JarFile(jar)) {
+            return new String(jarFile.getInputStream(jarFile.getJarEntry(PluginJar.PLUGIN_JSON)).readAllBytes(),
+                    StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Pointcut pointcut(ClassLoader loader, String className) throws Exception {
+        for (Class<?> advice : Class.forName(className, false, loader).getDeclaredClasses()) {
+            if (advice.isAnnotationPresent(Pointcut.class)) {
+                return advice.getAnnotation(Pointcut.class);
+            }
+        }
+        throw new AssertionError("No pointcut in " + className);
+    }
+
+    // Test that an aspect per method replaces the aspects generated before, and is listed before ContextPropagationAspect
+    @Test
+    public void testMethodAspectsReplaceGeneratedAspects() throws Exception {
+        File jar = pluginJar();
+        List<String> aspects = AspectGenerator.generate(csvFile(), jar, AspectGenerator.Mode.METHODS, "");
+        assertEquals(List.of(PLUGINS + "MethodAspect1", PLUGINS + "MethodAspect2"), aspects);
+        try (JarFile jarFile = new JarFile(jar)) {
+            assertNull(jarFile.getJarEntry(PLUGINS.replace('.', '/') + "MethodAspect7.class"));
+            assertNotNull(jarFile.getManifest());
+        }
+        String pluginJson = pluginJson(jar);
+        assertTrue(pluginJson.indexOf("MethodAspect1") < pluginJson.indexOf("MethodAspect2"));
+        assertTrue(pluginJson.indexOf("MethodAspect2") < pluginJson.indexOf("ContextPropagationAspect"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, getClass().getClassLoader())) {
+            Pointcut pointcut = pointcut(loader, PLUGINS + "MethodAspect1");
+            assertEquals("com.example.Shop", pointcut.className());
+            assertEquals("findCustomer", pointcut.methodName());
+            assertArrayEquals(new String[]{"java.lang.String", "long"}, pointcut.methodParameterTypes());
+            assertEquals("com.example.Shop-findCustomer", pointcut.timerName());
+        }
+    }
+
+    // Test that only methods with mockable invocations get an aspect in mock mode, with one per nested invocation
+    @Test
+    public void testMockAspectsHaveNestedAspects() throws Exception {
+        File jar = pluginJar();
+        List<String> aspects = AspectGenerator.generate(csvFile(), jar, AspectGenerator.Mode.MOCK, "com.example.Shop");
+        assertEquals(List.of(PLUGINS + "MethodAspect1", PLUGINS + "MethodAspect1Nested1"), aspects);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, getClass().getClassLoader())) {
+            Pointcut pointcut = pointcut(loader, PLUGINS + "MethodAspect1Nested1");
+            assertEquals("com.example.Repo", pointcut.className());
+            assertEquals("find", pointcut.methodName());
+            assertArrayEquals(new String[]{"int", "java.lang.String[]"}, pointcut.methodParameterTypes());
+            assertEquals("checkout", pointcut(loader, PLUGINS + "MethodAspect1").methodName());
+        }
+    }
+
+    // Test that methods with mockable invocations get nested aspects in dispatch mode, which find their parent by its FQN in the table
+    @Test
+    public void testDispatcherAspectsHaveNestedAspects() throws Exception {
+        File jar = pluginJar();
+        List<String> aspects = AspectGenerator.generate(csvFile(), jar, AspectGenerator.Mode.DISPATCH, "");
+        assertEquals(List.of(PLUGINS + "DispatcherAspect1", PLUGINS + "DispatcherAspect1Nested1"), aspects);
+        MethodTable methodTable = MethodTable.load(csvFile().toPath());
+        String nestedSource = AspectGenerator.generateSources(List.of(methodTable.get(0), methodTable.get(1)),
+                AspectGenerator.Mode.DISPATCH).get(PLUGINS + "DispatcherAspect1Nested1");
+        assertTrue(nestedSource.contains("parentMethodFQN = \"com.example.Shop.checkout_int\";"));
+        assertFalse(nestedSource.contains("MethodAspect0"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, getClass().getClassLoader())) {
+            Pointcut pointcut = pointcut(loader, PLUGINS + "DispatcherAspect1Nested1");
+            assertEquals("com.example.Repo", pointcut.className());
+            assertEquals("find", pointcut.methodName());
+        }
+    }
+
+    // Test that aspects of other families and ContextPropagationAspect are kept in the plugin
+    @Test
+    public void testOtherAspectsAreKept() {
+        String pluginJson = "{\n  \"aspects\": [\n    \"" + PLUGINS + "CounterAspect1\",\n    \""
+                + PLUGINS + "MethodAspect3Nested2\",\n    \"" + PLUGINS + "ContextPropagationAspect\"\n  ]\n}";
+        String updated = PluginJar.replaceAspects(pluginJson, "MethodAspect", List.of(PLUGINS + "MethodAspect1"));
+        assertEquals("{\n  \"aspects\": [\n    \"" + PLUGINS + "MethodAspect1\",\n    \""
+                + PLUGINS + "CounterAspect1\",\n    \"" + PLUGINS + "ContextPropagationAspect\"\n  ]\n}", updated);
+        assertFalse(PluginJar.isGenerated(PLUGINS + "MethodAspect0", "MethodAspect"));
+        assertTrue(PluginJar.isGenerated(PLUGINS + "MethodAspect12Nested3$TargetMethodAdvice", "MethodAspect"));
+    }
+}
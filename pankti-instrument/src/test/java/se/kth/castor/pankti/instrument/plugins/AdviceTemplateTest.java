@@ -1,13 +1,21 @@
 package se.kth.castor.pankti.instrument.plugins;
 
+import com.thoughtworks.xstream.converters.ConversionException;
 import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.instrument.capture.ProfileStorage;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 
 public class AdviceTemplateTest {
+    static class Unconvertible {
+    }
+
     static final String pathName = "methodFQN";
     static final Map<Type, String> files = AdviceTemplate.setUpFiles(pathName);
 
@@ -24,4 +32,26 @@ public class AdviceTemplateTest {
         assertEquals(1, files.values().stream().filter(v -> v.endsWith(".csv")).count());
         assertFalse(files.get(Type.INVOKED_METHODS).contains(pathName));
     }
+
+    // Test that an object with a type without a converter is captured, with the type omitted, the first time
+    @Test
+    public void testUnconvertibleTypeIsOmittedOnFirstOccurrence() throws Exception {
+        File objectFile = File.createTempFile("pankti-unconvertible", AdviceTemplate.captureFormat.getExtension());
+        objectFile.deleteOnExit();
+        AtomicInteger attempts = new AtomicInteger();
+        long recordSize = AdviceTemplate.appendRecordToFile(objectFile.getPath(), writer -> {
+            // As XStream fails on a type that no converter can convert, until the registry omits it
+            if (!AdviceTemplate.converterRegistry.canConvert(Unconvertible.class)) {
+                attempts.incrementAndGet();
+                ConversionException noConverter = new ConversionException("No converter available");
+                noConverter.add("type", Unconvertible.class.getName());
+                throw noConverter;
+            }
+            AdviceTemplate.xStream.marshal(new Unconvertible(), writer);
+        });
+        ProfileStorage.getSink().flush();
+        assertEquals(1, attempts.get());
+        assertTrue(recordSize > 0);
+        assertTrue(Files.readString(objectFile.toPath()).contains("Unconvertible"));
+    }
 }
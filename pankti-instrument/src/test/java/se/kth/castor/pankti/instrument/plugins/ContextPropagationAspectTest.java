@@ -0,0 +1,178 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.ParameterHolder;
+import org.glowroot.agent.plugin.api.internal.ParameterHolderImpl;
+import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.instrument.capture.InvocationContext;
+
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextPropagationAspectTest {
+    static final String parentFQN = "some.Class.parent_int";
+
+    // Runs the body as it runs once RunAdvice is woven into the run method of the task
+    static void runWoven(Object task, Runnable body) {
+        if (!ContextPropagationAspect.RunAdvice.isEnabled(task)) {
+            body.run();
+            return;
+        }
+        ContextPropagationAspect.RestoredContext restoredContext = ContextPropagationAspect.RunAdvice.onBefore(task);
+        try {
+            body.run();
+        } finally {
+            ContextPropagationAspect.RunAdvice.onAfter(task, restoredContext);
+        }
+    }
+
+    // A task with the mixin of the aspect, which looks up its parent invocation when it runs
+    static class ParentLookup implements Runnable, ContextPropagationAspect.TaskMixin {
+        private volatile InvocationContext.Snapshot invocationSnapshot;
+        private final AtomicReference<UUID> seenUuid = new AtomicReference<>();
+
+        @Override
+        public void run() {
+            runWoven(this, () -> {
+                InvocationContext.Invocation parent = InvocationContext.current(parentFQN);
+                seenUuid.set(parent == null ? null : parent.getUuid());
+            });
+        }
+
+        @Override
+        public InvocationContext.Snapshot pankti$getInvocationSnapshot() {
+            return invocationSnapshot;
+        }
+
+        @Override
+        public void pankti$setInvocationSnapshot(InvocationContext.Snapshot invocationSnapshot) {
+            this.invocationSnapshot = invocationSnapshot;
+        }
+    }
+
+    // A FutureTask with the mixin, as it is once woven
+    static class WovenFutureTask<V> extends FutureTask<V> implements ContextPropagationAspect.TaskMixin {
+        private volatile InvocationContext.Snapshot invocationSnapshot;
+
+        WovenFutureTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            runWoven(this, super::run);
+        }
+
+        @Override
+        public InvocationContext.Snapshot pankti$getInvocationSnapshot() {
+            return invocationSnapshot;
+        }
+
+        @Override
+        public void pankti$setInvocationSnapshot(InvocationContext.Snapshot invocationSnapshot) {
+            this.invocationSnapshot = invocationSnapshot;
+        }
+    }
+
+    // Runs ExecuteAdvice as Glowroot does, which may replace the task
+    static Runnable executeWoven(Runnable task) {
+        ParameterHolder<Runnable> taskHolder = ParameterHolderImpl.create(task);
+        ContextPropagationAspect.ExecuteAdvice.onBefore(taskHolder);
+        return taskHolder.get();
+    }
+
+    // An executor with ExecuteAdvice and SubmitCallableAdvice woven in
+    static class WovenExecutor extends ThreadPoolExecutor {
+        WovenExecutor() {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(executeWoven(command));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> Future<T> submit(Callable<T> task) {
+            ParameterHolder<Callable<?>> taskHolder = ParameterHolderImpl.create(task);
+            ContextPropagationAspect.SubmitCallableAdvice.onBefore(taskHolder);
+            return super.submit((Callable<T>) taskHolder.get());
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new WovenFutureTask<>(callable);
+        }
+    }
+
+    // Test that submitted and executed tasks find the parent invocation of the submitting thread on the pool thread
+    @Test
+    public void testParentIsFoundOnPoolThread() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        WovenExecutor executor = new WovenExecutor();
+        ParentLookup executedTask = new ParentLookup();
+        try {
+            InvocationContext.enter(parentFQN, uuid);
+            try {
+                // The callable has no mixin, so only the FutureTask that submit wraps it in restores the context
+                Future<UUID> submitted = executor.submit(() -> InvocationContext.current(parentFQN).getUuid());
+                assertEquals(uuid, submitted.get());
+                executor.execute(executedTask);
+                executor.submit(() -> null).get();
+                assertEquals(uuid, executedTask.seenUuid.get());
+            } finally {
+                InvocationContext.exit(parentFQN);
+            }
+            assertNull(executedTask.pankti$getInvocationSnapshot());
+            assertNull(executor.submit(() -> InvocationContext.current(parentFQN)).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Test that a task executed again outside any parent invocation does not restore the earlier parent
+    @Test
+    public void testResubmittedTaskDropsEarlierSnapshot() {
+        ParentLookup task = new ParentLookup();
+        InvocationContext.enter(parentFQN, UUID.randomUUID());
+        try {
+            assertSame(task, executeWoven(task));
+        } finally {
+            InvocationContext.exit(parentFQN);
+        }
+        assertSame(task, executeWoven(task));
+        Thread poolThread = new Thread(task);
+        poolThread.start();
+        assertDoesNotThrow(() -> poolThread.join());
+        assertNull(task.seenUuid.get());
+    }
+
+    // Test that a lambda, which has no mixin, is handed off in a wrapper that carries the parent invocation
+    @Test
+    public void testLambdaIsWrappedWithParentContext() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        AtomicReference<UUID> seenUuid = new AtomicReference<>();
+        Runnable lambda = () -> {
+            InvocationContext.Invocation parent = InvocationContext.current(parentFQN);
+            seenUuid.set(parent == null ? null : parent.getUuid());
+        };
+        WovenExecutor executor = new WovenExecutor();
+        try {
+            assertSame(lambda, executeWoven(lambda));
+            InvocationContext.enter(parentFQN, uuid);
+            try {
+                executor.execute(lambda);
+                executor.submit(() -> null).get();
+            } finally {
+                InvocationContext.exit(parentFQN);
+            }
+            assertEquals(uuid, seenUuid.get());
+            assertNull(executor.submit(() -> InvocationContext.current(parentFQN)).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}